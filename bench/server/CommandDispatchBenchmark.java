@@ -0,0 +1,88 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.DocumentHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.extension.BaseExtension;
+import server.interfaces.ApiProvider;
+import server.interfaces.CommandRegistry;
+import server.interfaces.Response;
+import server.response.XmlResponse;
+
+/**
+ * Compares the dispatch of an API command before and after the dispatch table of
+ * CinnamonCommandRegistry: a new provider with Class.newInstance and Method.invoke per request
+ * against the MethodHandles of a {@link CinnamonMethodContainer}. The command is a trivial echo
+ * which returns a prepared response, so only the cost of the dispatch is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDispatchBenchmark {
+
+    static Response response;
+
+    public static class EchoApi extends BaseExtension {
+
+        @Override
+        public CommandRegistry registerApi(CommandRegistry cmdReg) {
+            return findAndRegisterMethods(cmdReg, this);
+        }
+
+        @CinnamonMethod
+        public Response echo(Map<String, String> cmd) {
+            return response;
+        }
+    }
+
+    Method method;
+    Class<?> methodClass;
+    CinnamonMethodContainer container;
+    Map<String, String> params;
+
+    @Setup
+    public void setup() throws Exception {
+        response = new XmlResponse(null, DocumentHelper.createDocument());
+        methodClass = EchoApi.class;
+        method = methodClass.getMethod("echo", Map.class);
+        container = new CinnamonMethodContainer("echo", methodClass, method, false);
+        params = new HashMap<String, String>();
+        params.put("command", "echo");
+    }
+
+    /**
+     * The dispatch of CinnamonCommandRegistry.invoke before the dispatch table.
+     */
+    @Benchmark
+    public Object reflection() throws Exception {
+        ApiProvider provider = (ApiProvider) methodClass.newInstance();
+        provider.setRes(null);
+        provider.setRepository(null);
+        return method.invoke(provider, params);
+    }
+
+    @Benchmark
+    public Object methodHandle() throws Exception {
+        ApiProvider provider = container.createProvider();
+        provider.setRes(null);
+        provider.setRepository(null);
+        return container.invoke(provider, params);
+    }
+}
@@ -0,0 +1,102 @@
+package server.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the paging and the parent id collection of a large search result before and after
+ * PageSelection and LongHashSet: copying and sorting the whole result against the bounded heap
+ * of PageSelection, and a HashSet of boxed ids against a LongHashSet. The result consists of
+ * shuffled ids (which are Comparable like the XmlConvertable results), with a parent id for
+ * every 20 hits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchResultBenchmark {
+
+    static final int PAGE_SIZE = 50;
+
+    @Param({"100000"})
+    int hits;
+
+    @Param({"1", "100"})
+    int page;
+
+    Set<Long> result;
+    long[] parentIds;
+
+    @Setup
+    public void setup() {
+        List<Long> ids = new ArrayList<Long>(hits);
+        for (long id = 1; id <= hits; id++) {
+            ids.add(id);
+        }
+        Random random = new Random(42);
+        Collections.shuffle(ids, random);
+        // the search result store is a HashSet:
+        result = new HashSet<Long>(ids);
+        parentIds = new long[hits];
+        for (int x = 0; x < hits; x++) {
+            parentIds[x] = random.nextInt(hits / 20);
+        }
+    }
+
+    /**
+     * The paging of CmdInterpreter.addPagedResultsToElement before PageSelection.
+     */
+    @Benchmark
+    public List<Long> sortAll() {
+        List<Long> sorted = new ArrayList<Long>(result);
+        Collections.sort(sorted);
+        int start = (page - 1) * PAGE_SIZE;
+        return new ArrayList<Long>(sorted.subList(start, start + PAGE_SIZE));
+    }
+
+    @Benchmark
+    public List<Long> pageSelection() {
+        int start = (page - 1) * PAGE_SIZE;
+        return PageSelection.select(result, start, start + PAGE_SIZE);
+    }
+
+    /**
+     * The parent id collection of CmdInterpreter.collectParentIds before LongHashSet.
+     */
+    @Benchmark
+    public Set<Long> boxedParentIds() {
+        Set<Long> ids = new HashSet<Long>();
+        for (long id : parentIds) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    @Benchmark
+    public LongHashSet primitiveParentIds() {
+        LongHashSet ids = new LongHashSet(parentIds.length);
+        for (long id : parentIds) {
+            ids.add(id);
+        }
+        return ids;
+    }
+}
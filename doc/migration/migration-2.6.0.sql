@@ -0,0 +1,17 @@
+--- Optional (Postgresql): indexes for the paged getObjects, getSubfolders and getRelations requests.
+--- Each page is a range scan on one of these indexes.
+create index objects_parent_id_idx on objects (parent_id, id);
+create index objects_parent_name_idx on objects (parent_id, name, id);
+create index folders_parent_id_idx on folders (parent_id, id);
+create index folders_parent_name_idx on folders (parent_id, name, id);
+create index relations_left_id_idx on relations (left_id, id);
+create index relations_right_id_idx on relations (right_id, id);
+
+--- Required (Postgresql; use bit instead of boolean on SQL Server): the deadlines of open workflow tasks and started workflows.
+--- The table is filled from the metadata of the open tasks and workflows on the first start of the server; afterwards,
+--- the config entry workflow.deadlines.backfilled exists (delete it to fill the table again on the next start).
+create table workflow_deadlines (osd_id bigint primary key, due_time bigint not null, workflow boolean not null, deadline_task_def_id bigint);
+create index workflow_deadlines_due_idx on workflow_deadlines (due_time);
+
+--- Optional (Postgresql): index for findOpenTasks with page_size, changed_since or count_only.
+create index objects_type_procstate_owner_idx on objects (type_id, procstate, owner_id, id);
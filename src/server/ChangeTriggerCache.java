@@ -0,0 +1,168 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.dao.ChangeTriggerDAO;
+import server.dao.DAOFactory;
+import server.trigger.ChangeTrigger;
+import server.trigger.ITrigger;
+import utils.HibernateSession;
+
+/**
+ * In-memory index of the active ChangeTriggers of one repository, keyed by command name.
+ * <p>
+ * ChangeTriggers are almost never changed, but the CommandRegistry needs them on every
+ * request. The cache stores a detached snapshot (trigger class and config) of the pre-, post- and
+ * after-work-triggers of each command, so the three ChangeTriggerDAO queries are only
+ * executed once per command and cache period.
+ * </p>
+ * <p>
+ * Code that creates, updates or deletes ChangeTriggers should call {@link #invalidate()}.
+ * Changes made outside of the server (for example by the administration tool) become
+ * visible after the configured timeToLive (cinnamon_config/changeTriggerCacheTime, in
+ * milliseconds, default: 60000).
+ * </p>
+ * <p>
+ * Only the ChangeTriggers are cached: ITrigger implementations may keep state in their fields,
+ * so the CommandRegistry still creates a new instance for each execution.
+ * </p>
+ */
+public class ChangeTriggerCache {
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+    static DAOFactory daoFactory = DAOFactory.instance(DAOFactory.HIBERNATE);
+
+    private final ConcurrentMap<String, CommandTriggers> triggerMap = new ConcurrentHashMap<String, CommandTriggers>();
+    private final AtomicLong generation = new AtomicLong();
+    private long timeToLive;
+
+    public ChangeTriggerCache(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * A detached copy of the parts of a ChangeTrigger which are needed to execute it.
+     */
+    public static class CachedTrigger {
+        final String name;
+        final Class<? extends ITrigger> triggerClass;
+        final String config;
+
+        CachedTrigger(ChangeTrigger changeTrigger) {
+            this.name = changeTrigger.getTriggerType().getName();
+            this.triggerClass = changeTrigger.getTriggerType().getTriggerClass();
+            this.config = changeTrigger.getConfig();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Class<? extends ITrigger> getTriggerClass() {
+            return triggerClass;
+        }
+
+        public String getConfig() {
+            return config;
+        }
+    }
+
+    static class CommandTriggers {
+        final List<CachedTrigger> preTriggers;
+        final List<CachedTrigger> postTriggers;
+        final List<CachedTrigger> afterWorkTriggers;
+        final long loadedAt = System.currentTimeMillis();
+
+        CommandTriggers(List<CachedTrigger> preTriggers, List<CachedTrigger> postTriggers,
+                        List<CachedTrigger> afterWorkTriggers) {
+            this.preTriggers = preTriggers;
+            this.postTriggers = postTriggers;
+            this.afterWorkTriggers = afterWorkTriggers;
+        }
+    }
+
+    public List<CachedTrigger> findPreTriggers(String command) {
+        return fetch(command).preTriggers;
+    }
+
+    public List<CachedTrigger> findPostTriggers(String command) {
+        return fetch(command).postTriggers;
+    }
+
+    public List<CachedTrigger> findAfterWorkTriggers(String command) {
+        return fetch(command).afterWorkTriggers;
+    }
+
+    /**
+     * Remove all cached triggers. The next request for each command will reload its
+     * triggers from the database. The cache is cleared immediately and again after the
+     * current transaction has been committed (see {@link DeferredInvalidation}), so a concurrent
+     * request cannot keep the triggers which it loaded before the commit.
+     */
+    public void invalidate() {
+        clear();
+        DeferredInvalidation.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                clear();
+            }
+        });
+    }
+
+    void clear() {
+        log.debug("invalidate ChangeTriggerCache");
+        generation.incrementAndGet();
+        triggerMap.clear();
+    }
+
+    CommandTriggers fetch(String command) {
+        CommandTriggers triggers = triggerMap.get(command);
+        if (triggers != null && System.currentTimeMillis() - triggers.loadedAt < timeToLive) {
+            return triggers;
+        }
+        long currentGeneration = generation.get();
+        triggers = load(command);
+        // do not store triggers which were loaded while the cache was invalidated.
+        if (generation.get() == currentGeneration) {
+            triggerMap.put(command, triggers);
+        }
+        return triggers;
+    }
+
+    CommandTriggers load(String command) {
+        log.debug("loading ChangeTriggers for: " + command);
+        ChangeTriggerDAO ctDao = daoFactory.getChangeTriggerDAO(HibernateSession.getLocalEntityManager());
+        return new CommandTriggers(
+                detach(ctDao.findAllByCommandAndPreAndActiveOrderByRanking(command)),
+                detach(ctDao.findAllByCommandAndPostAndActiveOrderByRanking(command)),
+                detach(ctDao.findAllByCommandAndActiveAndAfterWorkOrderByRanking(command))
+        );
+    }
+
+    List<CachedTrigger> detach(List<ChangeTrigger> changeTriggers) {
+        if (changeTriggers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<CachedTrigger> cachedTriggers = new ArrayList<CachedTrigger>(changeTriggers.size());
+        for (ChangeTrigger ct : changeTriggers) {
+            cachedTriggers.add(new CachedTrigger(ct));
+        }
+        return Collections.unmodifiableList(cachedTriggers);
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+}
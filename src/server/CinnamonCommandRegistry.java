@@ -1,7 +1,6 @@
 package server;
 
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,17 +11,17 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import server.dao.ChangeTriggerDAO;
+import server.ChangeTriggerCache.CachedTrigger;
 import server.dao.DAOFactory;
 import server.exceptions.CinnamonConfigurationException;
 import server.exceptions.CinnamonException;
+import server.global.ConfThreadLocal;
 import server.helpers.PoBox;
 import server.interfaces.ApiProvider;
 import server.interfaces.CommandRegistry;
 import server.interfaces.MethodContainer;
 import server.interfaces.Repository;
 import server.interfaces.Response;
-import server.trigger.ChangeTrigger;
 import server.trigger.ITrigger;
 import utils.FileKeeper;
 import utils.HibernateSession;
@@ -36,6 +35,8 @@ public class CinnamonCommandRegistry implements CommandRegistry {
     static DAOFactory daoFactory = DAOFactory.instance(DAOFactory.HIBERNATE);
     private Map<String, MethodContainer> apiMap = new HashMap<String, MethodContainer>();
     private Boolean allowOverrides = false;
+    private ChangeTriggerCache triggerCache = new ChangeTriggerCache(
+            Long.parseLong(ConfThreadLocal.getConf().getField("cinnamon_config/changeTriggerCacheTime", "60000")));
 
     public CinnamonCommandRegistry() {
 
@@ -63,14 +64,6 @@ public class CinnamonCommandRegistry implements CommandRegistry {
                 apiMap.put(entry.getKey(), entry.getValue());
             }
         }
-        for (String cmd : commands.keySet()) {
-//			log.debug("register API command: "+cmd);
-            if (apiMap.containsKey(cmd)) {
-
-
-            }
-
-        }
     }
 
     @SuppressWarnings("unchecked")
@@ -79,15 +72,10 @@ public class CinnamonCommandRegistry implements CommandRegistry {
                            User user, Repository repository) {
         log.debug("Start to invoke: " + command);
         //		log.debug("res: "+res);
-        if (apiMap.containsKey(command)) {
-            MethodContainer mc = apiMap.get(command);
-            if (mc == null) {
-                throw new CinnamonConfigurationException("apiMap does not contain command " + command);
-            }
+        MethodContainer mc = apiMap.get(command);
+        if (mc != null) {
             try {
-                Method method = mc.getMethod();
-                Class cmdClass = mc.getMethodClass();
-                ApiProvider provider = (ApiProvider) cmdClass.newInstance();
+                ApiProvider provider = mc.createProvider();
                 provider.setEm(HibernateSession.getLocalEntityManager());
                 provider.setRes(res);
                 if (user != null) {
@@ -122,8 +110,8 @@ public class CinnamonCommandRegistry implements CommandRegistry {
                     }
                 }
                 
-                log.debug("found method. Next: method.invoke(...)");
-                poBox.response = (Response) method.invoke(provider, params);
+                log.debug("found method. Next: mc.invoke(...)");
+                poBox.response = mc.invoke(provider, params);
 
                 if (mc.checkTrigger()) {
                     log.debug("executing post-Triggers");
@@ -158,13 +146,10 @@ public class CinnamonCommandRegistry implements CommandRegistry {
 
     PoBox checkPreTriggers(PoBox poBox) {
         String command = poBox.command;
-        ChangeTriggerDAO ctDao = daoFactory.getChangeTriggerDAO(HibernateSession.getLocalEntityManager());
         log.debug("searching for all active pre-triggers for: " + command);
-        List<ChangeTrigger> triggerList = ctDao.findAllByCommandAndPreAndActiveOrderByRanking(command);
-        for (ChangeTrigger ct : triggerList) {
-            log.debug("executing trigger: " + ct.getTriggerType().getName());
-            Class<? extends ITrigger> triggerClass = ct.getTriggerType().getTriggerClass();
-            ITrigger it = getNewTriggerInstance(triggerClass);
+        for (CachedTrigger ct : triggerCache.findPreTriggers(command)) {
+            log.debug("executing trigger: " + ct.getName());
+            ITrigger it = getNewTriggerInstance(ct.getTriggerClass());
             poBox = it.executePreCommand(poBox, ct.getConfig());
             if(poBox.endProcessing){
                 break;
@@ -175,14 +160,12 @@ public class CinnamonCommandRegistry implements CommandRegistry {
 
     PoBox checkPostTriggers(PoBox poBox) {
         String command = poBox.command;
-        ChangeTriggerDAO ctDao = daoFactory.getChangeTriggerDAO(HibernateSession.getLocalEntityManager());
         log.debug("searching for all active post-triggers for: " + command);
-        List<ChangeTrigger> triggerList = ctDao.findAllByCommandAndPostAndActiveOrderByRanking(command);
+        List<CachedTrigger> triggerList = triggerCache.findPostTriggers(command);
         log.debug("found: " + triggerList.size() + " triggers");
-        for (ChangeTrigger ct : triggerList) {
-            log.debug("executing trigger: " + ct.getTriggerType().getName());
-            Class<? extends ITrigger> triggerClass = ct.getTriggerType().getTriggerClass();
-            ITrigger it = getNewTriggerInstance(triggerClass);
+        for (CachedTrigger ct : triggerList) {
+            log.debug("executing trigger: " + ct.getName());
+            ITrigger it = getNewTriggerInstance(ct.getTriggerClass());
             poBox = it.executePostCommand(poBox, ct.getConfig());
             if(poBox.endProcessing){
                 break;
@@ -207,20 +190,18 @@ public class CinnamonCommandRegistry implements CommandRegistry {
         }
         return it;
     }
-    
+
     public Response executeAfterWorkTriggers(String command, Map<String, Object> params,
                                      HttpServletResponse res, User user, Repository repository, Response response ){
-        ChangeTriggerDAO ctDao = daoFactory.getChangeTriggerDAO(HibernateSession.getLocalEntityManager());
         log.debug("searching for all active after-work triggers for: " + command);
-        List<ChangeTrigger> triggerList = ctDao.findAllByCommandAndActiveAndAfterWorkOrderByRanking(command);
+        List<CachedTrigger> triggerList = triggerCache.findAfterWorkTriggers(command);
         if(triggerList.isEmpty()){
             return response;
         }
         else{
-            for (ChangeTrigger ct : triggerList) {
-                log.debug("executing afterWork trigger: " + ct.getTriggerType().getName());
-                Class<? extends ITrigger> triggerClass = ct.getTriggerType().getTriggerClass();
-                ITrigger it = getNewTriggerInstance(triggerClass);
+            for (CachedTrigger ct : triggerList) {
+                log.debug("executing afterWork trigger: " + ct.getName());
+                ITrigger it = getNewTriggerInstance(ct.getTriggerClass());
                 PoBox poBox = new PoBox(response, user, repository, params, command);
                 poBox = it.executePostCommand(poBox, ct.getConfig());
                 if(poBox.endProcessing){
@@ -230,4 +211,12 @@ public class CinnamonCommandRegistry implements CommandRegistry {
             return response;
         }
     }
+
+    /**
+     * @return the cache of this registry's ChangeTriggers. Call invalidate() on it after
+     * ChangeTriggers have been created, changed or deleted.
+     */
+    public ChangeTriggerCache getTriggerCache() {
+        return triggerCache;
+    }
 }
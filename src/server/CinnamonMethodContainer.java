@@ -1,16 +1,31 @@
 package server;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Map;
 
+import server.exceptions.CinnamonConfigurationException;
+import server.exceptions.CinnamonException;
+import server.interfaces.ApiProvider;
 import server.interfaces.MethodContainer;
+import server.interfaces.Response;
 
 public class CinnamonMethodContainer implements MethodContainer {
 
+	static final MethodType invokerType = MethodType.methodType(Response.class, ApiProvider.class, Map.class);
+	static final MethodType factoryType = MethodType.methodType(ApiProvider.class);
+
 	String command;
 	@SuppressWarnings("unchecked")
 	Class methodClass;
 	Method method;
 	Boolean checkTrigger;
+	MethodHandle invoker;
+	MethodHandle providerFactory;
 	
 	@SuppressWarnings("unchecked")
 	public CinnamonMethodContainer(String command, Class methodClass, Method method, Boolean checkTrigger){
@@ -18,6 +33,24 @@ public class CinnamonMethodContainer implements MethodContainer {
 		this.methodClass = methodClass;
 		this.method = method;
 		this.checkTrigger = checkTrigger;
+		/*
+		 * Resolve the method and the constructor of the API class once, so invoking a command
+		 * does not have to pay for reflective access checks and argument boxing on every request.
+		 */
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		try{
+			invoker = lookup.unreflect(method).asType(invokerType);
+			providerFactory = lookup.findConstructor(methodClass, MethodType.methodType(void.class)).asType(factoryType);
+		}
+		catch (NoSuchMethodException e) {
+			throw new CinnamonConfigurationException("API class "+methodClass.getName()+" needs a public default constructor.", e);
+		}
+		catch (IllegalAccessException e) {
+			throw new CinnamonConfigurationException("Cannot access API method "+command, e);
+		}
+		catch (WrongMethodTypeException e){
+			throw new CinnamonConfigurationException("API method "+command+" must return a Response and belong to an ApiProvider.", e);
+		}
 	}
 
 	/**
@@ -49,5 +82,26 @@ public class CinnamonMethodContainer implements MethodContainer {
 	public Boolean checkTrigger() {
 		return checkTrigger;
 	}
+
+	@Override
+	public ApiProvider createProvider() {
+		try{
+			return (ApiProvider) providerFactory.invokeExact();
+		}
+		catch (Throwable e) {
+			throw new CinnamonException("error.instantiating.class", e, methodClass.getName());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Response invoke(ApiProvider provider, Map params) throws InvocationTargetException {
+		try{
+			return (Response) invoker.invokeExact(provider, params);
+		}
+		catch (Throwable e) {
+			throw new InvocationTargetException(e);
+		}
+	}
 	
 }
@@ -1,8 +1,10 @@
 package server;
 
+import java.io.File;
 import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +18,9 @@ import org.slf4j.LoggerFactory;
 import server.dao.CustomTableDAO;
 import server.dao.DAOFactory;
 import server.dao.SessionDAO;
+import server.data.ContentCompression;
+import server.data.DeduplicatingContentStore;
+import server.data.DerivedFileCleanup;
 import server.data.SqlCustomConn;
 import server.exceptions.CinnamonConfigurationException;
 import server.global.ConfThreadLocal;
@@ -25,6 +30,8 @@ import server.index.LuceneBridge;
 import server.interfaces.ApiClass;
 import server.interfaces.CommandRegistry;
 import server.interfaces.Repository;
+import server.tika.TikaExtractionService;
+import server.tika.TikaTextStore;
 import utils.DefaultPersistenceSessionProvider;
 import utils.HibernateSession;
 import utils.PersistenceSessionProvider;
@@ -46,6 +53,17 @@ public class CinnamonRepository implements Repository{
 	Thread workflowServerThread;
 	LuceneBridge lucene;
 	Connection auditConnection;
+	SessionCache sessionCache;
+	IndexQueue indexQueue;
+	PermissionCache permissionCache;
+	SearchPermissionFilter searchPermissionFilter;
+	FolderAncestry folderAncestry;
+	FolderPathCache folderPathCache;
+	TikaExtractionService tikaExtractionService;
+	ConfigEntryCache configEntryCache;
+	DeduplicatingContentStore contentStore;
+	ContentCompression contentCompression;
+	DerivedFileCleanup derivedFileCleanup;
     
 	public CinnamonRepository(){
 		
@@ -93,9 +111,30 @@ public class CinnamonRepository implements Repository{
 		
 		// delete all old sessions:
 		purgeSessionTable(em);
+		initializeSessionCache(conf);
+		initializePermissionCache(conf);
+		initializeSearchPermissionFilter(conf);
+		int ancestryCacheSize = Integer.parseInt(conf.getField("cinnamon_config/folderAncestryCache/size", "10000"));
+		folderAncestry = new FolderAncestry(Math.max(0, ancestryCacheSize));
+		int pathCacheSize = Integer.parseInt(conf.getField("cinnamon_config/folderPathCache/size", "5000"));
+		if(pathCacheSize > 0){
+			folderPathCache = new FolderPathCache(pathCacheSize);
+		}
+		configEntryCache = new ConfigEntryCache(
+				Long.parseLong(conf.getField("cinnamon_config/configEntryCache/cacheTime", "60000")));
 		
 		this.indexServer = new IndexServer(lucene, this);
 		this.indexServerThread = new Thread(indexServer);
+		initializeIndexQueue(conf);
+		initializeTikaExtraction(conf);
+		if(conf.getField("cinnamon_config/contentDeduplication/enabled", "false").equals("true")){
+			contentStore = new DeduplicatingContentStore(this,
+					Long.parseLong(conf.getField("cinnamon_config/contentDeduplication/cleanupInterval", "3600000")));
+		}
+		derivedFileCleanup = new DerivedFileCleanup(name,
+				Long.parseLong(conf.getField("cinnamon_config/derivedFileCleanup/interval", "3600000")));
+		derivedFileCleanup.addFolder(new TikaTextStore(name).getFolder(), TikaTextStore.SUFFIX);
+		initializeContentCompression(conf);
 		this.workflowServer = new WorkflowServer(this);
 		this.workflowServerThread = new Thread(workflowServer);
 
@@ -133,6 +172,77 @@ public class CinnamonRepository implements Repository{
         }
     }
 
+	void initializeSessionCache(ConfThreadLocal conf){
+		int cacheSize = Integer.parseInt(conf.getField("cinnamon_config/sessionCache/size", "1000"));
+		if(cacheSize <= 0){
+			log.info("Session cache is disabled for repository "+name);
+			return;
+		}
+		long expirationTime = conf.getSessionExpirationTime(name);
+		long renewalInterval = Long.parseLong(conf.getField("cinnamon_config/sessionCache/renewalInterval", "30000"));
+		// the database must be updated before a session would expire there:
+		renewalInterval = Math.max(1000L, Math.min(renewalInterval, expirationTime / 2));
+		sessionCache = new SessionCache(this, cacheSize, expirationTime, renewalInterval);
+	}
+
+	void initializeIndexQueue(ConfThreadLocal conf){
+		if(! conf.getField("cinnamon_config/indexQueue/enabled", "false").equals("true")){
+			log.debug("Index queue is disabled, changed objects are indexed at the end of each request.");
+			return;
+		}
+		int workers = Integer.parseInt(conf.getField("cinnamon_config/indexQueue/workers", "1"));
+		boolean syncJournal = conf.getField("cinnamon_config/indexQueue/syncJournal", "true").equals("true");
+		File journalFolder = new File(conf.getDataRoot() + "index-queue");
+		indexQueue = new IndexQueue(this, journalFolder, workers, syncJournal);
+		indexQueue.start();
+	}
+
+	void initializePermissionCache(ConfThreadLocal conf){
+		int maxUsers = Integer.parseInt(conf.getField("cinnamon_config/permissionCache/size", "1000"));
+		if(maxUsers <= 0){
+			log.info("Permission cache is disabled for repository "+name);
+			return;
+		}
+		long cacheTime = Long.parseLong(conf.getField("cinnamon_config/permissionCache/cacheTime", "60000"));
+		permissionCache = new PermissionCache(maxUsers, cacheTime);
+	}
+
+	void initializeSearchPermissionFilter(ConfThreadLocal conf){
+		// requires the index items index.acl and index.owner and a complete reindex:
+		if(! conf.getField("cinnamon_config/searchPermissionFilter/enabled", "false").equals("true")){
+			log.debug("Search permission filter is disabled, search results are filtered after loading.");
+			return;
+		}
+		long cacheTime = Long.parseLong(conf.getField("cinnamon_config/searchPermissionFilter/cacheTime", "60000"));
+		searchPermissionFilter = new SearchPermissionFilter(cacheTime, permissionCache);
+	}
+
+	void initializeTikaExtraction(ConfThreadLocal conf){
+		if(! conf.getField("cinnamon_config/tikaExtraction/async", "false").equals("true")){
+			log.debug("Content is extracted with Tika in the request thread.");
+			return;
+		}
+		int workers = Integer.parseInt(conf.getField("cinnamon_config/tikaExtraction/workers", "2"));
+		int queueSize = Integer.parseInt(conf.getField("cinnamon_config/tikaExtraction/queueSize", "100"));
+		tikaExtractionService = new TikaExtractionService(this, Math.max(1, workers), Math.max(1, queueSize));
+	}
+
+	void initializeContentCompression(ConfThreadLocal conf){
+		List<String> formats = new ArrayList<String>();
+		for(String format : conf.getField("cinnamon_config/contentCompression/formats", "").split(",")){
+			if(format.trim().length() > 0){
+				formats.add(format.trim());
+			}
+		}
+		if(formats.isEmpty()){
+			log.debug("Content is stored uncompressed.");
+			return;
+		}
+		long minSize = Long.parseLong(conf.getField("cinnamon_config/contentCompression/minSize", "1024"));
+		contentCompression = new ContentCompression(name, formats, minSize);
+		derivedFileCleanup.addFolder(contentCompression.getFolder(), ContentCompression.SUFFIX);
+	}
+
 	void purgeSessionTable(EntityManager em){
 	    SessionDAO sessionDAO = daoFactory.getSessionDAO(em);
 	    sessionDAO.deleteAll();
@@ -249,6 +359,141 @@ public class CinnamonRepository implements Repository{
         this.customHibernateSession = customHibernateSession;
     }
 
+    /**
+     * @return the cache of validated session tickets, or null if the session cache is disabled.
+     */
+    public SessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    /**
+     * @return the queue of pending index operations, or null if the index queue is disabled.
+     */
+    public IndexQueue getIndexQueue() {
+        return indexQueue;
+    }
+
+    /**
+     * @return the filter which restricts search queries to browsable items, or null if it is disabled.
+     */
+    public SearchPermissionFilter getSearchPermissionFilter() {
+        return searchPermissionFilter;
+    }
+
+    /**
+     * @return the cache of effective permissions, or null if it is disabled.
+     */
+    public PermissionCache getPermissionCache() {
+        return permissionCache;
+    }
+
+    /**
+     * Remove all cached permission data (effective permissions and browsable ACLs of the search filter).
+     * Must be called after a change to ACLs, AclEntries, groups, group memberships or permissions.
+     * The caches are invalidated immediately and again after the current transaction has been
+     * committed (see {@link DeferredInvalidation}).
+     */
+    public void invalidatePermissionCaches() {
+        clearPermissionCaches();
+        DeferredInvalidation.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                clearPermissionCaches();
+            }
+        });
+    }
+
+    void clearPermissionCaches() {
+        if (permissionCache != null) {
+            permissionCache.invalidate();
+        }
+        if (searchPermissionFilter != null) {
+            searchPermissionFilter.invalidate();
+        }
+    }
+
+    /**
+     * @return the resolver (and cache) for the parent links of folders.
+     */
+    public FolderAncestry getFolderAncestry() {
+        return folderAncestry;
+    }
+
+    /**
+     * @return the cache for getFolderByPath, or null if it is disabled.
+     */
+    public FolderPathCache getFolderPathCache() {
+        return folderPathCache;
+    }
+
+    /**
+     * @return the background Tika extraction service, or null if content is extracted in the request thread.
+     */
+    public TikaExtractionService getTikaExtractionService() {
+        return tikaExtractionService;
+    }
+
+    /**
+     * @return the repository's WorkflowServer (which only executes transitions if it has been started).
+     */
+    public WorkflowServer getWorkflowServer() {
+        return workflowServer;
+    }
+
+    /**
+     * @return the cache of settings which are read from ConfigEntries.
+     */
+    public ConfigEntryCache getConfigEntryCache() {
+        return configEntryCache;
+    }
+
+    /**
+     * @return the content-addressed content store, or null if content deduplication is disabled.
+     */
+    public DeduplicatingContentStore getContentStore() {
+        return contentStore;
+    }
+
+    /**
+     * @return the compressed copies of stored content, or null if no compressed copies are stored.
+     */
+    public ContentCompression getContentCompression() {
+        return contentCompression;
+    }
+
+    /**
+     * @return the cleanup of files which are derived from content files.
+     */
+    public DerivedFileCleanup getDerivedFileCleanup() {
+        return derivedFileCleanup;
+    }
+
+    /**
+     * Stop the background threads and timers of this repository: the WorkflowServer and its
+     * TransitionExecutor, the SessionCache renewals, the IndexQueue, the Tika extraction and the
+     * cleanup of content blobs and derived files. Called by CmnServer.destroy().
+     */
+    public void shutdown() {
+        if (workflowServer != null) {
+            workflowServer.shutdown();
+        }
+        if (sessionCache != null) {
+            sessionCache.shutdown();
+        }
+        if (indexQueue != null) {
+            indexQueue.shutdown();
+        }
+        if (tikaExtractionService != null) {
+            tikaExtractionService.shutdown();
+        }
+        if (contentStore != null) {
+            contentStore.shutdown();
+        }
+        if (derivedFileCleanup != null) {
+            derivedFileCleanup.shutdown();
+        }
+    }
+
     public Connection getAuditConnection() {
         return auditConnection;
     }
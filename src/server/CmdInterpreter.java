@@ -45,7 +45,12 @@ import server.exceptions.CinnamonException;
 import server.global.Conf;
 import server.global.ConfThreadLocal;
 import server.global.PermissionName;
+import server.helpers.KeysetPager;
+import server.helpers.LongHashSet;
 import server.helpers.MetasetService;
+import server.helpers.PageSelection;
+import server.helpers.PhaseTimer;
+import server.helpers.QueryScroller;
 import server.i18n.Language;
 import server.i18n.LocalMessage;
 import server.i18n.Message;
@@ -55,23 +60,39 @@ import server.interfaces.*;
 import server.references.Link;
 import server.references.LinkService;
 import server.references.LinkType;
+import server.response.RangeFileResponse;
+import server.response.CompressedFileResponse;
 import server.response.FileResponse;
 import server.response.HtmlResponse;
+import server.response.StreamingXmlResponse;
 import server.response.TextResponse;
 import server.response.XmlResponse;
 import server.global.Constants;
+import server.tika.TikaExtractionService;
+import server.tika.TikaIndexText;
 import server.tika.TikaParser;
 import utils.ContentReader;
 import utils.FileKeeper;
 import utils.HibernateSession;
 import utils.ParamParser;
 import utils.security.HashMaker;
+import workflow.WorkflowServer;
 import org.slf4j.MDC;
 
 public class CmdInterpreter extends ApiClass implements ApiProvider {
 
     private Logger log = LoggerFactory.getLogger(this.getClass());
+    /**
+     * Logs the time spent in the phases of each request (on debug level).
+     */
+    private static Logger timingLog = LoggerFactory.getLogger("server.timing");
     private static DAOFactory daoFactory = DAOFactory.instance(DAOFactory.HIBERNATE);
+    /**
+     * The UiLanguage of the messages in this thread's LocalMessage, if they have been loaded by
+     * {@link #initializeLocalMessage(Long)}. Requests of cached sessions only reload the messages
+     * if the language differs or the messages are older than localMessageCacheTime.
+     */
+    private static final ThreadLocal<LoadedMessages> loadedMessages = new ThreadLocal<LoadedMessages>();
     /**
      * Allowed values for the "parameter" field for setSysMeta.
      */
@@ -114,12 +135,21 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
             command = "(none given)";
         }
 
-        String ticket;
+        String ticket = null;
         Response response = null;
         User user = null;
         Long sessionId = null;
         String username = null;
         Long userId = null;
+        /*
+         * In unit-of-work mode, session validation and the command share one transaction
+         * (and one database connection). After-work triggers always run in their own transaction
+         * after the command has been committed, and the index is only updated after that, so it
+         * never contains changes which have been rolled back.
+         */
+        boolean unitOfWork = conf.getField("cinnamon_config/singleTransaction", "false").equals("true");
+        Session sessionToCache = null;
+        PhaseTimer timer = new PhaseTimer();
         try {
             // setup helper objects and attributes
             if (cmd.containsKey("ticket") && !cmd.containsValue("forksession")) {
@@ -139,32 +169,61 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
                 log.debug("initialize Session");
                 
                 LocalRepository.setRepository(repository);
-                EntityTransaction et = em.getTransaction();
-                et.begin();
+                SessionCache sessionCache = findSessionCache(repository);
+                SessionCache.CachedSession cachedSession = null;
+                if (sessionCache != null && !command.equals("disconnect")) {
+                    cachedSession = sessionCache.get(ticket);
+                }
                 Session session = null;
-                try {
-                    session = Session.initSession(em, ticket, repository.getName(), command);
-                    if(session != null){ // session may be null if it was not found and command=disconnect
-                        sessionId = session.getId();
-                        userId = session.getUser().getId();
-                        username = session.getUser().getName();
-                        log.debug("found user: " + userId);
+                if (cachedSession != null) {
+                    log.debug("found session in cache");
+                    sessionId = cachedSession.getSessionId();
+                    userId = cachedSession.getUserId();
+                    username = cachedSession.getUsername();
+                    log.debug("initializeLocalMessage");
+                    initializeLocalMessage(cachedSession.getLanguageId());
+                } else {
+                    EntityTransaction et = em.getTransaction();
+                    et.begin();
+                    if (unitOfWork) {
+                        etx = et;
                     }
-                    et.commit();
-                } catch (Exception e) {
-                    et.rollback();
-                    throw e;
-                } finally {
-                    if (session != null) {
-                        log.debug("initializeLocalMessage");
-                        MessageDAO mDao = daoFactory.getMessageDAO(em);
-                        LocalMessage.initializeLocalMessage(mDao, session.getLanguage());
+                    try {
+                        session = Session.initSession(em, ticket, repository.getName(), command);
+                        if (session != null) { // session may be null if it was not found and command=disconnect
+                            sessionId = session.getId();
+                            userId = session.getUser().getId();
+                            username = session.getUser().getName();
+                            log.debug("found user: " + userId);
+                        }
+                        if (session != null && sessionCache != null && !command.equals("disconnect")) {
+                            sessionToCache = session;
+                        }
+                        if (!unitOfWork) {
+                            et.commit();
+                            if (sessionToCache != null) {
+                                sessionCache.put(ticket, sessionToCache);
+                                sessionToCache = null;
+                            }
+                        }
+                    } catch (Exception e) {
+                        et.rollback();
+                        throw e;
+                    } finally {
+                        if (session != null) {
+                            log.debug("initializeLocalMessage");
+                            MessageDAO mDao = daoFactory.getMessageDAO(em);
+                            LocalMessage.initializeLocalMessage(mDao, session.getLanguage());
+                            Long languageId = session.getLanguage() == null ? null : session.getLanguage().getId();
+                            loadedMessages.set(new LoadedMessages(languageId, System.currentTimeMillis()));
+                        }
                     }
                 }
 
-                if (conf.getUseSessionLogging() && session != null) {
+                if (conf.getUseSessionLogging() && sessionId != null) {
                     activateSessionLogging(ticket, repository, sessionId, username);
                 }
+                timer.mark("session");
             } else if (cmd.containsKey("repository") || cmd.containsValue("forksession")) {
                 String repo = (String) cmd.get("repository");
                 if (repo == null && cmd.containsValue("forksession")) {
@@ -196,7 +255,9 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
                 log.debug(String.format("%s='%s'", key, cmd.get(key).toString()));
             }
             etx = getEm().getTransaction();
-            etx.begin();
+            if (!etx.isActive()) {
+                etx.begin();
+            }
 
             if (userId != null) {
                 log.debug("load session's user");
@@ -206,7 +267,15 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
             }
             CommandRegistry commandRegistry = repository.getCommandRegistry();
             response = commandRegistry.invoke(command, cmd, res, user, repository);
+            timer.mark("command");
+            // changed objects are indexed (or queued) after all transactions have been committed.
+            IndexQueue indexQueue = findIndexQueue(repository);
             etx.commit();
+            DeferredInvalidation.runDeferred();
+            timer.mark("commit");
+            if (sessionToCache != null) {
+                findSessionCache(repository).put(ticket, sessionToCache);
+            }
             
             EntityTransaction afterWorkTransaction = null;
             try{
@@ -215,6 +284,7 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
                 afterWorkTransaction.begin();
                 response = commandRegistry.executeAfterWorkTriggers(command, cmd, res, user, repository, response);
                 afterWorkTransaction.commit();
+                DeferredInvalidation.runDeferred();
             }
             catch (Exception e){
                 log.error("Exception occurred in afterWorkTrigger:",e);
@@ -227,26 +297,55 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
                     }
                 }
             }
+            timer.mark("afterWork");
             
             if(repository.getAuditConnection() != null){
                 log.debug("commit audit log");
                 repository.getAuditConnection().commit();                        
             }            
             
-            log.debug("Update Lucene Index");
-            EntityTransaction indexUpdate = em.getTransaction();
-            indexUpdate.begin();
-            Map<Indexable, IndexAction> updatedObjects = LocalRepository.getUpdatedObjects();
-            for(Indexable indexable : updatedObjects.keySet()){
-                log.debug("Working on indexable #"+indexable.myId());
-                LuceneBridge luceneBridge = repository.getLuceneBridge();
-                switch(updatedObjects.get(indexable)){
-                    case ADD: luceneBridge.addObjectToIndex(indexable, false);break;
-                    case UPDATE: luceneBridge.updateObjectInIndex(indexable);break;
-                    case REMOVE: luceneBridge.removeObjectFromIndex(indexable);break;
+            if (indexQueue != null) {
+                long lastIndexOperation = indexQueue.enqueue(LocalRepository.getUpdatedObjects());
+                if ("true".equals(cmd.get("sync_index"))) {
+                    // the client wants to read its own writes from the index.
+                    long timeout = Long.parseLong(conf.getField("cinnamon_config/indexQueue/syncTimeout", "10000"));
+                    indexQueue.awaitFlush(lastIndexOperation, timeout);
                 }
-            }           
-            indexUpdate.commit();
+                timer.mark("index");
+            }
+            else {
+                EntityTransaction indexUpdate = em.getTransaction();
+                indexUpdate.begin();
+                updateIndex();
+                indexUpdate.commit();
+                timer.mark("index");
+            }
+
+            TikaExtractionService tikaService = findTikaExtractionService(repository);
+            if (tikaService != null) {
+                // the workers need the committed objects.
+                tikaService.submitDeferred();
+            }
+            WorkflowServer workflowServer = findWorkflowServer(repository);
+            if (workflowServer != null) {
+                // ready tasks and deadlines of this request:
+                workflowServer.submitDeferred();
+            }
+
+            if (response instanceof StreamingXmlResponse) {
+                // streaming responses read their content from the database while they are written.
+                EntityTransaction streamTransaction = em.getTransaction();
+                streamTransaction.begin();
+                try {
+                    response.write();
+                } finally {
+                    // the response does not change anything.
+                    if (streamTransaction.isActive()) {
+                        streamTransaction.rollback();
+                    }
+                }
+                timer.mark("stream");
+            }
 
             log.debug("closing em after invoke.");
             getEm().close();
@@ -257,6 +356,8 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
              */
             FileKeeper.getInstance().finishDeleteFiles();
         } catch (CinnamonException e) {
+            // the transaction must be closed before initializeLocalMessage starts a new one.
+            rollback(etx);
             initializeLocalMessage();
             XmlResponse resp = new XmlResponse(res);
             Element root = resp.getDoc().addElement("error");
@@ -267,7 +368,6 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
             }
             log.debug("CinnamonException:\n" + resp.getDoc().asXML(), e);
             response = resp;
-            rollback(etx);
         } catch (Exception exception) {
             log.debug("An exception occurred: ", exception);
 
@@ -304,6 +404,15 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
 
         } finally {
             LocalRepository.cleanUp();
+            DeferredInvalidation.discardDeferred();
+            TikaExtractionService tikaService = findTikaExtractionService(repository);
+            if (tikaService != null) {
+                tikaService.discardDeferred();
+            }
+            WorkflowServer workflowServer = findWorkflowServer(repository);
+            if (workflowServer != null) {
+                workflowServer.discardDeferred();
+            }
             if (conf.getUseSessionLogging()) {
                 clearSessionLogging();
             }
@@ -331,6 +440,26 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
             }
 
             response.write();
+            timingLog.debug(command + ": " + timer.toString());
+        }
+    }
+
+    /**
+     * Update the index with the objects which were changed by the current request.
+     * Must be called after the changes have been committed.
+     */
+    void updateIndex() {
+        log.debug("Update Lucene Index");
+        Map<Indexable, IndexAction> updatedObjects = LocalRepository.getUpdatedObjects();
+        LuceneBridge luceneBridge = repository.getLuceneBridge();
+        for (Map.Entry<Indexable, IndexAction> entry : updatedObjects.entrySet()) {
+            Indexable indexable = entry.getKey();
+            log.debug("Working on indexable #" + indexable.myId());
+            switch (entry.getValue()) {
+                case ADD: TikaIndexText.addToIndex(luceneBridge, indexable, repository.getName()); break;
+                case UPDATE: TikaIndexText.updateInIndex(luceneBridge, indexable, repository.getName()); break;
+                case REMOVE: luceneBridge.removeObjectFromIndex(indexable); break;
+            }
         }
     }
 
@@ -348,10 +477,290 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
             log.error("Could not find the UiLanguage for 'und' in the database. Please fix your setup.");
             return;
         }
+        loadedMessages.remove();
         LocalMessage.initializeLocalMessage(mDao, undetermined);
         et.commit();        
     }
 
+    /**
+     * Initialize LocalMessage with the UiLanguage of a cached session. The messages are only
+     * loaded if this thread's LocalMessage does not already contain recent messages of the language.
+     *
+     * @param languageId id of the session's UiLanguage. If null, the undetermined language is used.
+     */
+    void initializeLocalMessage(Long languageId) {
+        long now = System.currentTimeMillis();
+        long cacheTime = Long.parseLong(conf.getField("cinnamon_config/localMessageCacheTime", "60000"));
+        LoadedMessages loaded = loadedMessages.get();
+        if (loaded != null && loaded.matches(languageId, now - cacheTime) && LocalMessage.wasInitialized()) {
+            return;
+        }
+        MessageDAO mDao = daoFactory.getMessageDAO(em);
+        UiLanguageDAO lDao = daoFactory.getUiLanguageDAO(em);
+        UiLanguage language = languageId == null ? lDao.findByIsoCode("und") : lDao.get(languageId);
+        LocalMessage.initializeLocalMessage(mDao, language);
+        loadedMessages.set(new LoadedMessages(languageId, now));
+    }
+
+    /**
+     * The language and load time of the messages in a thread's LocalMessage.
+     */
+    static class LoadedMessages {
+        final Long languageId;
+        final long loadedAt;
+
+        LoadedMessages(Long languageId, long loadedAt) {
+            this.languageId = languageId;
+            this.loadedAt = loadedAt;
+        }
+
+        boolean matches(Long languageId, long notBefore) {
+            return loadedAt >= notBefore
+                    && (this.languageId == null ? languageId == null : this.languageId.equals(languageId));
+        }
+    }
+
+    /**
+     * @param repository the current repository
+     * @return the repository's session cache, or null if it has none.
+     */
+    SessionCache findSessionCache(Repository repository) {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getSessionCache();
+        }
+        return null;
+    }
+
+    /**
+     * @param repository the current repository
+     * @return the repository's index queue, or null if changed objects are indexed synchronously.
+     */
+    IndexQueue findIndexQueue(Repository repository) {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getIndexQueue();
+        }
+        return null;
+    }
+
+    /**
+     * @param repository the current repository
+     * @return the repository's cache of folder parent links, or an uncached resolver.
+     */
+    FolderAncestry findFolderAncestry(Repository repository) {
+        if (repository instanceof CinnamonRepository) {
+            FolderAncestry ancestry = ((CinnamonRepository) repository).getFolderAncestry();
+            if (ancestry != null) {
+                return ancestry;
+            }
+        }
+        return new FolderAncestry(0);
+    }
+
+    /**
+     * @param repository the current repository
+     * @return the repository's background Tika extraction service, or null if content is extracted
+     *         in the request thread.
+     */
+    TikaExtractionService findTikaExtractionService(Repository repository) {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getTikaExtractionService();
+        }
+        return null;
+    }
+
+    /**
+     * Store a compressed copy of the new content file of an object if the repository compresses its format.
+     *
+     * @param osd an object whose content has been set
+     */
+    void compressContent(ObjectSystemData osd) {
+        ContentCompression compression = ContentCompression.find(repository);
+        if (compression != null) {
+            compression.compress(osd, repository.getName());
+        }
+    }
+
+    /**
+     * Extract the content of an object with Tika and store the result in its tika metaset -
+     * after the request, if the repository has a background extraction service.
+     *
+     * @param osd an object whose content has been set
+     */
+    void extractContent(ObjectSystemData osd) {
+        TikaExtractionService tikaService = findTikaExtractionService(repository);
+        if (tikaService == null) {
+            new TikaParser(findConfigEntryCache(repository)).parse(osd, repository.getName());
+        } else {
+            tikaService.schedule(osd);
+        }
+    }
+
+    /**
+     * @param repository the current repository
+     * @return the repository's WorkflowServer, or null.
+     */
+    WorkflowServer findWorkflowServer(Repository repository) {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getWorkflowServer();
+        }
+        return null;
+    }
+
+    /**
+     * Report an object whose procstate or metadata has changed to the WorkflowServer. If it is a task or
+     * workflow, the server executes its transition or schedules its deadline after the commit.
+     *
+     * @param osd the changed object
+     */
+    void scheduleWorkflowEvent(ObjectSystemData osd) {
+        WorkflowServer workflowServer = findWorkflowServer(repository);
+        if (workflowServer != null) {
+            workflowServer.schedule(osd);
+        }
+    }
+
+    /**
+     * @param repository the current repository
+     * @return the repository's cache of ConfigEntry settings, or null.
+     */
+    ConfigEntryCache findConfigEntryCache(Repository repository) {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getConfigEntryCache();
+        }
+        return null;
+    }
+
+    /**
+     * @param repository the current repository
+     * @return the repository's cache of effective permissions, or null if it is disabled.
+     */
+    PermissionCache findPermissionCache(Repository repository) {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getPermissionCache();
+        }
+        return null;
+    }
+
+    /**
+     * Check an ACL-level permission of the current user, using the permission cache if it is enabled.
+     *
+     * @param val            the current user's Validator
+     * @param acl            the ACL
+     * @param permissionName the name of the permission
+     * @return true if the permission is granted.
+     */
+    boolean hasPermission(Validator val, Acl acl, String permissionName) {
+        PermissionCache permissionCache = findPermissionCache(repository);
+        if (permissionCache != null) {
+            return permissionCache.isGranted(user, acl, permissionName);
+        }
+        try {
+            val.validatePermission(acl, permissionName);
+            return true;
+        } catch (Exception e) {
+            log.debug("", e);
+            return false;
+        }
+    }
+
+    /**
+     * Remove the objects which the current user may not browse. Objects whose ACL grants the
+     * browse permission (according to the permission cache) are accepted directly, only the others
+     * are checked by the Validator (which also considers the owner of each object).
+     *
+     * @param val     the current user's Validator
+     * @param objects the objects
+     * @return the browsable objects, in their original order
+     */
+    List<ObjectSystemData> filterUnbrowsableObjects(Validator val, List<ObjectSystemData> objects) {
+        PermissionCache permissionCache = findPermissionCache(repository);
+        if (permissionCache == null) {
+            return val.filterUnbrowsableObjects(objects);
+        }
+        List<ObjectSystemData> unchecked = new ArrayList<ObjectSystemData>();
+        for (ObjectSystemData osd : objects) {
+            if (!permissionCache.isGranted(user, osd.getAcl(), PermissionName.BROWSE_OBJECT)) {
+                unchecked.add(osd);
+            }
+        }
+        if (unchecked.isEmpty()) {
+            return new ArrayList<ObjectSystemData>(objects);
+        }
+        Set<ObjectSystemData> denied = Collections.newSetFromMap(new IdentityHashMap<ObjectSystemData, Boolean>());
+        denied.addAll(unchecked);
+        denied.removeAll(val.filterUnbrowsableObjects(unchecked));
+        List<ObjectSystemData> browsable = new ArrayList<ObjectSystemData>(objects.size());
+        for (ObjectSystemData osd : objects) {
+            if (!denied.contains(osd)) {
+                browsable.add(osd);
+            }
+        }
+        return browsable;
+    }
+
+    /**
+     * @param repository the current repository
+     * @return the repository's folder path cache, or null if it is disabled.
+     */
+    FolderPathCache findFolderPathCache(Repository repository) {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getFolderPathCache();
+        }
+        return null;
+    }
+
+    /**
+     * Remove the cached paths and parent links of a folder which has been renamed, moved or deleted,
+     * immediately and again after the current transaction has been committed.
+     *
+     * @param folderId the id of the folder
+     * @param moved    true if the folder's parent has changed or the folder has been deleted
+     */
+    void invalidateFolderCaches(final Long folderId, boolean moved) {
+        final FolderAncestry ancestry = moved ? findFolderAncestry(repository) : null;
+        final FolderPathCache pathCache = findFolderPathCache(repository);
+        Runnable invalidation = new Runnable() {
+            @Override
+            public void run() {
+                if (ancestry != null) {
+                    ancestry.invalidate(folderId);
+                }
+                if (pathCache != null) {
+                    pathCache.invalidate(folderId);
+                }
+            }
+        };
+        invalidation.run();
+        DeferredInvalidation.afterCommit(invalidation);
+    }
+
+    /**
+     * @param repository the current repository
+     * @return the repository's search permission filter, or null if search results are only filtered after loading.
+     */
+    SearchPermissionFilter findSearchPermissionFilter(Repository repository) {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getSearchPermissionFilter();
+        }
+        return null;
+    }
+
+    /**
+     * Restrict a Lucene query to items the current user may browse, if the repository's
+     * search permission filter is enabled. The results must still be filtered with a Validator.
+     *
+     * @param query           the client's query
+     * @param permissionNames the browse permissions (one of which) an item's ACL must grant
+     * @return the (filtered) query
+     */
+    String addPermissionFilter(String query, String... permissionNames) {
+        SearchPermissionFilter filter = findSearchPermissionFilter(repository);
+        if (filter == null || query == null || user.verifySuperuserStatus(em)) {
+            return query;
+        }
+        return filter.filterQuery(query, user, em, permissionNames);
+    }
+
     void rollback(EntityTransaction etx) {
         try {
             if (etx != null && etx.isActive()) {
@@ -507,6 +916,10 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
     public Response forkSession(Map<String, String> cmd) {
         XmlResponse resp = new XmlResponse(res);
         String ticket = cmd.get("ticket");
+        SessionCache sessionCache = findSessionCache(repository);
+        if (sessionCache != null) {
+            sessionCache.invalidate(ticket);
+        }
         SessionDAO sessionDAO = daoFactory.getSessionDAO(em);
         Session session;
         try {
@@ -581,6 +994,7 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
 
             log.debug("initializeLocalMessage");
             MessageDAO mDao = daoFactory.getMessageDAO(em);
+            loadedMessages.remove();
             LocalMessage.initializeLocalMessage(mDao, user.getLanguage());
 
             log.debug("sending password mail to: " + user.getEmail());
@@ -708,13 +1122,14 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         log.debug("osd created: " + osd);
 
         if (cmd.containsKey("file")) {
-            String contentPath = ContentStore.upload((UploadedFile) cmd.get("file"), repository.getName());
+            String contentPath = storeUpload((UploadedFile) cmd.get("file"), repository.getName());
             osd.setContentPath(contentPath, repository.getName());
             if (osd.getContentPath() != null &&
                     osd.getContentPath().length() == 0) {
                 throw new CinnamonException("error.storing.upload");
             }
-            new TikaParser().parse(osd, repository.getName());
+            compressContent(osd);
+            extractContent(osd);
         }
 
         log.debug("about to create object");
@@ -833,9 +1248,8 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         copy.setCreator(user);
         copy.setLocked_by(null);
 
-        // copy content
-        String repositoryName = repository.getName();
-        osd.copyContent(repositoryName, copy);
+        // copy content (or share it, with content deduplication)
+        DeduplicatingContentStore.copyContent(repository, osd, copy);
 
 //        log.debug("current object id before final commit: " + copy.getId());
         osdDAO.makePersistent(copy);
@@ -908,6 +1322,8 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         }
 
         CopyResult copyResult = sourceFolder.copyFolder(targetFolder, croakOnError, versions, user);
+        // the copy creates new folders below the target folder:
+        invalidateFolderCaches(targetFolderId, false);
 
         return new XmlResponse(res, copyResult.toXml());
     }
@@ -1636,6 +2052,7 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         Folder folder = folderDAO.get(id);
         (new Validator(user)).validateDeleteFolder(folder);
         folderDAO.delete(id);
+        invalidateFolderCaches(id, true);
         repository.getLuceneBridge().removeObjectFromIndex(folder);
 
         XmlResponse resp = new XmlResponse(res);
@@ -1678,31 +2095,51 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
      *            <ul>
      *            <li>command=getsubfolders</li>
      *            <li>parentid=parent folder id</li>
+     *            <li>[page_size]=optional: return at most this many folders, sorted by id (or name, see sort).
+     *            The root element then has the attributes has-more, next-after-id and next-after-name,
+     *            which are used as after_id and after_name to request the next page.</li>
+     *            <li>[after_id]=optional: id of the last item of the previous page</li>
+     *            <li>[after_name]=optional: name of the last item of the previous page (with sort=name)</li>
+     *            <li>[sort]=optional: id (default) or name</li>
      *            <li>ticket=session ticket</li>
      *            </ul>
      * @return XML-Response:
-     *         XML document with subfolders.
+     *         XML document with subfolders. Links to folders are only included on the first page.
      */
     @CinnamonMethod(checkTrigger = "true")
     public Response getSubfolders(Map<String, String> cmd) {
         Long parentId = ParamParser.parseLong(cmd.get("parentid"), "error.param.id");
 
         FolderDAO folderDAO = daoFactory.getFolderDAO(em);
-        List<Folder> folders = folderDAO.getSubfolders(parentId);
-
-        log.debug("found " + folders.size() + " subfolders");
-
+        final Validator val = (new Validator(user));
         XmlResponse resp = new XmlResponse(res);
         Element root = resp.getDoc().addElement("folders");
-        Validator val = (new Validator(user));
-        for (Folder f : folders) {
-            try {
-                val.validateGetFolder(f);
-            } catch (Exception e) {
-                log.debug("", e);
-                continue;
+        if (cmd.containsKey("page_size")) {
+            // the root folder is its own parent.
+            KeysetPager<Folder> pager = new KeysetPager<Folder>(em, "Folder", "f",
+                    "f.parent.id = :parentId and f.id <> :parentId", folderKey);
+            pager.setParameter("parentId", parentId);
+            pager.setFilter(new KeysetPager.Filter<Folder>() {
+                @Override
+                public List<Folder> filter(List<Folder> items) {
+                    return filterUnbrowsableFolders(val, items);
+                }
+            });
+            KeysetPager.Page<Folder> page = fetchPage(pager, cmd);
+            page.addToElement(root);
+            for (Folder f : page.getItems()) {
+                f.toXmlElement(root);
+            }
+            if (!isFirstPage(cmd)) {
+                return resp;
+            }
+        }
+        else {
+            List<Folder> folders = folderDAO.getSubfolders(parentId);
+            log.debug("found " + folders.size() + " subfolders");
+            for (Folder f : filterUnbrowsableFolders(val, folders)) {
+                f.toXmlElement(root);
             }
-            f.toXmlElement(root);
         }
         
         log.debug("Looking for links.");
@@ -1710,12 +2147,8 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         Collection<Link> links = linkService.findLinksIn(folderDAO.get(parentId), LinkType.FOLDER);
         log.debug("Found "+links.size()+" links.");
         for(Link link : links){
-            try{
-                val.validatePermission(link.getAcl(), PermissionName.BROWSE_FOLDER);
-                val.validatePermission(link.getFolder().getAcl(), PermissionName.BROWSE_FOLDER);
-            }
-            catch (Exception e){
-                log.debug("",e);
+            if (!hasPermission(val, link.getAcl(), PermissionName.BROWSE_FOLDER)
+                    || !hasPermission(val, link.getFolder().getAcl(), PermissionName.BROWSE_FOLDER)) {
                 continue;
             }
             Element folderNode = link.getFolder().toXmlElement(root);
@@ -1724,6 +2157,25 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         return resp;
     }
 
+    List<Folder> filterUnbrowsableFolders(Validator val, List<Folder> folders) {
+        PermissionCache permissionCache = findPermissionCache(repository);
+        List<Folder> browsable = new ArrayList<Folder>(folders.size());
+        for (Folder f : folders) {
+            if (permissionCache != null && permissionCache.isGranted(user, f.getAcl(), PermissionName.BROWSE_FOLDER)) {
+                browsable.add(f);
+                continue;
+            }
+            try {
+                val.validateGetFolder(f);
+            } catch (Exception e) {
+                log.debug("", e);
+                continue;
+            }
+            browsable.add(f);
+        }
+        return browsable;
+    }
+
     /**
      * The getrelations command retrieves a list of relations.
      * Without the "name", leftid and rightid parameters, it lists all relations.
@@ -1737,6 +2189,9 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
      *            <li>rightid=id of "right object" (optional)</li>
      *            <li>[include_metadata] = optional parameter whether to include or exclude metadata
      *            from the XML response, defaults to 'true'</li>
+     *            <li>[page_size]=optional: return at most this many relations, sorted by id.
+     *            The root element then has the attributes has-more and next-after-id.</li>
+     *            <li>[after_id]=optional: id of the last relation of the previous page</li>
      *            <li>ticket=session ticket</li>
      *            </ul>
      * @return XML response: the serialized relation objects.
@@ -1775,6 +2230,15 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
             type = rtDao.findByName(cmd.get("name"));
         }
 
+        Boolean includeMetadata = true;
+        if (cmd.containsKey("include_metadata")) {
+            includeMetadata = Boolean.parseBoolean(cmd.get("include_metadata"));
+        }
+
+        if (cmd.containsKey("page_size")) {
+            return getRelationPage(cmd, left, right, type, includeMetadata);
+        }
+
         log.debug("Select and execute the right query.");
         List<Relation> relations;
         RelationDAO relDao = daoFactory.getRelationDAO(em);
@@ -1812,16 +2276,11 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
             } else {
                 // all
                 // who in their right mind would do this on a production db?
-                log.debug("findAll - this may take a long time!");
-                relations = relDao.list();
+                log.debug("findAll - streaming all relations.");
+                return streamRelations(includeMetadata);
             }
         }
 
-        Boolean includeMetadata = true;
-        if (cmd.containsKey("include_metadata")) {
-            includeMetadata = Boolean.parseBoolean(cmd.get("include_metadata"));
-        }
-
         log.debug(String.format("Found %d relations", relations.size()));
         XmlResponse resp = new XmlResponse(res);
         Element root = resp.getDoc().addElement("relations");
@@ -1831,6 +2290,59 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         return resp;
     }
 
+    Response getRelationPage(Map<String, String> cmd, ObjectSystemData left, ObjectSystemData right,
+                             RelationType type, Boolean includeMetadata) {
+        StringBuilder condition = new StringBuilder("1 = 1");
+        if (left != null) {
+            condition.append(" and r.left = :left");
+        }
+        if (right != null) {
+            condition.append(" and r.right = :right");
+        }
+        if (type != null) {
+            condition.append(" and r.type = :type");
+        }
+        KeysetPager<Relation> pager = new KeysetPager<Relation>(em, "Relation", "r", condition.toString(), relationKey);
+        if (left != null) {
+            pager.setParameter("left", left);
+        }
+        if (right != null) {
+            pager.setParameter("right", right);
+        }
+        if (type != null) {
+            pager.setParameter("type", type);
+        }
+        KeysetPager.Page<Relation> page = fetchPage(pager, cmd, false);
+        XmlResponse resp = new XmlResponse(res);
+        Element root = resp.getDoc().addElement("relations");
+        page.addToElement(root);
+        for (Relation r : page.getItems()) {
+            r.toXmlElement(root, includeMetadata);
+        }
+        return resp;
+    }
+
+    /**
+     * Create a response which writes all relations while they are read from the database.
+     */
+    Response streamRelations(final Boolean includeMetadata) {
+        return new StreamingXmlResponse(res, "relations", new StreamingXmlResponse.ElementSource() {
+            @Override
+            public void addElements(final StreamingXmlResponse.Sink sink) {
+                final QueryScroller scroller = new QueryScroller(em);
+                scroller.scroll("select r from Relation r order by r.id", new QueryScroller.RowHandler<Relation>() {
+                    @Override
+                    public void handle(Relation relation, int row) {
+                        relation.toXmlElement(sink.getParent(), includeMetadata);
+                        if ((row + 1) % scroller.getFetchSize() == 0 && sink.flush()) {
+                            scroller.clear();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * The getrelationtypes command retrieves a list of all relation types.
      *
@@ -1963,17 +2475,19 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
 
         FolderDAO folderDAO = daoFactory.getFolderDAO(em);
         Validator validator = new Validator(user);
-        List<Folder> folderList = folderDAO.findAllByPath(path, autoCreate, validator);
+        FolderPathCache pathCache = findFolderPathCache(repository);
+        List<Folder> folderList = pathCache == null ? null : pathCache.get(path, em);
+        if (folderList == null) {
+            long generation = pathCache == null ? 0 : pathCache.getGeneration();
+            folderList = folderDAO.findAllByPath(path, autoCreate, validator);
+            if (pathCache != null) {
+                pathCache.put(path, folderList, generation);
+            }
+        }
         XmlResponse resp = new XmlResponse(res);
         Element root = resp.getDoc().addElement("folders");
         Validator val = (new Validator(user));
-        for (Folder f : folderList) {
-            try {
-                val.validateGetFolder(f);
-            } catch (Exception e) {
-                log.debug("", e);
-                continue;
-            }
+        for (Folder f : filterUnbrowsableFolders(val, folderList)) {
             f.toXmlElement(root);
         }
         return resp;
@@ -2042,6 +2556,13 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
      *            <li>id=id of object to be retrieved</li>
      *            <li>resultfile=file to store the object to</li>
      *            <li>ticket=session ticket</li>
+     *            <li>[range]= optional byte range like "bytes=1000-", taken from the HTTP Range header
+     *            if present. Only used if rangeDownload is enabled in the server configuration.</li>
+     *            <li>[if_none_match]= optional ETag, taken from the HTTP If-None-Match header if present.
+     *            Only used if rangeDownload is enabled in the server configuration.</li>
+     *            <li>[accept_encoding]= optional, taken from the HTTP Accept-Encoding header if present:
+     *            if it contains gzip and a compressed copy of the content is stored, the copy is sent
+     *            with Content-Encoding: gzip.</li>
      *            </ul>
      * @return the raw content of the object as byte stream (MIME-type: binary/octet-stream)
      */
@@ -2058,8 +2579,32 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
             throw new CinnamonException("error.content.not.found");
         }
         File file = new File(filename);
-        return new FileResponse(res, filename,
-                osd.getContentSize(), file.getName());
+        ContentCompression compression = ContentCompression.find(repository);
+        if (compression != null && CompressedFileResponse.acceptsGzip(cmd.get(CompressedFileResponse.PARAM_ACCEPT_ENCODING))) {
+            File compressedFile = compression.findCompressedFile(osd);
+            if (compressedFile != null) {
+                return new CompressedFileResponse(res, compressedFile, file.getName());
+            }
+        }
+        return createFileResponse(cmd, file, osd.getContentSize(), file.getName());
+    }
+
+    /**
+     * Create a Response which sends a file to the client. If rangeDownload is enabled
+     * in the configuration, the client may use byte ranges and ETags.
+     *
+     * @param cmd  the HTTP request parameter map
+     * @param file the file to send
+     * @param size size of the file
+     * @param name the filename which is sent to the client
+     * @return a FileResponse
+     */
+    Response createFileResponse(Map<String, String> cmd, File file, Long size, String name) {
+        if (conf.getField("cinnamon_config/rangeDownload", "false").equals("true")) {
+            return new RangeFileResponse(res, file, name,
+                    cmd.get(RangeFileResponse.PARAM_RANGE), cmd.get(RangeFileResponse.PARAM_IF_NONE_MATCH));
+        }
+        return new FileResponse(res, file.getAbsolutePath(), size, name);
     }
 
     /**
@@ -2076,16 +2621,26 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
      *            <li>command=getobjects</li>
      *            <li>parentid=parent folder id</li>
      *            <li>versions=all,branch,head (optional, default=head)</li>
+     *            <li>[page_size]=optional: return at most this many objects, sorted by id (or name, see sort).
+     *            The root element then has the attributes has-more, next-after-id and next-after-name,
+     *            which are used as after_id and after_name to request the next page.</li>
+     *            <li>[after_id]=optional: id of the last item of the previous page</li>
+     *            <li>[after_name]=optional: name of the last item of the previous page (with sort=name)</li>
+     *            <li>[sort]=optional: id (default) or name</li>
      *            <li>ticket=session ticket</li>
      *            </ul>
-     * @return XML-Response: List of object data as XML document.
+     * @return XML-Response: List of object data as XML document. Links to objects are only included
+     *         on the first page.
      */
     @CinnamonMethod(checkTrigger = "true")
     public Response getObjects(Map<String, String> cmd) {
+        if (cmd.containsKey("page_size")) {
+            return getObjectPage(cmd);
+        }
         ObjectSystemDataDAO oDao = daoFactory.getObjectSystemDataDAO(em);
         List<ObjectSystemData> results = oDao.getObjectsInFolder(cmd.get("versions"), cmd.get("parentid"));
         Validator val = new Validator(user);
-        results = val.filterUnbrowsableObjects(results);
+        results = filterUnbrowsableObjects(val, results);
         XmlResponse resp = new XmlResponse(res);
         
         Document doc = ObjectSystemData.generateQueryObjectResultDocument(results);        
@@ -2124,7 +2679,7 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         ObjectSystemDataDAO oDao = daoFactory.getObjectSystemDataDAO(em);
         List<ObjectSystemData> results = oDao.getObjectsInFolder(cmd.get("versions"), cmd.get("parentid"));
         Validator val = new Validator(user);
-        results = val.filterUnbrowsableObjects(results);
+        results = filterUnbrowsableObjects(val, results);
         val = new Validator(user);
         results = val.filterForCustomMetadata(results);
         XmlResponse resp = new XmlResponse(res);        
@@ -2134,6 +2689,99 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         return resp;
     }
 
+    Response getObjectPage(Map<String, String> cmd) {
+        Long parentId = ParamParser.parseLong(cmd.get("parentid"), "error.param.parent_id");
+        String condition = "o.parent.id = :parentId";
+        String versions = cmd.get("versions");
+        if (versions == null || versions.equals("head")) {
+            condition += " and o.latestHead = true";
+        } else if (versions.equals("branch")) {
+            condition += " and (o.latestHead = true or o.latestBranch = true)";
+        }
+        final Validator val = new Validator(user);
+        KeysetPager<ObjectSystemData> pager = new KeysetPager<ObjectSystemData>(em, "ObjectSystemData", "o",
+                condition, osdKey);
+        pager.setParameter("parentId", parentId);
+        pager.setFilter(new KeysetPager.Filter<ObjectSystemData>() {
+            @Override
+            public List<ObjectSystemData> filter(List<ObjectSystemData> items) {
+                return filterUnbrowsableObjects(val, items);
+            }
+        });
+        KeysetPager.Page<ObjectSystemData> page = fetchPage(pager, cmd);
+
+        XmlResponse resp = new XmlResponse(res);
+        Document doc = ObjectSystemData.generateQueryObjectResultDocument(page.getItems());
+        page.addToElement(doc.getRootElement());
+        if (isFirstPage(cmd)) {
+            addLinksToObjectQuery(cmd.get("parentid"), doc, val, false);
+        }
+        resp.setDoc(doc);
+        return resp;
+    }
+
+    static final KeysetPager.Key<ObjectSystemData> osdKey = new KeysetPager.Key<ObjectSystemData>() {
+        @Override
+        public Long getId(ObjectSystemData item) {
+            return item.getId();
+        }
+
+        @Override
+        public String getName(ObjectSystemData item) {
+            return item.getName();
+        }
+    };
+
+    static final KeysetPager.Key<Folder> folderKey = new KeysetPager.Key<Folder>() {
+        @Override
+        public Long getId(Folder item) {
+            return item.getId();
+        }
+
+        @Override
+        public String getName(Folder item) {
+            return item.getName();
+        }
+    };
+
+    static final KeysetPager.Key<Relation> relationKey = new KeysetPager.Key<Relation>() {
+        @Override
+        public Long getId(Relation item) {
+            return item.getId();
+        }
+
+        @Override
+        public String getName(Relation item) {
+            // relations are always sorted by id.
+            return null;
+        }
+    };
+
+    <T> KeysetPager.Page<T> fetchPage(KeysetPager<T> pager, Map<String, String> cmd) {
+        return fetchPage(pager, cmd, true);
+    }
+
+    /**
+     * Fetch the page requested by the parameters page_size, after_id, after_name and sort.
+     * @param sortByName whether the items may be sorted by name - otherwise they are always sorted by id.
+     */
+    <T> KeysetPager.Page<T> fetchPage(KeysetPager<T> pager, Map<String, String> cmd, boolean sortByName) {
+        int pageSize = ParamParser.parseInt(cmd.get("page_size"), "error.param.page_size");
+        Long afterId = null;
+        if (cmd.containsKey("after_id")) {
+            afterId = ParamParser.parseLong(cmd.get("after_id"), "error.param.after_id");
+        }
+        KeysetPager.SortOrder sortOrder = KeysetPager.SortOrder.ID;
+        if (sortByName && "name".equals(cmd.get("sort"))) {
+            sortOrder = KeysetPager.SortOrder.NAME;
+        }
+        return pager.fetch(pageSize, afterId, cmd.get("after_name"), sortOrder);
+    }
+
+    boolean isFirstPage(Map<String, String> cmd) {
+        return !cmd.containsKey("after_id") && !cmd.containsKey("after_name");
+    }
+
     void addLinksToObjectQuery(String parentId, Document doc, Validator val, Boolean withMetadata){
         FolderDAO fDao = daoFactory.getFolderDAO(em);
         Folder parent = fDao.get(parentId);
@@ -2142,11 +2790,8 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         Collection<Link> links = linkService.findLinksIn(parent, LinkType.OBJECT);
         log.debug("Found " + links.size() + " links.");
         for (Link link : links) {
-            try {
-                val.validatePermission(link.getAcl(), PermissionName.BROWSE_OBJECT);
-                val.validatePermission(link.getOsd().getAcl(), PermissionName.BROWSE_OBJECT);
-            } catch (Exception e) {
-                log.debug("", e);
+            if (!hasPermission(val, link.getAcl(), PermissionName.BROWSE_OBJECT)
+                    || !hasPermission(val, link.getOsd().getAcl(), PermissionName.BROWSE_OBJECT)) {
                 continue;
             }
             Element osdNode = link.getOsd().toXmlElement(root);
@@ -2338,6 +2983,18 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         else{
             configEntry.setConfig(config.asXML());
         }
+        final ConfigEntryCache configEntryCache = findConfigEntryCache(repository);
+        if(configEntryCache != null){
+            // again after the commit, in case a concurrent request has cached the old entry.
+            final String entryName = name;
+            configEntryCache.invalidate(entryName);
+            DeferredInvalidation.afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    configEntryCache.invalidate(entryName);
+                }
+            });
+        }
         return new XmlResponse(res, "<configEntryId>"+configEntry.getId()+"</configEntryId>");
     }
 
@@ -2569,6 +3226,7 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
 
         osd.setMetadata(metadata);
         osd.updateAccess(getUser());
+        scheduleWorkflowEvent(osd);
 
         XmlResponse resp = new XmlResponse(res);
         Element root = resp.getDoc().addElement("cinnamon");
@@ -2720,6 +3378,7 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         } else if (parameter.equals("procstate")) {
             validator.validateSetSysMeta(osd);
             osd.setProcstate(value);
+            scheduleWorkflowEvent(osd);
         } else if (parameter.equals("appname")) {
             validator.validateSetSysMeta(osd);
             osd.setAppName(value);
@@ -2836,13 +3495,14 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         if (cmd.containsKey("file")) {
             String format = (String) cmd.get("format");
             log.debug("file_format: " + format);
-            String contentPath = ContentStore.upload((UploadedFile) cmd.get("file"), repositoryName);
+            String contentPath = storeUpload((UploadedFile) cmd.get("file"), repositoryName);
             if (contentPath.length() == 0) {
                 throw new CinnamonException("error.store.upload");
             }
             // TODO: should not query format type by name - use id instead!
             osd.setContentPathAndFormat(contentPath, format, repositoryName);
-            new TikaParser().parse(osd, repository.getName());
+            compressContent(osd);
+            extractContent(osd);
         }
         osd.updateAccess(getUser());
         
@@ -2905,14 +3565,15 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         (new Validator(user)).validateVersion(pre);
 
         if (cmd.containsKey("file")) {
-            String contentPath = ContentStore.upload((UploadedFile) cmd.get("file"),
+            String contentPath = storeUpload((UploadedFile) cmd.get("file"),
                     repository.getName());
             osd.setContentPath(contentPath, repository.getName());
             if (osd.getContentPath() == null ||
                     osd.getContentPath().length() == 0) {
                 throw new CinnamonException("error.storing.upload");
             }
-            new TikaParser().parse(osd, repository.getName());
+            compressContent(osd);
+            extractContent(osd);
         }
 
         // index new object:
@@ -2957,6 +3618,10 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
      */
     @CinnamonMethod(checkTrigger = "true")
     public Response disconnect(Map<String, String> cmd) {
+        SessionCache sessionCache = findSessionCache(repository);
+        if (sessionCache != null) {
+            sessionCache.invalidate(cmd.get("ticket"));
+        }
         SessionDAO sessionDao = daoFactory.getSessionDAO(em);
         Session s = sessionDao.findByTicket(cmd.get("ticket"));
         if(s != null){
@@ -2967,6 +3632,221 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         return resp;
     }
 
+    /**
+     * Commands which may not be part of a batch, because they create, fork or end the session
+     * or (for batch) would nest.
+     */
+    static final List<String> nonBatchCommands = Arrays.asList("batch", "connect", "disconnect", "forksession");
+
+    /**
+     * The batch command executes a list of commands in one request, so a client which needs the results
+     * of many small commands (for example, getFolder, getSubfolders and getObjects) has to pay for request
+     * parsing and session validation only once. All commands are executed with the session of the
+     * batch request and in the given order. Uploads are not supported.
+     *
+     * @param cmd HTTP request parameter map:
+     *            <ul>
+     *            <li>command=batch</li>
+     *            <li>commands=XML list of commands:
+     *            {@code
+     *            <commands>
+     *              <command name="getfolder"><param name="id">12</param></command>
+     *              <command name="getobjects"><param name="parentid">12</param></command>
+     *            </commands>
+     *            }
+     *            </li>
+     *            <li>[transaction]=shared or separate (default). With a shared transaction, an error in one
+     *            command rolls back the changes of all commands and the remaining commands are skipped.
+     *            With separate transactions, each command is committed on its own and an error only
+     *            affects the failed command.</li>
+     *            <li>ticket=session ticket</li>
+     *            </ul>
+     * @return XML-Response: one result element per command, containing the command's response
+     *         or its error:
+     *         {@code
+     *         <batch>
+     *           <result index="0" command="getfolder"><folders>...</folders></result>
+     *           <result index="1" command="getobjects"><error><code>...</code><message>...</message></error></result>
+     *           <result index="2" command="getsubfolders"><skipped/></result>
+     *         </batch>
+     *         }
+     */
+    @CinnamonMethod
+    public Response batch(Map<String, String> cmd) {
+        Document commands = ParamParser.parseXmlToDocument(cmd.get("commands"), "error.param.commands");
+        boolean sharedTransaction = "shared".equals(cmd.get("transaction"));
+        List<Node> commandNodes = commands.selectNodes("/commands/command");
+        CommandRegistry commandRegistry = repository.getCommandRegistry();
+
+        XmlResponse resp = new XmlResponse(res);
+        Element root = resp.getDoc().addElement("batch");
+        // commands whose after-work triggers must be executed after the next commit:
+        List<Map<String, Object>> committedParams = new ArrayList<Map<String, Object>>();
+        List<Response> committedResponses = new ArrayList<Response>();
+        // the objects to index after the last commit: restored if a command is rolled back.
+        Map<Indexable, IndexAction> committedUpdates = new HashMap<Indexable, IndexAction>(LocalRepository.getUpdatedObjects());
+        boolean failed = false;
+        EntityTransaction transaction = em.getTransaction();
+        int index = 0;
+        for (Node commandNode : commandNodes) {
+            String name = ((Element) commandNode).attributeValue("name", "").toLowerCase();
+            Element result = root.addElement("result");
+            result.addAttribute("index", String.valueOf(index++));
+            result.addAttribute("command", name);
+            if (failed) {
+                result.addElement("skipped");
+                continue;
+            }
+
+            Map<String, Object> params = new HashMap<String, Object>();
+            for (Object paramNode : commandNode.selectNodes("param")) {
+                Element param = (Element) paramNode;
+                params.put(param.attributeValue("name"), param.getText());
+            }
+            params.put("command", name);
+            params.put("ticket", cmd.get("ticket"));
+
+            try {
+                if (nonBatchCommands.contains(name)) {
+                    throw new CinnamonException("error.batch.command_not_allowed", name);
+                }
+                Response response = commandRegistry.invoke(name, params, res, user, repository);
+                if (!(response instanceof XmlResponse)) {
+                    // file and text responses cannot be combined into one XML document.
+                    throw new CinnamonException("error.batch.response_type", name);
+                }
+                Element responseRoot = ((XmlResponse) response).getDoc().getRootElement();
+                if (responseRoot != null) {
+                    result.add(responseRoot.detach());
+                }
+                committedParams.add(params);
+                committedResponses.add(response);
+                if (!sharedTransaction) {
+                    transaction.commit();
+                    submitBatchChanges();
+                    executeBatchAfterWorkTriggers(commandRegistry, committedParams, committedResponses);
+                    committedUpdates = new HashMap<Indexable, IndexAction>(LocalRepository.getUpdatedObjects());
+                    transaction.begin();
+                }
+            } catch (Exception e) {
+                log.debug("batch command " + name + " failed:", e);
+                addBatchError(result, e);
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+                List<Long> rolledBackIds = findObjectIds(LocalRepository.getUpdatedObjects());
+                discardBatchChanges(committedUpdates);
+                // the persistence context may contain changes of the failed command.
+                em.clear();
+                transaction.begin();
+                // the FileKeeper must not delete the content of the rolled back objects.
+                RolledBackDeletions.discard(em, repository.getName(), rolledBackIds);
+                user = daoFactory.getUserDAO(em).get(user.getId());
+                committedParams.clear();
+                committedResponses.clear();
+                failed = sharedTransaction;
+            }
+        }
+        if (sharedTransaction && !committedParams.isEmpty()) {
+            transaction.commit();
+            executeBatchAfterWorkTriggers(commandRegistry, committedParams, committedResponses);
+            transaction.begin();
+        }
+        return resp;
+    }
+
+    /**
+     * Hand over the side effects of the committed batch commands: deferred Tika extractions and
+     * workflow events are submitted, deferred cache invalidations are run and content files which
+     * were replaced or deleted are removed.
+     */
+    void submitBatchChanges() {
+        TikaExtractionService tikaService = findTikaExtractionService(repository);
+        if (tikaService != null) {
+            tikaService.submitDeferred();
+        }
+        WorkflowServer workflowServer = findWorkflowServer(repository);
+        if (workflowServer != null) {
+            workflowServer.submitDeferred();
+        }
+        DeferredInvalidation.runDeferred();
+        FileKeeper.getInstance().finishDeleteFiles();
+    }
+
+    /**
+     * Forget the side effects of rolled back batch commands, so they do not reach the index,
+     * the background services or the file system after the next commit.
+     *
+     * @param committedUpdates the objects to index as they were after the last commit
+     */
+    void discardBatchChanges(Map<Indexable, IndexAction> committedUpdates) {
+        Map<Indexable, IndexAction> updatedObjects = LocalRepository.getUpdatedObjects();
+        updatedObjects.clear();
+        updatedObjects.putAll(committedUpdates);
+        TikaExtractionService tikaService = findTikaExtractionService(repository);
+        if (tikaService != null) {
+            tikaService.discardDeferred();
+        }
+        WorkflowServer workflowServer = findWorkflowServer(repository);
+        if (workflowServer != null) {
+            workflowServer.discardDeferred();
+        }
+        DeferredInvalidation.discardDeferred();
+    }
+
+    /**
+     * @param updatedObjects the objects which have been changed by the current transaction
+     * @return the ids of the changed objects (folders do not have content).
+     */
+    List<Long> findObjectIds(Map<Indexable, IndexAction> updatedObjects) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Indexable indexable : updatedObjects.keySet()) {
+            if (indexable instanceof ObjectSystemData) {
+                ids.add(indexable.myId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Execute the after-work triggers of committed batch commands, each in its own transaction.
+     * The lists are cleared afterwards.
+     */
+    void executeBatchAfterWorkTriggers(CommandRegistry commandRegistry, List<Map<String, Object>> paramList,
+                                       List<Response> responses) {
+        EntityTransaction transaction = em.getTransaction();
+        for (int i = 0; i < paramList.size(); i++) {
+            Map<String, Object> params = paramList.get(i);
+            try {
+                transaction.begin();
+                commandRegistry.executeAfterWorkTriggers((String) params.get("command"), params, res, user,
+                        repository, responses.get(i));
+                transaction.commit();
+            } catch (Exception e) {
+                log.warn("Failed to execute afterWork triggers of batch command " + params.get("command"), e);
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+            }
+        }
+        paramList.clear();
+        responses.clear();
+    }
+
+    void addBatchError(Element result, Exception e) {
+        Element error = result.addElement("error");
+        if (e instanceof CinnamonException) {
+            if (LocalMessage.wasInitialized()) {
+                ((CinnamonException) e).addToElement(error, LocalMessage.getInstance().get());
+            } else {
+                ((CinnamonException) e).addToElement(error, null);
+            }
+        } else {
+            error.addElement("code").addText(e.toString());
+            error.addElement("message").addText(String.valueOf(e.getLocalizedMessage()));
+        }
+    }
+
     /**
      * Set name, parent folder, metadata, owner and/or ACL of a folder.
      *
@@ -2994,6 +3874,9 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
 
         (new Validator(user)).validateUpdateFolder(cmd, folder);
         folder = folderDao.update(id, cmd);
+        if (cmd.containsKey("parentid") || cmd.containsKey("name")) {
+            invalidateFolderCaches(id, cmd.containsKey("parentid"));
+        }
         XmlResponse resp = new XmlResponse(res);
         resp.addTextNode("success", "success.update.folder");
         return resp;
@@ -3114,17 +3997,22 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
      */
     @CinnamonMethod(checkTrigger = "true")
     public Response getUsers(Map<String, String> cmd) {
-        XmlResponse resp = new XmlResponse(res);
-
-        UserDAO userDAO = daoFactory.getUserDAO(em);
-
-        Document doc = resp.getDoc();
-        List<User> users = userDAO.list();
-        Element root = doc.addElement("users");
-        for (User user : users) {
-            root.add(User.asElement("user", user));
-        }
-        return resp;
+        // the list of users is written while it is read from the database.
+        return new StreamingXmlResponse(res, "users", new StreamingXmlResponse.ElementSource() {
+            @Override
+            public void addElements(final StreamingXmlResponse.Sink sink) {
+                final QueryScroller scroller = new QueryScroller(em);
+                scroller.scroll("select u from User u order by u.id", new QueryScroller.RowHandler<User>() {
+                    @Override
+                    public void handle(User user, int row) {
+                        sink.getParent().add(User.asElement("user", user));
+                        if ((row + 1) % scroller.getFetchSize() == 0 && sink.flush()) {
+                            scroller.clear();
+                        }
+                    }
+                });
+            }
+        });
     }
 
 
@@ -3432,7 +4320,8 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
     public Response search(Map<String, String> cmd) {
         ResultCollector results;
         LuceneBridge lucene = repository.getLuceneBridge();
-        results = lucene.search(cmd.get("query"));
+        String query = addPermissionFilter(cmd.get("query"), PermissionName.BROWSE_OBJECT, PermissionName.BROWSE_FOLDER);
+        results = lucene.search(query);
         log.debug("Received search results, now filtering");
         if (user.verifySuperuserStatus(em)) {
             log.debug("No need to filter results for superuser.");
@@ -3579,29 +4468,31 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         Element root = resp.getDoc().addElement("objects");
         root.addAttribute("total-results", String.valueOf(resultStore.size()));
 
+        Collection<XmlConvertable> serializedItems;
         if (cmd.containsKey("page_size")) {
-            addPagedResultsToElement(root, resultStore, cmd);
+            serializedItems = addPagedResultsToElement(root, resultStore, cmd);
         } else {
             for (XmlConvertable conv : resultStore) {
                 conv.toXmlElement(root);
             }
+            serializedItems = resultStore;
         }
 
-        addPathFolders(resp.getDoc());
+        addPathFolders(root, collectParentIds(serializedItems));
         return resp;
     }
 
-    void addPagedResultsToElement(Element root, Set<XmlConvertable> resultStore, Map<String, String> cmd) {
-        List<XmlConvertable> itemList = new ArrayList<XmlConvertable>();
-        itemList.addAll(resultStore);
-
-        if (itemList.isEmpty()) {
+    /**
+     * Serialize one page of the results (sorted by id).
+     * @return the serialized items
+     */
+    List<XmlConvertable> addPagedResultsToElement(Element root, Set<XmlConvertable> resultStore, Map<String, String> cmd) {
+        List<XmlConvertable> pageItems = new ArrayList<XmlConvertable>();
+        if (resultStore.isEmpty()) {
             // if result list is empty, we can skip further sorting and serializing.
-            return;
+            return pageItems;
         }
 
-        Collections.sort(itemList); // sort by id
-
         int pageSize = ParamParser.parseLong(cmd.get("page_size"), "error.param.max_results").intValue();
         int page = 1;
         if (cmd.containsKey("page")) {
@@ -3616,11 +4507,18 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
             pageSize = 1;
         }
 
-        int start = pageSize * (page - 1);
-        int end = pageSize * page;
-        for (int x = start; x < end && x < itemList.size(); x++) {
-            itemList.get(x).toXmlElement(root);
+        long start = (long) pageSize * (page - 1);
+        if (start >= resultStore.size()) {
+            return pageItems;
+        }
+        int end = (int) Math.min(start + pageSize, resultStore.size());
+
+        // select the page without copying and sorting the whole result:
+        pageItems = PageSelection.select(resultStore, (int) start, end);
+        for (XmlConvertable item : pageItems) {
+            item.toXmlElement(root);
         }
+        return pageItems;
     }
 
     /**
@@ -3659,20 +4557,19 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
         Element root = resp.getDoc().addElement("folders");
         root.addAttribute("total-results", String.valueOf(resultStore.size()));
 
+        Collection<XmlConvertable> serializedItems;
         if (cmd.containsKey("page_size")) {
-            addPagedResultsToElement(root, resultStore, cmd);
+            serializedItems = addPagedResultsToElement(root, resultStore, cmd);
         } else {
             for (XmlConvertable conv : resultStore) {
                 conv.toXmlElement(root);
             }
+            serializedItems = resultStore;
         }
 
-        addPathFolders(resp.getDoc());
-
         // add parent folders of search results to enable display of folder structure without
         // repeated path reloads.
-
-
+        addPathFolders(root, collectParentIds(serializedItems));
         return resp;
     }
 
@@ -3758,56 +4655,73 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
             return resp;
         }
         else{
-            return new FileResponse(res, zipFile.getAbsolutePath(), zipFile.length(), zipFile.getName());
+            return createFileResponse(cmd, zipFile, zipFile.length(), zipFile.getName());
         }
     }
 
     /**
-     * Add a parentFolders node to the document's root node which contains
-     * all referenced folder's ancestors up to the root node.
-     *
-     * @param doc document with serialized Folders and or OSDs.
+     * @param items serialized Folders and / or OSDs
+     * @return the ids of the items' parent folders
      */
-    @SuppressWarnings("unchecked")
-    void addPathFolders(Document doc) {
-        List<Node> parentFolders = doc.selectNodes("//folder/parentId|//object/parentId");
-        log.debug("# of parentFolderNodes: " + parentFolders.size());
-        FolderDAO fDao = daoFactory.getFolderDAO(em);
-        /*
-         * The second set "ids" is used so we do not have to perform full equals() on a potentially
-         * large number of Folder objects.
-         */
-        Set<Long> ids = new HashSet<Long>();
-        Set<XmlConvertable> folders = new HashSet<XmlConvertable>();
-        for (Node node : parentFolders) {
-            Long id = Long.parseLong(node.getText());
-            if (ids.contains(id)) {
-                // folder is already in result set.
-                continue;
+    LongHashSet collectParentIds(Collection<XmlConvertable> items) {
+        LongHashSet parentIds = new LongHashSet(items.size());
+        for (XmlConvertable item : items) {
+            Folder parent = null;
+            if (item instanceof ObjectSystemData) {
+                parent = ((ObjectSystemData) item).getParent();
+            } else if (item instanceof Folder) {
+                parent = ((Folder) item).getParent();
             }
-            Folder folder = fDao.get(id);
-            folders.add(folder);
-            // check if we need to add the folder's parent:
-            if (!ids.contains(folder.getParent().getId())) {
-                List<Folder> parents = fDao.getParentFolders(folder);
-                folders.addAll(parents);
-                for (Folder parent : parents) {
-                    ids.add(parent.getId());
-                }
+            if (parent != null) {
+                parentIds.add(parent.getId());
             }
         }
+        return parentIds;
+    }
 
-        // add serialized elements to response document:
-        Element root = doc.getRootElement();
+    /**
+     * Add a parentFolders node to the root node which contains
+     * the given folders and all their ancestors up to the root node.
+     *
+     * @param root      root element of a response with serialized Folders and or OSDs.
+     * @param parentIds the ids of the parent folders of the serialized items
+     */
+    void addPathFolders(Element root, LongHashSet parentIds) {
+        log.debug("# of parent folders: " + parentIds.size());
+        FolderAncestry ancestry = findFolderAncestry(repository);
+        long[] ids = ancestry.resolveAncestors(parentIds, em);
         Element pathFolderNode = root.addElement("parentFolders");
-        for (XmlConvertable folder : folders) {
+        for (Folder folder : ancestry.loadFolders(ids, em)) {
             folder.toXmlElement(pathFolderNode);
         }
     }
 
+    /**
+     * Move an uploaded file into the content store. Files received by the streaming
+     * parser are simply renamed into place (or, with content deduplication, linked to the blob of
+     * their checksum), all others are copied by the ContentStore.
+     *
+     * @param uploadedFile   the uploaded file
+     * @param repositoryName name of the current repository
+     * @return the content path of the stored file
+     * @throws IOException if the ContentStore fails to copy the file.
+     */
+    String storeUpload(UploadedFile uploadedFile, String repositoryName) throws IOException {
+        if (uploadedFile instanceof StreamedUpload) {
+            DeduplicatingContentStore contentStore = DeduplicatingContentStore.find(repository);
+            if (contentStore != null) {
+                return contentStore.store((StreamedUpload) uploadedFile);
+            }
+            return ((StreamedUpload) uploadedFile).moveToContentStore(repositoryName);
+        }
+        return ContentStore.upload(uploadedFile, repositoryName);
+    }
+
     Set<XmlConvertable> fetchSearchResults(Map<String, String> cmd, Class<? extends Indexable> indexable) {
         log.debug("start search");
-        ResultCollector results = repository.getLuceneBridge().search(cmd.get("query"));
+        String permissionName = Folder.class.equals(indexable) ? PermissionName.BROWSE_FOLDER : PermissionName.BROWSE_OBJECT;
+        String query = addPermissionFilter(cmd.get("query"), permissionName);
+        ResultCollector results = repository.getLuceneBridge().search(query);
         log.debug("Received search results, now filtering");
         // log.debug(results.getSearchResultsAsXML().asXML());
         Validator val = new Validator(user);
@@ -4032,6 +4946,9 @@ public class CmdInterpreter extends ApiClass implements ApiProvider {
 
         MetasetService metasetService = new MetasetService();
         Metaset metaset = metasetService.createOrUpdateMetaset(metasetOwner, metasetType, cmd.get("content"), writePolicy);
+        if (metasetOwner instanceof ObjectSystemData) {
+            scheduleWorkflowEvent((ObjectSystemData) metasetOwner);
+        }
 
         XmlResponse resp = new XmlResponse(res);
         resp.getDoc().add(Metaset.asElement("meta",metaset));
@@ -40,6 +40,8 @@ import org.slf4j.LoggerFactory;
 import server.global.Constants;
 import server.interfaces.Repository;
 import server.interfaces.Response;
+import server.response.RangeFileResponse;
+import server.response.CompressedFileResponse;
 import server.response.XmlResponse;
 import server.account.MailValidator;
 import server.account.PasswordReset;
@@ -58,6 +60,7 @@ public class CmnServer extends HttpServlet
 	
 	private FileItemFactory diskFileItemFactory;
 	private HttpPostParser httpPostParser;
+	private Boolean streamingUpload = false;
 	
 	public CmnServer(){
 	}
@@ -82,6 +85,10 @@ public class CmnServer extends HttpServlet
 			
 			diskFileItemFactory = new DiskFileItemFactory();
 			httpPostParser =new HttpPostParser();
+			if(conf.getField("cinnamon_config/streamingUpload", "false").equals("true")){
+				log.info("Streaming upload is enabled: uploaded files are written once and renamed into the content store.");
+				streamingUpload = true;
+			}
 
 			for (String repositoryName : conf.getRepositoryList()) {
 				log.debug("Found repository in configuration: " + repositoryName);
@@ -137,7 +144,12 @@ public class CmnServer extends HttpServlet
     		log.debug("Post A");
     		Map<String,Object> cmd  ;
     		try{    			
-    			cmd= httpPostParser.parse(req,conf, diskFileItemFactory);
+    			if(streamingUpload){
+    				cmd = httpPostParser.parseStreaming(req, conf);
+    			}
+    			else{
+    				cmd= httpPostParser.parse(req,conf, diskFileItemFactory);
+    			}
     		}
     		catch (Exception e) {
     			log.warn("Creating error response.");
@@ -150,6 +162,11 @@ public class CmnServer extends HttpServlet
     			throw e;
 			}
 
+    		// conditional, partial and compressed downloads:
+    		copyHeader(req, "Range", cmd, RangeFileResponse.PARAM_RANGE);
+    		copyHeader(req, "If-None-Match", cmd, RangeFileResponse.PARAM_IF_NONE_MATCH);
+    		copyHeader(req, "Accept-Encoding", cmd, CompressedFileResponse.PARAM_ACCEPT_ENCODING);
+
     		CmdInterpreter ci = new CmdInterpreter();
 			ci.interpret(cmd,res,repositories);
 //    		log.debug("Post C "+cmd.get("command"));
@@ -159,6 +176,17 @@ public class CmnServer extends HttpServlet
 		
     }
 
+	/**
+	 * Copy an HTTP header into the parameter map, so API methods (which only see the
+	 * parameters) can use it. An explicit request parameter of the same name takes precedence.
+	 */
+	void copyHeader(HttpServletRequest req, String header, Map<String,Object> cmd, String paramName){
+		String value = req.getHeader(header);
+		if(value != null && ! cmd.containsKey(paramName)){
+			cmd.put(paramName, value);
+		}
+	}
+
 	@Override
 	public void doGet( HttpServletRequest request, HttpServletResponse resp )
   		throws ServletException, IOException {
@@ -201,5 +229,15 @@ public class CmnServer extends HttpServlet
 
 	@Override
 	public void destroy() {
+		for(Repository repo : repositories.values()){
+			if(repo instanceof CinnamonRepository){
+				try{
+					((CinnamonRepository) repo).shutdown();
+				}
+				catch (Exception e) {
+					log.warn("Failed to shut down repository "+repo.getName(), e);
+				}
+			}
+		}
 	}
 }
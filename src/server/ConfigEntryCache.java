@@ -0,0 +1,119 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.dao.ConfigEntryDAO;
+import server.dao.DAOFactory;
+
+/**
+ * Per-repository cache of settings which are read from ConfigEntries, for example the Tika
+ * blacklist which is needed on every upload.
+ * <p>
+ * A setting is defined by a {@link Setting}, which converts the ConfigEntry (or its absence) into
+ * a value that can be used directly, for example a compiled Pattern. The cache stores the converted
+ * value, so code which reads a setting neither queries the database nor parses XML.
+ * </p>
+ * <p>
+ * setConfigEntry calls {@link #invalidate(String)}. Changes made outside of the server (for
+ * example by the administration tool) become visible after the configured timeToLive
+ * (cinnamon_config/configEntryCache/cacheTime, in milliseconds, default: 60000).
+ * </p>
+ */
+public class ConfigEntryCache {
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+    static DAOFactory daoFactory = DAOFactory.instance(DAOFactory.HIBERNATE);
+
+    /**
+     * Converts a ConfigEntry into the value of a setting. Implementations must be stateless,
+     * because the same instance is used as the key of the cached value.
+     *
+     * @param <T> the type of the setting
+     */
+    public interface Setting<T> {
+        /**
+         * @param entry the ConfigEntry, or null if it does not exist
+         * @return the value of the setting (for example, a default value if the entry is missing)
+         */
+        T parse(ConfigEntry entry);
+    }
+
+    static class CachedValue {
+        final Object value;
+        final long loadedAt = System.currentTimeMillis();
+
+        CachedValue(Object value) {
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentMap<String, ConcurrentMap<Setting<?>, CachedValue>> entries =
+            new ConcurrentHashMap<String, ConcurrentMap<Setting<?>, CachedValue>>();
+    private final AtomicLong generation = new AtomicLong();
+    private final long timeToLive;
+
+    public ConfigEntryCache(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param name    the name of the ConfigEntry
+     * @param setting the conversion of the ConfigEntry
+     * @param em      the EntityManager which is used to load the ConfigEntry if it is not cached
+     * @param <T>     the type of the setting
+     * @return the value of the setting
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String name, Setting<T> setting, EntityManager em) {
+        ConcurrentMap<Setting<?>, CachedValue> values = entries.get(name);
+        if (values != null) {
+            CachedValue cached = values.get(setting);
+            if (cached != null && System.currentTimeMillis() - cached.loadedAt < timeToLive) {
+                return (T) cached.value;
+            }
+        }
+        long currentGeneration = generation.get();
+        log.debug("loading ConfigEntry " + name);
+        ConfigEntryDAO ceDao = daoFactory.getConfigEntryDAO(em);
+        T value = setting.parse(ceDao.findByName(name));
+        // do not store values which were loaded while the cache was invalidated.
+        if (generation.get() == currentGeneration) {
+            if (values == null) {
+                entries.putIfAbsent(name, new ConcurrentHashMap<Setting<?>, CachedValue>());
+                values = entries.get(name);
+            }
+            values.put(setting, new CachedValue(value));
+        }
+        return value;
+    }
+
+    /**
+     * Remove the cached settings of a ConfigEntry which has been created or changed.
+     *
+     * @param name the name of the ConfigEntry
+     */
+    public void invalidate(String name) {
+        log.debug("invalidate ConfigEntry " + name);
+        generation.incrementAndGet();
+        entries.remove(name);
+    }
+
+    /**
+     * Remove all cached settings.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+}
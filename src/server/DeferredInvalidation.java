@@ -0,0 +1,67 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache invalidations which are repeated after the current transaction has been committed.
+ * <p>
+ * A cache which is invalidated by a command before its transaction is committed may be filled
+ * again by a concurrent request which still reads the old committed state - and keeps that state
+ * until the entry expires. So commands invalidate their caches immediately (for the rest of the
+ * request) and register the same invalidation with {@link #afterCommit(Runnable)}. CmdInterpreter
+ * runs the registered invalidations after the commit with {@link #runDeferred()} and forgets them
+ * at the end of the request.
+ * </p>
+ */
+public class DeferredInvalidation {
+
+    private static final Logger log = LoggerFactory.getLogger(DeferredInvalidation.class);
+
+    private static final ThreadLocal<List<Runnable>> deferred = new ThreadLocal<List<Runnable>>();
+
+    private DeferredInvalidation() {
+    }
+
+    /**
+     * Run an invalidation again after the current thread's transaction has been committed.
+     *
+     * @param invalidation the invalidation
+     */
+    public static void afterCommit(Runnable invalidation) {
+        List<Runnable> invalidations = deferred.get();
+        if (invalidations == null) {
+            invalidations = new ArrayList<Runnable>();
+            deferred.set(invalidations);
+        }
+        invalidations.add(invalidation);
+    }
+
+    /**
+     * Run the invalidations which have been registered by the current thread since the last call.
+     */
+    public static void runDeferred() {
+        List<Runnable> invalidations = deferred.get();
+        if (invalidations == null) {
+            return;
+        }
+        deferred.remove();
+        for (Runnable invalidation : invalidations) {
+            try {
+                invalidation.run();
+            } catch (RuntimeException e) {
+                log.warn("Failed to invalidate a cache after the commit.", e);
+            }
+        }
+    }
+
+    /**
+     * Forget the invalidations which have been registered by the current thread.
+     */
+    public static void discardDeferred() {
+        deferred.remove();
+    }
+}
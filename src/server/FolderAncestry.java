@@ -0,0 +1,179 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.helpers.LongHashSet;
+
+/**
+ * Resolves the ancestors of many folders at once, for example the path folders of a search result.
+ * <p>
+ * The parent links (folder id to parent id) are loaded level by level with one query for all
+ * folders of a level, so the number of queries depends on the depth of the folder tree and not on the
+ * number of folders. The links of recently used folders are kept in a bounded LRU cache per repository;
+ * the upper levels of the tree are shared by most paths and are usually resolved without a query.
+ * </p>
+ * <p>
+ * Commands which move or delete a folder must call {@link #invalidate(Long)}. Creating or copying
+ * folders does not change any existing link.
+ * </p>
+ */
+public class FolderAncestry {
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Maximum number of ids in one "in" clause (SQL Server allows about 2100 parameters).
+     */
+    static final int MAX_IDS_PER_QUERY = 500;
+
+    private final int maxSize;
+    private final Map<Long, Long> parents;
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of cached parent links, 0 disables the cache.
+     */
+    @SuppressWarnings("serial")
+    public FolderAncestry(final int maxSize) {
+        this.maxSize = maxSize;
+        this.parents = new LinkedHashMap<Long, Long>(Math.max(16, Math.min(maxSize, 10000)), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param folderIds ids of folders
+     * @param em        the EntityManager
+     * @return the given ids and the ids of all their ancestors up to the root folder, in ascending order.
+     */
+    public long[] resolveAncestors(LongHashSet folderIds, EntityManager em) {
+        LongHashSet result = new LongHashSet(folderIds.size() * 2);
+        long[] current = folderIds.toSortedArray();
+        int queries = 0;
+        while (current.length > 0) {
+            for (long id : current) {
+                result.add(id);
+            }
+            Map<Long, Long> links = new LinkedHashMap<Long, Long>();
+            List<Long> missing = new ArrayList<Long>();
+            synchronized (parents) {
+                for (long id : current) {
+                    Long parentId = parents.get(id);
+                    if (parentId == null) {
+                        missing.add(id);
+                    } else {
+                        links.put(id, parentId);
+                    }
+                }
+            }
+            if (!missing.isEmpty()) {
+                links.putAll(loadParentIds(missing, em));
+                queries++;
+            }
+            LongHashSet next = new LongHashSet(links.size());
+            for (Map.Entry<Long, Long> link : links.entrySet()) {
+                Long parentId = link.getValue();
+                // the root folder is its own parent.
+                if (parentId != null && !parentId.equals(link.getKey()) && !result.contains(parentId)) {
+                    next.add(parentId);
+                }
+            }
+            current = next.toSortedArray();
+        }
+        log.debug(String.format("resolved %d path folders with %d queries", result.size(), queries));
+        return result.toSortedArray();
+    }
+
+    /**
+     * Load folders with as few queries as possible.
+     *
+     * @param ids the ids of the folders
+     * @param em  the EntityManager
+     * @return the folders, ordered by id
+     */
+    @SuppressWarnings("unchecked")
+    public List<Folder> loadFolders(long[] ids, EntityManager em) {
+        List<Long> idList = new ArrayList<Long>(ids.length);
+        for (long id : ids) {
+            idList.add(id);
+        }
+        List<Folder> folders = new ArrayList<Folder>();
+        for (List<Long> chunk : split(idList)) {
+            Query query = em.createQuery("select f from Folder f where f.id in (:ids) order by f.id");
+            query.setParameter("ids", chunk);
+            folders.addAll(query.getResultList());
+        }
+        return folders;
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<Long, Long> loadParentIds(List<Long> ids, EntityManager em) {
+        long currentGeneration = generation.get();
+        Map<Long, Long> links = new LinkedHashMap<Long, Long>();
+        for (List<Long> chunk : split(ids)) {
+            Query query = em.createQuery("select f.id, f.parent.id from Folder f where f.id in (:ids)");
+            query.setParameter("ids", chunk);
+            for (Object[] row : (List<Object[]>) query.getResultList()) {
+                links.put((Long) row[0], (Long) row[1]);
+            }
+        }
+        if (maxSize > 0) {
+            synchronized (parents) {
+                // do not cache links which may have been loaded before a move was committed.
+                if (generation.get() == currentGeneration) {
+                    parents.putAll(links);
+                }
+            }
+        }
+        return links;
+    }
+
+    List<List<Long>> split(List<Long> ids) {
+        List<List<Long>> chunks = new ArrayList<List<Long>>();
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+            chunks.add(ids.subList(start, Math.min(ids.size(), start + MAX_IDS_PER_QUERY)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Remove the cached parent link of a folder which has been moved or deleted.
+     *
+     * @param folderId the id of the folder
+     */
+    public void invalidate(Long folderId) {
+        synchronized (parents) {
+            generation.incrementAndGet();
+            parents.remove(folderId);
+        }
+    }
+
+    /**
+     * Remove all cached parent links.
+     */
+    public void invalidateAll() {
+        synchronized (parents) {
+            generation.incrementAndGet();
+            parents.clear();
+        }
+    }
+
+    public int getCachedCount() {
+        synchronized (parents) {
+            return parents.size();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded LRU cache which maps folder paths (like /system/config) to the ids of the folders
+ * along the path, as returned by FolderDAO.findAllByPath. A cached path is resolved with one query
+ * which loads all its folders, instead of one query per path segment.
+ * <p>
+ * Before a cached result is returned, it is checked against the loaded folders: each folder must
+ * still exist, have the name of its path segment and be the child of the previous folder. So a
+ * stale entry causes a cache miss, not a wrong result. Commands which rename, move, delete or copy
+ * folders call {@link #invalidate(Long)} to remove affected entries early.
+ * </p>
+ */
+public class FolderPathCache {
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final int maxSize;
+    private final Map<String, Long[]> paths;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of cached paths
+     */
+    @SuppressWarnings("serial")
+    public FolderPathCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.paths = new LinkedHashMap<String, Long[]>(Math.max(16, Math.min(maxSize, 10000)), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long[]> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Look up a path.
+     *
+     * @param path the path, for example /system/config
+     * @param em   the EntityManager used to load the folders
+     * @return the folders along the path (in the order of FolderDAO.findAllByPath), or null if the
+     *         path is not cached or the cached entry is no longer valid.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Folder> get(String path, EntityManager em) {
+        String key = normalize(path);
+        Long[] ids;
+        synchronized (paths) {
+            ids = paths.get(key);
+        }
+        if (ids == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        Query query = em.createQuery("select f from Folder f where f.id in (:ids)");
+        query.setParameter("ids", Arrays.asList(ids));
+        Map<Long, Folder> folderMap = new HashMap<Long, Folder>();
+        for (Folder folder : (List<Folder>) query.getResultList()) {
+            folderMap.put(folder.getId(), folder);
+        }
+        List<Folder> folders = new ArrayList<Folder>(ids.length);
+        for (Long id : ids) {
+            Folder folder = folderMap.get(id);
+            if (folder == null) {
+                // the folder has been deleted.
+                remove(key);
+                misses.incrementAndGet();
+                return null;
+            }
+            folders.add(folder);
+        }
+        if (!matches(key, folders)) {
+            log.debug("cached path " + key + " is no longer valid.");
+            remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return folders;
+    }
+
+    /**
+     * Add the result of FolderDAO.findAllByPath to the cache.
+     *
+     * @param path       the path
+     * @param folders    the folders along the path
+     * @param generation the value of {@link #getGeneration()} before the path was resolved - if the
+     *                   cache has been invalidated since then, the result is not cached.
+     */
+    public void put(String path, List<Folder> folders, long generation) {
+        String key = normalize(path);
+        if (maxSize <= 0 || !matches(key, folders)) {
+            return;
+        }
+        Long[] ids = new Long[folders.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = folders.get(i).getId();
+        }
+        synchronized (paths) {
+            if (this.generation.get() == generation) {
+                paths.put(key, ids);
+            }
+        }
+    }
+
+    /**
+     * Check that the names of the last folders are the segments of the path and that each
+     * folder is the child of its predecessor.
+     */
+    boolean matches(String key, List<Folder> folders) {
+        List<String> segments = split(key);
+        if (folders.size() < segments.size()) {
+            return false;
+        }
+        int offset = folders.size() - segments.size();
+        for (int i = 0; i < folders.size(); i++) {
+            Folder folder = folders.get(i);
+            if (i >= offset && !segments.get(i - offset).equals(folder.getName())) {
+                return false;
+            }
+            if (i > 0 && (folder.getParent() == null || !folder.getParent().getId().equals(folders.get(i - 1).getId()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove all cached paths which contain the folder. Call this method after a folder has been
+     * renamed, moved or deleted, or when new folders have been created inside it.
+     *
+     * @param folderId the id of the folder
+     */
+    public void invalidate(Long folderId) {
+        synchronized (paths) {
+            generation.incrementAndGet();
+            Iterator<Long[]> iterator = paths.values().iterator();
+            while (iterator.hasNext()) {
+                if (Arrays.asList(iterator.next()).contains(folderId)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    void remove(String key) {
+        synchronized (paths) {
+            paths.remove(key);
+        }
+    }
+
+    /**
+     * @return the current generation, which is incremented by each invalidation.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    static List<String> split(String key) {
+        List<String> segments = new ArrayList<String>();
+        for (String segment : key.split("/")) {
+            if (segment.length() > 0) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    static String normalize(String path) {
+        StringBuilder key = new StringBuilder();
+        for (String segment : split(path)) {
+            key.append('/').append(segment);
+        }
+        return key.length() == 0 ? "/" : key.toString();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -25,10 +25,11 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.fileupload.*;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import server.data.ContentStore;
+import server.data.StreamedUpload;
 import server.data.UploadedFile;
 import server.exceptions.CinnamonConfigurationException;
 import server.global.Conf;
@@ -81,10 +82,7 @@ public class HttpPostParser {
 						File.separator + internalFileName;
 
 					File uploadedFile = new File(internalFilePath);
-                    InputStream inStream = item.getInputStream();
-                    ContentStore.copyStreamToFile(inStream, uploadedFile);
-                    inStream.close();
-
+					// write() renames the DiskFileItem's temp file if possible, so we do not copy twice.
 					item.write(uploadedFile);
 					UploadedFile uf=new UploadedFile(internalFilePath,
 							fieldName,
@@ -100,15 +98,72 @@ public class HttpPostParser {
 		}
 		catch (Exception e) {
 			log.debug("",e);
-			FileWriter errFile = new FileWriter(conf.getSystemRoot() + "global" + 
-					conf.getSep() + "log" + 
-					conf.getSep() + "cinnamon-err.log", true);
-			PrintWriter toErrFile = new PrintWriter(errFile);
-			toErrFile.println(e.getMessage());
-			toErrFile.close();
+			writeErrorLog(conf, e);
+			throw new RuntimeException(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Parse the request with the streaming API of commons-fileupload. In contrast to
+	 * {@link #parse(HttpServletRequest, Conf, FileItemFactory)}, uploaded files are not
+	 * materialized by a FileItemFactory first: the bytes are written once into the file-buffer
+	 * folder while their size and SHA-256 checksum are computed. The resulting
+	 * {@link StreamedUpload} can then be renamed into the content store.
+	 * @param req the HTTP request
+	 * @param conf the Cinnamon configuration
+	 * @return a Map of the request parameters, with uploaded files stored under the key "file".
+	 * @throws IOException if the error log cannot be written.
+	 */
+	public Map<String,Object> parseStreaming(HttpServletRequest req, Conf conf)
+		throws IOException {
+
+		Map<String,Object> result = new HashMap<String,Object>();
+		try{
+			ServletFileUpload upload = new ServletFileUpload();
+			FileItemIterator iterator = upload.getItemIterator(req);
+			while (iterator.hasNext()) {
+				FileItemStream item = iterator.next();
+				String name = item.getFieldName();
+				InputStream stream = item.openStream();
+				if (item.isFormField()) {
+					result.put(name, Streams.asString(stream, FORM_FIELD_ENCODING));
+				}
+				else{
+					File fileBufferFolder = new File(conf.getDataRoot() + "file-buffer");
+					if(! fileBufferFolder.exists()){
+						stream.close();
+						throw new CinnamonConfigurationException("Folder 'file-buffer' in "+
+								conf.getDataRoot() + " is missing.");
+					}
+					StreamedUpload uf = StreamedUpload.receive(stream, fileBufferFolder,
+							name, item.getName(), item.getContentType());
+					result.put("file", uf);
+					log.debug("Streamed upload: " + name + "=" + item.getName() + " sha256: "+uf.getSha256());
+				}
+			}
+		}
+		catch (Exception e) {
+			log.debug("",e);
+			writeErrorLog(conf, e);
 			throw new RuntimeException(e);
 		}
 		return result;
 	}
+
+	void writeErrorLog(Conf conf, Exception e) throws IOException {
+		FileWriter errFile = new FileWriter(conf.getSystemRoot() + "global" + 
+				conf.getSep() + "log" + 
+				conf.getSep() + "cinnamon-err.log", true);
+		PrintWriter toErrFile = new PrintWriter(errFile);
+		toErrFile.println(e.getMessage());
+		toErrFile.close();
+	}
+
+	/**
+	 * DiskFileItem.getString() falls back to ISO-8859-1 for form fields,
+	 * so the streaming parser does the same.
+	 */
+	static final String FORM_FIELD_ENCODING = "ISO-8859-1";
 	
 }
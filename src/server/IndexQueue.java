@@ -0,0 +1,606 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.exceptions.CinnamonConfigurationException;
+import server.index.IndexAction;
+import server.index.Indexable;
+import server.index.LuceneBridge;
+import server.interfaces.Repository;
+import server.tika.TikaIndexText;
+import utils.HibernateSession;
+
+/**
+ * An ordered queue of index operations which is drained by worker threads after the
+ * request which caused them has been committed.
+ * <p>
+ * Each operation is appended to a journal file (one line per operation: sequence number,
+ * IndexAction, class and id of the Indexable) before it is queued, so operations which have not
+ * been processed when the server stops are replayed on the next start. The journal is truncated
+ * whenever the queue is empty.
+ * </p>
+ * <p>
+ * Operations on the same object coalesce: if an object is changed again before the worker has
+ * indexed it, it is only indexed once, with its latest state. Workers load each object in their
+ * own transaction, so the index always reflects committed data.
+ * </p>
+ * <p>
+ * Operations are processed in batches. If a batch fails, its operations are retried one at a time,
+ * so an operation which cannot be processed is dropped after MAX_ATTEMPTS attempts without
+ * taking the other operations of its batch with it.
+ * </p>
+ * <p>
+ * Clients which need to read their own writes can wait for the sequence number returned by
+ * {@link #enqueue(Map)} with {@link #awaitFlush(long, long)}.
+ * </p>
+ */
+public class IndexQueue {
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Number of failed attempts after which an operation is dropped.
+     */
+    static final int MAX_ATTEMPTS = 3;
+    /**
+     * Number of operations which are processed in one transaction.
+     */
+    static final int BATCH_SIZE = 50;
+    /**
+     * Number of journal lines after which the journal is rewritten with the pending operations.
+     */
+    static final int MAX_JOURNAL_LINES = 100000;
+
+    private final Repository repository;
+    private final File journalFile;
+    private final boolean syncJournal;
+    private final int workerCount;
+
+    // all fields below are guarded by this.
+    private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+    private final Map<String, Entry> inFlight = new LinkedHashMap<String, Entry>();
+    private FileOutputStream journalStream;
+    private Writer journal;
+    private long sequence = 0;
+    private int journalLines = 0;
+    private boolean running = false;
+
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * A queued index operation.
+     */
+    static class Entry {
+        final String key;
+        final String className;
+        final Long id;
+        IndexAction action;
+        /**
+         * The object itself is only kept for REMOVE, when it cannot be loaded anymore.
+         * It is null for operations which were replayed from the journal.
+         */
+        Indexable indexable;
+        long sequence;
+        final long queuedAt;
+        int attempts = 0;
+        /**
+         * True if the entry was part of a failed batch and is retried in a batch of its own.
+         */
+        boolean isolated = false;
+
+        Entry(String className, Long id, IndexAction action, Indexable indexable, long sequence) {
+            this.key = className + "#" + id;
+            this.className = className;
+            this.id = id;
+            this.action = action;
+            this.indexable = indexable;
+            this.sequence = sequence;
+            this.queuedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Merge a newer operation on the same object into this entry.
+         */
+        void coalesce(IndexAction newAction, Indexable newIndexable, long newSequence) {
+            // an object which is not yet in the index must still be added after an update.
+            if (!(action == IndexAction.ADD && newAction == IndexAction.UPDATE)) {
+                action = newAction;
+            }
+            if (newIndexable != null) {
+                indexable = newIndexable;
+            }
+            sequence = newSequence;
+        }
+
+        String toJournalLine() {
+            return sequence + "\t" + action.name() + "\t" + className + "\t" + id + "\n";
+        }
+    }
+
+    /**
+     * @param repository   the repository whose index is updated
+     * @param journalFolder the folder where the journal file is kept
+     * @param workerCount  the number of worker threads
+     * @param syncJournal  if true, the journal is forced to disk before enqueue returns.
+     */
+    public IndexQueue(Repository repository, File journalFolder, int workerCount, boolean syncJournal) {
+        this.repository = repository;
+        this.workerCount = Math.max(1, workerCount);
+        this.syncJournal = syncJournal;
+        if (!journalFolder.exists() && !journalFolder.mkdirs()) {
+            throw new CinnamonConfigurationException("Could not create index queue folder " +
+                    journalFolder.getAbsolutePath());
+        }
+        this.journalFile = new File(journalFolder, repository.getName() + ".journal");
+        try {
+            replayJournal();
+            rewriteJournal();
+        } catch (IOException e) {
+            throw new CinnamonConfigurationException("Could not open index queue journal " +
+                    journalFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Start the worker threads.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "IndexQueue-" + repository.getName() + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        log.info(String.format("Started %d index queue workers for repository %s with %d pending operations.",
+                workerCount, repository.getName(), pending.size()));
+    }
+
+    /**
+     * Stop the worker threads. Pending operations remain in the journal.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        synchronized (this) {
+            closeJournal();
+        }
+    }
+
+    /**
+     * Add the changed objects of a committed request to the queue.
+     *
+     * @param updatedObjects the objects which must be added to, updated in or removed from the index.
+     * @return the sequence number of the last queued operation, to be used with {@link #awaitFlush(long, long)}
+     */
+    public synchronized long enqueue(Map<Indexable, IndexAction> updatedObjects) {
+        if (updatedObjects.isEmpty()) {
+            return sequence;
+        }
+        try {
+            for (Map.Entry<Indexable, IndexAction> update : updatedObjects.entrySet()) {
+                Indexable indexable = update.getKey();
+                IndexAction action = update.getValue();
+                String className = findEntityClass(indexable).getName();
+                Long id = indexable.myId();
+                sequence++;
+                Entry entry = pending.get(className + "#" + id);
+                if (entry == null) {
+                    entry = new Entry(className, id, action, action == IndexAction.REMOVE ? indexable : null, sequence);
+                    pending.put(entry.key, entry);
+                }
+                else {
+                    entry.coalesce(action, action == IndexAction.REMOVE ? indexable : null, sequence);
+                }
+                if (journal != null) {
+                    journal.write(entry.toJournalLine());
+                    journalLines++;
+                }
+            }
+            if (journal == null) {
+                log.warn("Index queue has been shut down - operations are not journaled.");
+            }
+            else {
+                journal.flush();
+            }
+            if (syncJournal && journalStream != null) {
+                journalStream.getFD().sync();
+            }
+        } catch (IOException e) {
+            // the operations are still queued, but may be lost if the server stops now.
+            log.error("Failed to write index queue journal " + journalFile.getAbsolutePath(), e);
+        }
+        notifyAll();
+        return sequence;
+    }
+
+    /**
+     * Wait until all operations up to the given sequence number have been processed.
+     *
+     * @param sequenceNumber a sequence number returned by {@link #enqueue(Map)}
+     * @param timeout        the maximum time to wait in milliseconds
+     * @return true if the operations have been processed, false if the timeout has expired.
+     */
+    public synchronized boolean awaitFlush(long sequenceNumber, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (isPending(sequenceNumber)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                log.debug("Timeout while waiting for the index queue to reach #" + sequenceNumber);
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait until all currently queued operations have been processed.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if the operations have been processed, false if the timeout has expired.
+     */
+    public boolean flush(long timeout) {
+        long target;
+        synchronized (this) {
+            target = sequence;
+        }
+        return awaitFlush(target, timeout);
+    }
+
+    boolean isPending(long sequenceNumber) {
+        for (Entry entry : pending.values()) {
+            if (entry.sequence <= sequenceNumber) {
+                return true;
+            }
+        }
+        for (Entry entry : inFlight.values()) {
+            if (entry.sequence <= sequenceNumber) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void work() {
+        EntityManager em = null;
+        while (true) {
+            List<Entry> batch;
+            try {
+                batch = takeBatch();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (batch == null) {
+                break;
+            }
+            try {
+                if (em == null || !em.isOpen()) {
+                    em = repository.getEntityManager();
+                    HibernateSession.setLocalEntityManager(em);
+                }
+                processBatch(em, batch);
+                complete(batch, false);
+            } catch (Exception e) {
+                log.warn("Failed to process " + batch.size() + " index operations.", e);
+                if (em != null && em.isOpen()) {
+                    em.close();
+                }
+                em = null;
+                complete(batch, true);
+                try {
+                    // give the database or the index some time to recover.
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        if (em != null && em.isOpen()) {
+            em.close();
+        }
+    }
+
+    /**
+     * Fetch the oldest pending operations whose objects are not being processed by another worker.
+     *
+     * @return a non-empty list of operations or null if the queue has been stopped.
+     */
+    synchronized List<Entry> takeBatch() throws InterruptedException {
+        while (running) {
+            List<Entry> batch = new ArrayList<Entry>();
+            Iterator<Entry> iterator = pending.values().iterator();
+            while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+                Entry entry = iterator.next();
+                if (inFlight.containsKey(entry.key) || (entry.isolated && !batch.isEmpty())) {
+                    continue;
+                }
+                iterator.remove();
+                inFlight.put(entry.key, entry);
+                batch.add(entry);
+                if (entry.isolated) {
+                    break;
+                }
+            }
+            if (!batch.isEmpty()) {
+                return batch;
+            }
+            wait();
+        }
+        return null;
+    }
+
+    void processBatch(EntityManager em, List<Entry> batch) throws ClassNotFoundException {
+        LuceneBridge luceneBridge = repository.getLuceneBridge();
+        EntityTransaction et = em.getTransaction();
+        for (Entry entry : batch) {
+            entry.attempts++;
+        }
+        et.begin();
+        try {
+            for (Entry entry : batch) {
+                Indexable indexable = (Indexable) em.find(Class.forName(entry.className), entry.id);
+                switch (entry.action) {
+                    case ADD:
+                        if (indexable == null) {
+                            log.debug(entry.key + " has been deleted before it could be indexed.");
+                            break;
+                        }
+                        TikaIndexText.addToIndex(luceneBridge, indexable, repository.getName());
+                        break;
+                    case UPDATE:
+                        if (indexable == null) {
+                            log.debug(entry.key + " has been deleted before it could be indexed.");
+                            break;
+                        }
+                        TikaIndexText.updateInIndex(luceneBridge, indexable, repository.getName());
+                        break;
+                    case REMOVE:
+                        if (indexable == null) {
+                            indexable = entry.indexable;
+                        }
+                        if (indexable == null) {
+                            log.warn(entry.key + " was deleted while the server was stopped and cannot be " +
+                                    "removed from the index. Please reindex this object's class.");
+                            break;
+                        }
+                        luceneBridge.removeObjectFromIndex(indexable);
+                        break;
+                }
+            }
+            et.commit();
+        } catch (RuntimeException e) {
+            if (et.isActive()) {
+                et.rollback();
+            }
+            throw e;
+        }
+    }
+
+    synchronized void complete(List<Entry> batch, boolean failed) {
+        // the failure of a batch is not counted against its entries - they are retried one at a time.
+        boolean split = failed && batch.size() > 1;
+        for (Entry entry : batch) {
+            inFlight.remove(entry.key);
+            if (!failed) {
+                processedCount.incrementAndGet();
+                continue;
+            }
+            if (split) {
+                entry.attempts--;
+                entry.isolated = true;
+            }
+            else if (entry.attempts >= MAX_ATTEMPTS) {
+                log.error("Giving up on index operation " + entry.action + " for " + entry.key);
+                failedCount.incrementAndGet();
+                continue;
+            }
+            Entry newer = pending.get(entry.key);
+            if (newer == null) {
+                pending.put(entry.key, entry);
+            }
+            else {
+                // retry with the newer action, but keep the attempts of the failed entry.
+                entry.coalesce(newer.action, newer.indexable, newer.sequence);
+                pending.put(entry.key, entry);
+            }
+        }
+        try {
+            if (pending.isEmpty() && inFlight.isEmpty()) {
+                truncateJournal();
+            }
+            else if (journalLines > MAX_JOURNAL_LINES) {
+                rewriteJournal();
+            }
+        } catch (IOException e) {
+            log.error("Failed to compact index queue journal " + journalFile.getAbsolutePath(), e);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Load the operations which were not processed before the last shutdown.
+     */
+    synchronized void replayJournal() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 4) {
+                    // the last line may be incomplete after a crash.
+                    log.warn("Ignoring invalid index queue journal line: " + line);
+                    continue;
+                }
+                try {
+                    long lineSequence = Long.parseLong(fields[0]);
+                    IndexAction action = IndexAction.valueOf(fields[1]);
+                    Long id = Long.parseLong(fields[3]);
+                    sequence = Math.max(sequence, lineSequence);
+                    Entry entry = pending.get(fields[2] + "#" + id);
+                    if (entry == null) {
+                        entry = new Entry(fields[2], id, action, null, lineSequence);
+                        pending.put(entry.key, entry);
+                    }
+                    else {
+                        entry.coalesce(action, null, lineSequence);
+                    }
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring invalid index queue journal line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (!pending.isEmpty()) {
+            log.info(String.format("Replaying %d index operations from %s", pending.size(), journalFile.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Replace the journal with one line per pending operation.
+     */
+    synchronized void rewriteJournal() throws IOException {
+        File tempFile = new File(journalFile.getParentFile(), journalFile.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            for (Entry entry : inFlight.values()) {
+                writer.write(entry.toJournalLine());
+            }
+            for (Entry entry : pending.values()) {
+                writer.write(entry.toJournalLine());
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        closeJournal();
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new IOException("Could not replace " + journalFile.getAbsolutePath());
+        }
+        if (!tempFile.renameTo(journalFile)) {
+            throw new IOException("Could not rename " + tempFile.getAbsolutePath());
+        }
+        journalLines = inFlight.size() + pending.size();
+        openJournal(true);
+    }
+
+    synchronized void truncateJournal() throws IOException {
+        if (journalLines == 0) {
+            return;
+        }
+        closeJournal();
+        openJournal(false);
+        journalLines = 0;
+    }
+
+    void openJournal(boolean append) throws IOException {
+        journalStream = new FileOutputStream(journalFile, append);
+        journal = new OutputStreamWriter(journalStream, "UTF-8");
+    }
+
+    void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Failed to close index queue journal.", e);
+        }
+        journal = null;
+        journalStream = null;
+    }
+
+    /**
+     * @param indexable an Indexable which may be a Hibernate proxy
+     * @return the mapped class of the indexable (not the class of its proxy)
+     */
+    static Class<?> findEntityClass(Indexable indexable) {
+        Class<?> entityClass = indexable.getClass();
+        while (entityClass.getName().contains("$$")) {
+            entityClass = entityClass.getSuperclass();
+        }
+        return entityClass;
+    }
+
+    /**
+     * @return the number of operations which are queued or being processed.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size() + inFlight.size();
+    }
+
+    /**
+     * @return the age of the oldest unprocessed operation in milliseconds (0 if the queue is empty).
+     */
+    public synchronized long getLag() {
+        long oldest = Long.MAX_VALUE;
+        for (Entry entry : inFlight.values()) {
+            oldest = Math.min(oldest, entry.queuedAt);
+        }
+        for (Entry entry : pending.values()) {
+            oldest = Math.min(oldest, entry.queuedAt);
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    /**
+     * @return the sequence number of the last queued operation.
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+}
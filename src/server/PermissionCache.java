@@ -0,0 +1,150 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.data.Validator;
+
+/**
+ * Caches the effective permissions of users on ACLs for one repository.
+ * <p>
+ * Each check of Validator.validatePermission walks the user's groups, their AclEntries and the
+ * AclEntryPermissions. Listing and search commands repeat the same check for each item, although
+ * most items share a few ACLs. This cache stores the result of each check as two bits (checked,
+ * granted) in one long per user and ACL, so a listing only needs the Validator once per ACL.
+ * </p>
+ * <p>
+ * The cache only contains results of ACL-level checks. Permissions which are granted to an
+ * item's owner (the _owner alias group) are not part of these results, so a denied check must
+ * still be confirmed with the Validator for the item itself.
+ * </p>
+ * <p>
+ * AclManager, GroupManager and PermissionManager call {@link #invalidate()} (via
+ * CinnamonRepository.invalidatePermissionCaches) when they change ACLs, group memberships or
+ * permissions. Changes made directly in the database become visible after cacheTime milliseconds.
+ * </p>
+ */
+public class PermissionCache {
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Each permission uses one bit in the lower half (checked) and one in the upper half (granted).
+     */
+    static final int MAX_PERMISSIONS = 32;
+
+    private final int maxUsers;
+    private final long cacheTime;
+    private final ConcurrentMap<Long, UserPermissions> users = new ConcurrentHashMap<Long, UserPermissions>();
+    private final ConcurrentMap<String, Integer> permissionBits = new ConcurrentHashMap<String, Integer>();
+    private final AtomicLong generation = new AtomicLong();
+
+    static class UserPermissions {
+        final long generation;
+        final long loadedAt = System.currentTimeMillis();
+        final ConcurrentMap<Long, Long> acls = new ConcurrentHashMap<Long, Long>();
+
+        UserPermissions(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * @param maxUsers  the maximum number of users whose permissions are cached
+     * @param cacheTime the time in milliseconds after which the permissions of a user are reloaded
+     */
+    public PermissionCache(int maxUsers, long cacheTime) {
+        this.maxUsers = maxUsers;
+        this.cacheTime = cacheTime;
+    }
+
+    /**
+     * Check whether an ACL grants a permission to a user, as Validator.validatePermission(acl, permissionName)
+     * would.
+     *
+     * @param user           the user
+     * @param acl            the ACL
+     * @param permissionName the name of the permission
+     * @return true if the permission is granted.
+     */
+    public boolean isGranted(User user, Acl acl, String permissionName) {
+        Integer bit = findBit(permissionName);
+        if (bit == null || acl == null) {
+            return check(user, acl, permissionName);
+        }
+        UserPermissions permissions = findUserPermissions(user);
+        long checkedMask = 1L << bit;
+        long grantedMask = 1L << (bit + MAX_PERMISSIONS);
+        Long bits = permissions.acls.get(acl.getId());
+        if (bits != null && (bits & checkedMask) != 0) {
+            return (bits & grantedMask) != 0;
+        }
+
+        boolean granted = check(user, acl, permissionName);
+        long newBits = checkedMask | (granted ? grantedMask : 0L);
+        // merge with bits of other permissions which may have been added concurrently:
+        while (true) {
+            Long oldBits = permissions.acls.putIfAbsent(acl.getId(), newBits);
+            if (oldBits == null || permissions.acls.replace(acl.getId(), oldBits, oldBits | newBits)) {
+                break;
+            }
+        }
+        return granted;
+    }
+
+    boolean check(User user, Acl acl, String permissionName) {
+        try {
+            new Validator(user).validatePermission(acl, permissionName);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    UserPermissions findUserPermissions(User user) {
+        UserPermissions permissions = users.get(user.getId());
+        long currentGeneration = generation.get();
+        if (permissions != null && permissions.generation == currentGeneration
+                && System.currentTimeMillis() - permissions.loadedAt < cacheTime) {
+            return permissions;
+        }
+        if (users.size() >= maxUsers) {
+            log.debug("permission cache is full - removing all entries.");
+            users.clear();
+        }
+        permissions = new UserPermissions(currentGeneration);
+        users.put(user.getId(), permissions);
+        return permissions;
+    }
+
+    Integer findBit(String permissionName) {
+        Integer bit = permissionBits.get(permissionName);
+        if (bit != null) {
+            return bit;
+        }
+        synchronized (permissionBits) {
+            bit = permissionBits.get(permissionName);
+            if (bit == null && permissionBits.size() < MAX_PERMISSIONS) {
+                bit = permissionBits.size();
+                permissionBits.put(permissionName, bit);
+            }
+        }
+        return bit;
+    }
+
+    /**
+     * Remove the cached permissions of all users.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        users.clear();
+    }
+
+    public int getUserCount() {
+        return users.size();
+    }
+}
@@ -0,0 +1,172 @@
+package server;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.dao.AclDAO;
+import server.dao.DAOFactory;
+import server.data.Validator;
+import server.exceptions.CinnamonException;
+import utils.ParamParser;
+
+/**
+ * Restricts Lucene queries to documents the user may browse, so the search result only contains
+ * candidates which have a good chance to pass the permission check, instead of every hit.
+ * <p>
+ * The query is wrapped in a FilteredQuery whose (cached) filter accepts documents whose acl field
+ * contains one of the ACLs which grant the browse permission to the user, or whose owner field
+ * contains the user's id. This requires the index items "index.acl" and "index.owner" (see
+ * Initializer.createPermissionIndexItems) and a complete reindex.
+ * </p>
+ * <p>
+ * The filter is a superset of the browsable items (for example, it accepts all objects owned by the user),
+ * so the search methods still validate each result. The ACL sets are cached per user and permission
+ * for cacheTime milliseconds; {@link #invalidate()} should be called when ACLs, groups or permissions change.
+ * </p>
+ */
+public class SearchPermissionFilter {
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+    static DAOFactory daoFactory = DAOFactory.instance(DAOFactory.HIBERNATE);
+
+    public static final String FIELD_ACL = "acl";
+    public static final String FIELD_OWNER = "owner";
+    /**
+     * Lucene's BooleanQuery accepts at most 1024 clauses. Users who may browse more ACLs than this
+     * are not filtered in the index.
+     */
+    static final int MAX_ACLS = 1000;
+
+    private final ConcurrentMap<String, CachedAcls> aclCache = new ConcurrentHashMap<String, CachedAcls>();
+    private final AtomicLong generation = new AtomicLong();
+    private long cacheTime;
+    private PermissionCache permissionCache;
+
+    static class CachedAcls {
+        final Set<Long> aclIds;
+        final long loadedAt = System.currentTimeMillis();
+
+        CachedAcls(Set<Long> aclIds) {
+            this.aclIds = aclIds;
+        }
+    }
+
+    /**
+     * @param cacheTime       the time in milliseconds for which the browsable ACLs of a user are cached
+     * @param permissionCache the repository's permission cache (may be null)
+     */
+    public SearchPermissionFilter(long cacheTime, PermissionCache permissionCache) {
+        this.cacheTime = cacheTime;
+        this.permissionCache = permissionCache;
+    }
+
+    /**
+     * Add the permission filter to a Lucene XML query.
+     *
+     * @param xmlQuery        the client's query
+     * @param user            the current user (must not be a superuser)
+     * @param em              the EntityManager used to load the ACLs
+     * @param permissionNames the permissions (one of which) a document's ACL must grant
+     * @return the filtered query, or the original query if it cannot be filtered.
+     */
+    public String filterQuery(String xmlQuery, User user, EntityManager em, String... permissionNames) {
+        Set<Long> aclIds = new TreeSet<Long>();
+        for (String permissionName : permissionNames) {
+            aclIds.addAll(findBrowsableAcls(user, em, permissionName));
+        }
+        if (aclIds.size() > MAX_ACLS) {
+            log.debug("User may browse too many ACLs (" + aclIds.size() + ") - not filtering the query.");
+            return xmlQuery;
+        }
+        Document query;
+        try {
+            query = ParamParser.parseXmlToDocument(xmlQuery, "error.parse.xml");
+        } catch (CinnamonException e) {
+            // let LuceneBridge report the invalid query.
+            return xmlQuery;
+        }
+
+        Document filtered = DocumentHelper.createDocument();
+        Element root = filtered.addElement("FilteredQuery");
+        Element permissions = root.addElement("Filter").addElement("CachedFilter").addElement("BooleanQuery");
+        if (!aclIds.isEmpty()) {
+            StringBuilder terms = new StringBuilder();
+            for (Long aclId : aclIds) {
+                terms.append(pad(aclId)).append(' ');
+            }
+            Element aclClause = permissions.addElement("Clause").addAttribute("occurs", "should");
+            aclClause.addElement("TermsQuery").addAttribute("fieldName", FIELD_ACL).addText(terms.toString().trim());
+        }
+        Element ownerClause = permissions.addElement("Clause").addAttribute("occurs", "should");
+        ownerClause.addElement("TermQuery").addAttribute("fieldName", FIELD_OWNER).addText(pad(user.getId()));
+        root.addElement("Query").add(query.getRootElement().detach());
+        return filtered.getRootElement().asXML();
+    }
+
+    /**
+     * @return the ids of the ACLs which grant the permission to the user (ignoring owner-specific entries).
+     */
+    Set<Long> findBrowsableAcls(User user, EntityManager em, String permissionName) {
+        String key = user.getId() + ":" + permissionName;
+        CachedAcls cached = aclCache.get(key);
+        if (cached != null && System.currentTimeMillis() - cached.loadedAt < cacheTime) {
+            return cached.aclIds;
+        }
+        long currentGeneration = generation.get();
+        Set<Long> aclIds = new TreeSet<Long>();
+        AclDAO aclDao = daoFactory.getAclDAO(em);
+        Validator validator = new Validator(user);
+        List<Acl> acls = aclDao.list();
+        for (Acl acl : acls) {
+            if (permissionCache != null) {
+                if (permissionCache.isGranted(user, acl, permissionName)) {
+                    aclIds.add(acl.getId());
+                }
+                continue;
+            }
+            try {
+                validator.validatePermission(acl, permissionName);
+                aclIds.add(acl.getId());
+            } catch (Exception e) {
+                // permission is not granted.
+            }
+        }
+        log.debug(String.format("user %d may use %s on %d of %d ACLs", user.getId(), permissionName,
+                aclIds.size(), acls.size()));
+        if (generation.get() == currentGeneration) {
+            aclCache.put(key, new CachedAcls(aclIds));
+        }
+        return aclIds;
+    }
+
+    /**
+     * Remove all cached ACL sets.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        aclCache.clear();
+    }
+
+    /**
+     * Ids are indexed with leading zeros (20 digits), see xpath.integer_indexer.
+     */
+    static String pad(Long id) {
+        return String.format("%020d", id);
+    }
+
+    public long getCacheTime() {
+        return cacheTime;
+    }
+}
@@ -0,0 +1,226 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.dao.DAOFactory;
+import server.dao.SessionDAO;
+import server.interfaces.Repository;
+
+/**
+ * A bounded LRU cache of validated session tickets for one repository.
+ * <p>
+ * Without this cache, each request has to read the session from the database and write back its
+ * renewed expiration time. A cached ticket is valid for sessionExpirationTime milliseconds after its
+ * last use. The renewal of the expiration time in the sessions table is collected and written by
+ * a timer thread every renewalInterval milliseconds, so a ticket which is used many times during
+ * an interval causes only one update.
+ * </p>
+ * <p>
+ * Commands which delete or copy sessions (disconnect, forkSession) must call
+ * {@link #invalidate(String)} before they return.
+ * </p>
+ */
+public class SessionCache {
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+    static DAOFactory daoFactory = DAOFactory.instance(DAOFactory.HIBERNATE);
+
+    private final Repository repository;
+    private final int maxSize;
+    private final long expirationTime;
+    private final Map<String, CachedSession> sessions;
+    private final Set<String> pendingRenewals = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private Timer renewalTimer;
+
+    /**
+     * The data of a validated session which is needed to process a request.
+     */
+    public static class CachedSession {
+        final Long sessionId;
+        final Long userId;
+        final String username;
+        final Long languageId;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        CachedSession(Session session) {
+            this.sessionId = session.getId();
+            this.userId = session.getUser().getId();
+            this.username = session.getUser().getName();
+            this.languageId = session.getLanguage() == null ? null : session.getLanguage().getId();
+        }
+
+        public Long getSessionId() {
+            return sessionId;
+        }
+
+        public Long getUserId() {
+            return userId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * @return the id of the session's UiLanguage, may be null.
+         */
+        public Long getLanguageId() {
+            return languageId;
+        }
+    }
+
+    /**
+     * @param repository      the repository whose sessions are cached
+     * @param maxSize         the maximum number of cached tickets
+     * @param expirationTime  the repository's session expiration time in milliseconds
+     * @param renewalInterval time in milliseconds between two updates of the sessions table
+     */
+    @SuppressWarnings("serial")
+    public SessionCache(Repository repository, final int maxSize, long expirationTime, long renewalInterval) {
+        this.repository = repository;
+        this.maxSize = maxSize;
+        this.expirationTime = expirationTime;
+        this.sessions = new LinkedHashMap<String, CachedSession>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest) {
+                return size() > maxSize;
+            }
+        };
+        renewalTimer = new Timer("SessionRenewal-" + repository.getName(), true);
+        renewalTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                writeRenewals();
+            }
+        }, renewalInterval, renewalInterval);
+    }
+
+    /**
+     * Look up a ticket. If it is found and has not expired, its expiration time is renewed
+     * (the database is updated by the renewal timer).
+     *
+     * @param ticket the session ticket
+     * @return the cached session or null if the ticket must be validated against the database.
+     */
+    public CachedSession get(String ticket) {
+        CachedSession cachedSession;
+        synchronized (sessions) {
+            cachedSession = sessions.get(ticket);
+        }
+        if (cachedSession == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - cachedSession.lastUsed > expirationTime) {
+            log.debug("cached session has expired.");
+            invalidate(ticket);
+            return null;
+        }
+        cachedSession.lastUsed = now;
+        pendingRenewals.add(ticket);
+        return cachedSession;
+    }
+
+    /**
+     * Add a session which has just been validated (and renewed) in the database.
+     *
+     * @param ticket  the session ticket
+     * @param session the session
+     */
+    public void put(String ticket, Session session) {
+        CachedSession cachedSession = new CachedSession(session);
+        synchronized (sessions) {
+            sessions.put(ticket, cachedSession);
+        }
+    }
+
+    public void invalidate(String ticket) {
+        synchronized (sessions) {
+            sessions.remove(ticket);
+        }
+        pendingRenewals.remove(ticket);
+    }
+
+    public void clear() {
+        synchronized (sessions) {
+            sessions.clear();
+        }
+        pendingRenewals.clear();
+    }
+
+    /**
+     * Write the renewed expiration time of all sessions used since the last run to the database.
+     * Sessions which no longer exist are removed from the cache.
+     */
+    void writeRenewals() {
+        if (pendingRenewals.isEmpty()) {
+            return;
+        }
+        List<String> tickets = new ArrayList<String>(pendingRenewals);
+        pendingRenewals.removeAll(tickets);
+        log.debug("renewing " + tickets.size() + " sessions");
+        EntityManager em = null;
+        EntityTransaction et = null;
+        try {
+            em = repository.getEntityManager();
+            et = em.getTransaction();
+            et.begin();
+            SessionDAO sessionDAO = daoFactory.getSessionDAO(em);
+            for (String ticket : tickets) {
+                Session session = null;
+                try {
+                    session = sessionDAO.findByTicket(ticket);
+                } catch (Exception e) {
+                    log.debug("failed to load session for renewal", e);
+                }
+                if (session == null) {
+                    log.debug("session was removed from database, invalidating ticket.");
+                    invalidate(ticket);
+                    continue;
+                }
+                session.renewSession(expirationTime);
+            }
+            et.commit();
+        } catch (Exception e) {
+            log.warn("Failed to renew sessions.", e);
+            if (et != null && et.isActive()) {
+                et.rollback();
+            }
+            // these sessions may expire in the database, so they must be validated again.
+            for (String ticket : tickets) {
+                invalidate(ticket);
+            }
+        } finally {
+            if (em != null && em.isOpen()) {
+                em.close();
+            }
+        }
+    }
+
+    public void shutdown() {
+        renewalTimer.cancel();
+        writeRenewals();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+}
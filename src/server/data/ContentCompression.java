@@ -0,0 +1,165 @@
+package server.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.CinnamonRepository;
+import server.Format;
+import server.interfaces.Repository;
+
+/**
+ * A precompressed download cache (cinnamon_config/contentCompression): for objects whose format is
+ * listed in contentCompression/formats (for example xml,dita,ditamap), a gzip compressed copy of
+ * the content file is stored when the content is uploaded. The content file itself is not changed,
+ * so every reader of content files (osd.getContent, the content indexers, Tika, zipFolder, the
+ * deduplicating content store) continues to see the original bytes. This trades additional disk
+ * space for smaller downloads; it does not reduce the disk usage of the content store.
+ * <p>
+ * The copy of a content file is stored in the folder content-gzip of the repository's data folder,
+ * with the content path of the content file and the suffix .gz - a copy only exists if it has been
+ * created by this class. getContent sends the copy with Content-Encoding: gzip to clients which
+ * accept it, which reduces the bytes read from disk and sent to the client. Copies of deleted
+ * content files are removed by the {@link DerivedFileCleanup}.
+ * </p>
+ */
+public class ContentCompression {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentCompression.class);
+
+    static final String FOLDER = "content-gzip";
+    public static final String SUFFIX = ".gz";
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Set<String> formats;
+    private final long minSize;
+    private final File root;
+
+    /**
+     * @param repositoryName the name of the repository
+     * @param formats        the names of the formats whose content is compressed
+     * @param minSize        content files smaller than this (in bytes) are not compressed
+     */
+    public ContentCompression(String repositoryName, Collection<String> formats, long minSize) {
+        this.formats = new HashSet<String>(formats);
+        this.minSize = minSize;
+        this.root = new File(StreamedUpload.findRepositoryFolder(repositoryName), FOLDER);
+    }
+
+    /**
+     * @param repository the current repository
+     * @return the repository's download cache, or null if no compressed copies are stored.
+     */
+    public static ContentCompression find(Repository repository) {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getContentCompression();
+        }
+        return null;
+    }
+
+    /**
+     * @param osd an object
+     * @return true if a compressed copy of the content of the object's format is stored.
+     */
+    public boolean isCompressible(ObjectSystemData osd) {
+        Format format = osd.getFormat();
+        return format != null && formats.contains(format.getName());
+    }
+
+    /**
+     * @return the folder of the compressed copies, which mirrors the content folder of the repository.
+     */
+    public File getFolder() {
+        return root;
+    }
+
+    /**
+     * @param contentPath the content path of an object
+     * @return the compressed copy of the content file (which may not exist).
+     */
+    public File getCompressedFile(String contentPath) {
+        return new File(root, contentPath + SUFFIX);
+    }
+
+    /**
+     * @param osd an object
+     * @return the compressed copy of the object's content file, or null if there is none.
+     */
+    public File findCompressedFile(ObjectSystemData osd) {
+        String contentPath = osd.getContentPath();
+        if (contentPath == null || contentPath.length() == 0 || !isCompressible(osd)) {
+            return null;
+        }
+        File file = getCompressedFile(contentPath);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Store a compressed copy of the new content file of an object, if its format is configured
+     * for compression and compression makes it smaller. The content file is not changed.
+     *
+     * @param osd            an object whose content has just been stored
+     * @param repositoryName the name of the repository
+     */
+    public void compress(ObjectSystemData osd, String repositoryName) {
+        String contentPath = osd.getContentPath();
+        if (contentPath == null || contentPath.length() == 0 || !isCompressible(osd)) {
+            return;
+        }
+        File file = new File(osd.getFullContentPath(repositoryName));
+        long size = file.length();
+        if (size < minSize) {
+            return;
+        }
+        File target = getCompressedFile(contentPath);
+        File folder = target.getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            log.warn("Could not create folder " + folder.getAbsolutePath() + " - no compressed copy is stored.");
+            return;
+        }
+        File temp = new File(folder, target.getName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (temp.length() >= size) {
+                log.debug("Compression does not reduce the size of " + contentPath);
+                return;
+            }
+            if (!temp.renameTo(target)) {
+                log.warn("Could not rename " + temp.getAbsolutePath() + " to " + target.getAbsolutePath());
+                return;
+            }
+            log.debug(String.format("stored compressed copy of %s with %d instead of %d bytes", contentPath, target.length(), size));
+        } catch (IOException e) {
+            log.warn("Failed to compress " + file.getAbsolutePath() + " - no compressed copy is stored.", e);
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                log.warn("Could not delete " + temp.getAbsolutePath());
+            }
+        }
+    }
+}
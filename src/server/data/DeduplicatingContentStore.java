@@ -0,0 +1,305 @@
+package server.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.CinnamonRepository;
+import server.interfaces.Repository;
+
+/**
+ * Content-addressed storage mode (cinnamon_config/contentDeduplication/enabled): content with the
+ * same SHA-256 checksum is stored only once, in the folder content-blobs of the repository's data
+ * folder (content-blobs/ab/cd/abcd...). Each object still has its own content path, which is a hard
+ * link to the blob, so downloads, Tika and the deletion of content files by the FileKeeper work as
+ * before.
+ * <p>
+ * The reference count of a blob is the link count of its file minus one: deleting the content file
+ * of an object only removes one link. Blobs which are no longer referenced by any object are removed
+ * every cleanupInterval milliseconds (cinnamon_config/contentDeduplication/cleanupInterval,
+ * default: 3600000).
+ * </p>
+ * <p>
+ * Only uploads which have been received by the streaming parser (with their checksum) are
+ * deduplicated. Copies of objects link to the content file of the source object instead of copying
+ * the bytes. If the file system does not support hard links, the content is stored and copied as
+ * before.
+ * </p>
+ */
+public class DeduplicatingContentStore {
+
+    private static final Logger log = LoggerFactory.getLogger(DeduplicatingContentStore.class);
+
+    static final String FOLDER = "content-blobs";
+    static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * Temporary files of the blob folder which are older than this (in milliseconds) are left over
+     * from a crash and are removed by the cleanup.
+     */
+    static final long TEMP_FILE_AGE = 3600000L;
+
+    private final String repositoryName;
+    private final File blobRoot;
+    private final Timer cleanupTimer;
+
+    /**
+     * @param repository      the repository
+     * @param cleanupInterval time in milliseconds between two searches for unreferenced blobs (0 disables the cleanup)
+     */
+    public DeduplicatingContentStore(Repository repository, long cleanupInterval) {
+        this.repositoryName = repository.getName();
+        this.blobRoot = new File(StreamedUpload.findRepositoryFolder(repositoryName), FOLDER);
+        if (cleanupInterval > 0) {
+            cleanupTimer = new Timer("ContentBlobCleanup-" + repositoryName, true);
+            cleanupTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        removeUnreferencedBlobs();
+                    } catch (Exception e) {
+                        log.warn("Failed to remove unreferenced content blobs of " + repositoryName, e);
+                    }
+                }
+            }, cleanupInterval, cleanupInterval);
+        } else {
+            cleanupTimer = null;
+        }
+    }
+
+    /**
+     * @param repository the current repository
+     * @return the repository's content store, or null if content deduplication is disabled.
+     */
+    public static DeduplicatingContentStore find(Repository repository) {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getContentStore();
+        }
+        return null;
+    }
+
+    /**
+     * Give the target object the content of the source object. With content deduplication, the
+     * target's content file is a link to the source's content file, otherwise the content is copied
+     * with ObjectSystemData.copyContent.
+     *
+     * @param repository the current repository
+     * @param source     the object whose content is copied
+     * @param target     the object which receives the content
+     */
+    public static void copyContent(Repository repository, ObjectSystemData source, ObjectSystemData target) {
+        DeduplicatingContentStore store = find(repository);
+        String contentPath = source.getContentPath();
+        if (store != null && contentPath != null && contentPath.length() > 0) {
+            String linkPath = store.link(contentPath);
+            if (linkPath != null) {
+                target.setContentPathAndFormat(linkPath, source.getFormat(), repository.getName());
+                return;
+            }
+        }
+        source.copyContent(repository.getName(), target);
+    }
+
+    /**
+     * Store a streamed upload. If a blob with the same checksum exists, the buffer file is discarded.
+     *
+     * @param upload the upload
+     * @return the new content path of the upload
+     */
+    public String store(StreamedUpload upload) {
+        File bufferFile = upload.getBufferFile();
+        File blob = getBlobFile(upload.getSha256());
+        long size = bufferFile.length();
+        String contentPath = null;
+        try {
+            if (blob.isFile() && blob.length() == size) {
+                contentPath = createLink(blob);
+            }
+            if (contentPath != null) {
+                if (!bufferFile.delete()) {
+                    log.warn("Could not delete buffer file " + bufferFile.getAbsolutePath());
+                }
+            } else {
+                // a new blob (or one which has just been removed by the cleanup).
+                contentPath = createBlob(bufferFile, blob);
+            }
+        } catch (IOException e) {
+            log.warn("Could not store the upload as blob " + blob.getAbsolutePath() + " - storing it without deduplication.", e);
+        } catch (UnsupportedOperationException e) {
+            log.warn("The content folder does not support hard links - storing the upload without deduplication.");
+        }
+        if (contentPath == null) {
+            return upload.moveToContentStore(repositoryName);
+        }
+        log.debug(String.format("stored upload with %d bytes and sha256 %s as %s", size, upload.getSha256(), contentPath));
+        return contentPath;
+    }
+
+    /**
+     * Move the buffer file into the blob folder. The content file of the object is linked to the
+     * new file before it is renamed to the blob, so the cleanup never sees the blob without a reference.
+     * If this fails, the buffer file is restored.
+     *
+     * @return the new content path
+     */
+    String createBlob(File bufferFile, File blob) throws IOException {
+        File folder = blob.getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Could not create folder " + folder.getAbsolutePath());
+        }
+        Path temp = new File(folder, blob.getName() + "." + UUID.randomUUID() + TEMP_SUFFIX).toPath();
+        // a rename, unless the file-buffer is on another file system.
+        Files.move(bufferFile.toPath(), temp);
+        String contentPath;
+        try {
+            contentPath = createLink(temp.toFile());
+        } catch (IOException e) {
+            Files.move(temp, bufferFile.toPath());
+            throw e;
+        } catch (UnsupportedOperationException e) {
+            Files.move(temp, bufferFile.toPath());
+            throw e;
+        }
+        if (contentPath == null) {
+            Files.move(temp, bufferFile.toPath());
+            return null;
+        }
+        try {
+            Files.move(temp, blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the object keeps its content, only later uploads cannot share it.
+            log.warn("Could not rename " + temp + " to blob " + blob.getAbsolutePath(), e);
+            Files.deleteIfExists(temp);
+        }
+        return contentPath;
+    }
+
+    /**
+     * Create a new content path which shares the content file of an existing one.
+     *
+     * @param contentPath the content path of an object
+     * @return the new content path, or null if no link could be created (the content must be copied instead).
+     */
+    public String link(String contentPath) {
+        File source = new File(StreamedUpload.findRepositoryFolder(repositoryName), contentPath);
+        try {
+            return createLink(source);
+        } catch (IOException e) {
+            log.warn("Could not link content file " + source.getAbsolutePath(), e);
+        } catch (UnsupportedOperationException e) {
+            log.warn("The content folder does not support hard links - copying the content.");
+        }
+        return null;
+    }
+
+    /**
+     * @return the new content path, or null if the file does not exist (anymore).
+     */
+    String createLink(File existing) throws IOException {
+        String contentPath = StreamedUpload.createContentPath();
+        File target = StreamedUpload.createContentFile(StreamedUpload.findRepositoryFolder(repositoryName), contentPath);
+        try {
+            Files.createLink(target.toPath(), existing.toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (FileAlreadyExistsException e) {
+            throw new IOException("Content file " + target.getAbsolutePath() + " already exists.", e);
+        }
+        return contentPath;
+    }
+
+    /**
+     * @param sha256 the hex encoded SHA-256 checksum of the content
+     * @return the blob file of the content (which may not exist).
+     */
+    public File getBlobFile(String sha256) {
+        String sep = File.separator;
+        return new File(blobRoot, sha256.substring(0, 2) + sep + sha256.substring(2, 4) + sep + sha256);
+    }
+
+    /**
+     * @param sha256 the hex encoded SHA-256 checksum of the content
+     * @return the number of content files which share the blob, 0 if there is no such blob,
+     *         or -1 if the file system does not report link counts.
+     */
+    public int getReferenceCount(String sha256) {
+        File blob = getBlobFile(sha256);
+        if (!blob.isFile()) {
+            return 0;
+        }
+        Integer links = getLinkCount(blob);
+        return links == null ? -1 : links - 1;
+    }
+
+    Integer getLinkCount(File file) {
+        try {
+            return (Integer) Files.getAttribute(file.toPath(), "unix:nlink");
+        } catch (IOException e) {
+            return null;
+        } catch (UnsupportedOperationException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Delete the blobs which are no longer linked to the content file of any object.
+     *
+     * @return the number of deleted blobs
+     */
+    public int removeUnreferencedBlobs() {
+        File[] level1 = blobRoot.listFiles();
+        if (level1 == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File folder1 : level1) {
+            File[] level2 = folder1.listFiles();
+            if (level2 == null) {
+                continue;
+            }
+            for (File folder2 : level2) {
+                File[] blobs = folder2.listFiles();
+                if (blobs == null) {
+                    continue;
+                }
+                for (File blob : blobs) {
+                    if (blob.getName().endsWith(TEMP_SUFFIX)
+                            && blob.lastModified() > System.currentTimeMillis() - TEMP_FILE_AGE) {
+                        // a blob which is being created.
+                        continue;
+                    }
+                    Integer links = getLinkCount(blob);
+                    if (links == null) {
+                        // without link counts, a blob can never be removed safely.
+                        return count;
+                    }
+                    if (links == 1 && blob.delete()) {
+                        count++;
+                    }
+                }
+            }
+        }
+        log.debug("removed " + count + " unreferenced content blobs of " + repositoryName);
+        return count;
+    }
+
+    /**
+     * Stop the cleanup timer.
+     */
+    public void shutdown() {
+        if (cleanupTimer != null) {
+            cleanupTimer.cancel();
+        }
+    }
+}
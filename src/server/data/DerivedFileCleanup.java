@@ -0,0 +1,118 @@
+package server.data;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes files which have been derived from content files (for example compressed copies or the
+ * text extracted by Tika) once their content file has been deleted. The content files themselves
+ * are deleted by the FileKeeper after the transaction which removed the object (or replaced its
+ * content) has been committed, so the derived files are removed periodically, every
+ * cleanupInterval milliseconds (cinnamon_config/derivedFileCleanup/interval, default: 3600000).
+ * <p>
+ * A folder of derived files mirrors the content folder of the repository: the derived file of the
+ * content path ab/cd/abcd... is folder/ab/cd/abcd...suffix. Other files in the folder are
+ * temporary files, which are removed when they are older than an hour.
+ * </p>
+ */
+public class DerivedFileCleanup {
+
+    private static final Logger log = LoggerFactory.getLogger(DerivedFileCleanup.class);
+
+    /**
+     * Temporary files which are older than this (in milliseconds) are left over from a crash.
+     */
+    static final long TEMP_FILE_AGE = 3600000L;
+
+    private final String repositoryName;
+    private final Map<File, String> folders = new ConcurrentHashMap<File, String>();
+    private final Timer cleanupTimer;
+
+    /**
+     * @param repositoryName  the name of the repository
+     * @param cleanupInterval time in milliseconds between two cleanups (0 disables the cleanup)
+     */
+    public DerivedFileCleanup(String repositoryName, long cleanupInterval) {
+        this.repositoryName = repositoryName;
+        if (cleanupInterval > 0) {
+            cleanupTimer = new Timer("DerivedFileCleanup-" + repositoryName, true);
+            cleanupTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        removeOrphanedFiles();
+                    } catch (Exception e) {
+                        log.warn("Failed to remove orphaned derived files of " + DerivedFileCleanup.this.repositoryName, e);
+                    }
+                }
+            }, cleanupInterval, cleanupInterval);
+        } else {
+            cleanupTimer = null;
+        }
+    }
+
+    /**
+     * Add a folder of derived files to the cleanup.
+     *
+     * @param folder the folder, which mirrors the content folder of the repository
+     * @param suffix the suffix which is appended to the content path of a content file
+     */
+    public void addFolder(File folder, String suffix) {
+        folders.put(folder, suffix);
+    }
+
+    /**
+     * Delete the derived files whose content file does not exist anymore.
+     *
+     * @return the number of deleted files
+     */
+    public int removeOrphanedFiles() {
+        File contentRoot = StreamedUpload.findRepositoryFolder(repositoryName);
+        int count = 0;
+        for (Map.Entry<File, String> entry : folders.entrySet()) {
+            count += removeOrphanedFiles(contentRoot, entry.getKey(), entry.getValue());
+        }
+        log.debug("removed " + count + " orphaned derived files of " + repositoryName);
+        return count;
+    }
+
+    int removeOrphanedFiles(File contentFolder, File folder, String suffix) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                count += removeOrphanedFiles(new File(contentFolder, name), file, suffix);
+                continue;
+            }
+            boolean orphaned;
+            if (name.endsWith(suffix)) {
+                orphaned = !new File(contentFolder, name.substring(0, name.length() - suffix.length())).exists();
+            } else {
+                orphaned = file.lastModified() < System.currentTimeMillis() - TEMP_FILE_AGE;
+            }
+            if (orphaned && file.delete()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stop the cleanup timer.
+     */
+    public void shutdown() {
+        if (cleanupTimer != null) {
+            cleanupTimer.cancel();
+        }
+    }
+}
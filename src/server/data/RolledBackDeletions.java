@@ -0,0 +1,112 @@
+package server.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.persistence.EntityManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import utils.FileKeeper;
+
+/**
+ * Removes the file deletions of rolled back commands from the FileKeeper.
+ * <p>
+ * Commands queue the content files of deleted objects (and the old content of objects which
+ * receive new content) with the FileKeeper, which deletes them in finishDeleteFiles after the
+ * commit. The FileKeeper has no method to forget queued files, so after a rollback the queue is
+ * processed at once, while the content files of the rolled back objects are protected: each file
+ * is kept as a hard link (or a copy, if the file system does not support links) and restored
+ * after the FileKeeper has deleted the queued files. Files which were only created by the rolled
+ * back commands are deleted, as they are no longer referenced.
+ * </p>
+ */
+public class RolledBackDeletions {
+
+    private static final Logger log = LoggerFactory.getLogger(RolledBackDeletions.class);
+
+    static final String KEEP_SUFFIX = ".keep";
+
+    private RolledBackDeletions() {
+    }
+
+    /**
+     * Delete the files which the FileKeeper has queued for deletion, except the content files of
+     * the given objects as they are stored in the database.
+     *
+     * @param em             an EntityManager which sees the state after the rollback
+     * @param repositoryName the name of the repository
+     * @param objectIds      the ids of the objects which have been changed by the rolled back commands
+     */
+    public static void discard(EntityManager em, String repositoryName, Collection<Long> objectIds) {
+        Set<File> files = new HashSet<File>();
+        for (Long id : objectIds) {
+            ObjectSystemData osd = em.find(ObjectSystemData.class, id);
+            if (osd == null) {
+                // an object which was created by the rolled back commands.
+                continue;
+            }
+            String contentPath = osd.getContentPath();
+            if (contentPath != null && contentPath.length() > 0) {
+                files.add(new File(osd.getFullContentPath(repositoryName)));
+            }
+        }
+        finishDeleteFilesExcept(files);
+    }
+
+    /**
+     * Let the FileKeeper delete its queued files, but keep the given files.
+     *
+     * @param keep the files which must not be deleted
+     */
+    static void finishDeleteFilesExcept(Collection<File> keep) {
+        Map<File, Path> copies = new LinkedHashMap<File, Path>();
+        try {
+            for (File file : keep) {
+                if (!file.isFile()) {
+                    continue;
+                }
+                Path copy = new File(file.getParentFile(), file.getName() + "." + UUID.randomUUID() + KEEP_SUFFIX).toPath();
+                try {
+                    try {
+                        Files.createLink(copy, file.toPath());
+                    } catch (UnsupportedOperationException e) {
+                        Files.copy(file.toPath(), copy, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                    copies.put(file, copy);
+                } catch (IOException e) {
+                    log.error("Could not protect content file " + file.getAbsolutePath()
+                            + " of a rolled back command - it is deleted if it has been queued.", e);
+                }
+            }
+            FileKeeper.getInstance().finishDeleteFiles();
+        } finally {
+            for (Map.Entry<File, Path> entry : copies.entrySet()) {
+                restore(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    static void restore(File file, Path copy) {
+        try {
+            if (file.exists()) {
+                Files.delete(copy);
+            } else {
+                log.debug("restoring content file " + file.getAbsolutePath() + " of a rolled back command");
+                Files.move(copy, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            log.error("Could not restore content file " + file.getAbsolutePath() + " from " + copy, e);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package server.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.exceptions.CinnamonConfigurationException;
+import server.exceptions.CinnamonException;
+import server.global.Conf;
+import server.global.ConfThreadLocal;
+
+/**
+ * An UploadedFile which was written exactly once by the streaming multipart parser.
+ * Size and SHA-256 checksum are computed while the bytes are read from the request,
+ * so the file can be renamed into the content store without another copy.
+ */
+public class StreamedUpload extends UploadedFile {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamedUpload.class);
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File bufferFile;
+    private final String sha256;
+    private final long size;
+
+    StreamedUpload(File bufferFile, String fieldName, String fileName, String contentType,
+                   long size, String sha256) {
+        super(bufferFile.getAbsolutePath(), fieldName, fileName, contentType, size);
+        this.bufferFile = bufferFile;
+        this.size = size;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * Read the stream of a multipart file item into the file-buffer folder, computing
+     * size and checksum on the way.
+     *
+     * @param in          the stream of the uploaded file item. It will be closed.
+     * @param bufferFolder the folder where the content will be stored until the
+     *                    command which uses it is executed.
+     * @param fieldName   name of the form field
+     * @param fileName    the client's file name
+     * @param contentType the content type sent by the client
+     * @return a new StreamedUpload
+     * @throws IOException if reading the request or writing the buffer file fails.
+     */
+    public static StreamedUpload receive(InputStream in, File bufferFolder, String fieldName,
+                                         String fileName, String contentType) throws IOException {
+        File target = new File(bufferFolder, UUID.randomUUID().toString());
+        MessageDigest digest = createDigest();
+        long count = 0;
+        OutputStream out = new FileOutputStream(target);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                count += read;
+            }
+        } catch (IOException e) {
+            out.close();
+            if (!target.delete()) {
+                log.warn("Could not delete incomplete upload " + target.getAbsolutePath());
+            }
+            throw e;
+        } finally {
+            out.close();
+            in.close();
+        }
+        return new StreamedUpload(target, fieldName, fileName, contentType, count, toHex(digest.digest()));
+    }
+
+    /**
+     * Move the buffered upload into the content store of the given repository.
+     * On the same file system, this is a plain rename. Otherwise the file is copied once
+     * and the buffer file is removed.
+     *
+     * @param repositoryName the name of the repository
+     * @return the content path relative to the repository's content folder (as used by
+     *         ObjectSystemData.setContentPath)
+     */
+    public String moveToContentStore(String repositoryName) {
+        String contentPath = createContentPath();
+        File target = createContentFile(findRepositoryFolder(repositoryName), contentPath);
+        if (!bufferFile.renameTo(target)) {
+            log.debug("rename failed, buffer is probably on another file system - copying instead.");
+            try {
+                copy(bufferFile, target);
+            } catch (IOException e) {
+                throw new CinnamonException("error.storing.upload", e);
+            }
+            if (!bufferFile.delete()) {
+                log.warn("Could not delete buffer file " + bufferFile.getAbsolutePath());
+            }
+        }
+        if (target.length() != size) {
+            throw new CinnamonException("error.storing.upload");
+        }
+        log.debug(String.format("stored upload with %d bytes and sha256 %s as %s", size, sha256, target.getAbsolutePath()));
+        return contentPath;
+    }
+
+    /**
+     * @return a new content path of the form ab/cd/abcd...-uuid (relative to the repository's content folder)
+     */
+    static String createContentPath() {
+        String sep = ConfThreadLocal.getConf().getSep();
+        String uuid = UUID.randomUUID().toString();
+        return uuid.substring(0, 2) + sep + uuid.substring(2, 4) + sep + uuid;
+    }
+
+    /**
+     * @param repositoryName the name of the repository
+     * @return the repository's content folder
+     */
+    static File findRepositoryFolder(String repositoryName) {
+        Conf conf = ConfThreadLocal.getConf();
+        File repositoryFolder = new File(conf.getDataRoot() + repositoryName);
+        if (!repositoryFolder.exists()) {
+            throw new CinnamonConfigurationException("Content folder of repository " + repositoryName +
+                    " is missing: " + repositoryFolder.getAbsolutePath());
+        }
+        return repositoryFolder;
+    }
+
+    /**
+     * @param repositoryFolder the repository's content folder
+     * @param contentPath      a new content path
+     * @return the (not yet existing) file of the content path, whose parent folder has been created.
+     */
+    static File createContentFile(File repositoryFolder, String contentPath) {
+        File target = new File(repositoryFolder, contentPath);
+        File targetFolder = target.getParentFile();
+        if (!targetFolder.exists() && !targetFolder.mkdirs()) {
+            throw new CinnamonException("error.storing.upload");
+        }
+        return target;
+    }
+
+    static void copy(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CinnamonConfigurationException("SHA-256 is not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    public File getBufferFile() {
+        return bufferFile;
+    }
+
+    /**
+     * @return the hex encoded SHA-256 checksum of the uploaded content.
+     */
+    public String getSha256() {
+        return sha256;
+    }
+}
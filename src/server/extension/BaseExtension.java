@@ -3,6 +3,7 @@ package server.extension;
 import javax.persistence.EntityManager;
 import javax.servlet.http.HttpServletResponse;
 
+import server.CinnamonRepository;
 import server.User;
 import server.interfaces.ApiClass;
 import server.interfaces.ApiProvider;
@@ -66,6 +67,16 @@ public abstract class BaseExtension extends ApiClass implements ApiProvider  {
 	public void setRepository(Repository repository) {
 		this.repository = repository;
 	}
+
+	/**
+	 * Remove the cached permissions of the repository's users. Extensions which change ACLs,
+	 * groups, group memberships or permissions must call this method.
+	 */
+	protected void invalidatePermissionCaches(){
+		if(repository instanceof CinnamonRepository){
+			((CinnamonRepository) repository).invalidatePermissionCaches();
+		}
+	}
 	
 //	@Override	
 //	public CommandRegistry findAndRegisterMethods(CommandRegistry cmdReg) {
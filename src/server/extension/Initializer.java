@@ -136,6 +136,11 @@ public class Initializer extends BaseExtension {
         // clear the index:
         clearLuceneIndex();
 
+        // new ChangeTriggers have been created:
+        if (repository.getCommandRegistry() instanceof CinnamonCommandRegistry) {
+            ((CinnamonCommandRegistry) repository.getCommandRegistry()).getTriggerCache().invalidate();
+        }
+
         log.debug("creating xmlResponse with res:" + res);
         XmlResponse resp = new XmlResponse(res);
         Element root = resp.getDoc().addElement("initializeDatabase");
@@ -591,6 +596,63 @@ public class Initializer extends BaseExtension {
         cii.initializeIndexTypes();
         cii.createFolderSysMetaItems();
         cii.createOSDSysMetaItems();
+        createPermissionIndexItems();
+    }
+
+    /**
+     * The initializeSearchPermissionIndex command adds the index items for the ACL and the owner of
+     * objects and folders, which are required by the search permission filter
+     * (cinnamon_config/searchPermissionFilter/enabled) of existing repositories.
+     * Afterwards, the repository must be reindexed.
+     * <p/>
+     * <h2>Parameters in HTTP Request</h2>
+     * <ul>
+     * <li>command=initializesearchpermissionindex</li>
+     * </ul>
+     *
+     * @param cmd the HTTP-request parameters as a Map[String,String].
+     * @return &lt;result&gt;"Initialization completed."&lt;/result&gt;
+     */
+    @CinnamonMethod
+    public Response initializeSearchPermissionIndex(Map<String, String> cmd) {
+        IndexItemDAO iiDao = daoFactory.getIndexItemDAO(em);
+        for (IndexItem item : iiDao.list()) {
+            if (item.getName().equals("index.acl") || item.getName().equals("index.owner")) {
+                throw new CinnamonConfigurationException("The search permission index items already exist.");
+            }
+        }
+        createPermissionIndexItems();
+        em.flush();
+        repository.getLuceneBridge().setIndexItemList(iiDao.list());
+
+        XmlResponse resp = new XmlResponse(res);
+        Element root = resp.getDoc().addElement("initializeSearchPermissionIndex");
+        root.addElement("result").addText("Initialization completed.");
+        return resp;
+    }
+
+    /**
+     * Index the ACL id and the owner id of each item's system metadata, so the
+     * SearchPermissionFilter can restrict queries to browsable items.
+     */
+    void createPermissionIndexItems() {
+        IndexGroupDAO igDao = daoFactory.getIndexGroupDAO(em);
+        IndexGroup ig = igDao.findByName(Constants.INDEX_GROUP_DEFAULT);
+        IndexTypeDAO itDao = daoFactory.getIndexTypeDAO(em);
+        IndexType type = itDao.findByName("xpath.integer_indexer");
+        if (type == null) {
+            log.warn("Could not find IndexType xpath.integer_indexer - search permission index items were not created.");
+            return;
+        }
+        IndexItemDAO iiDao = daoFactory.getIndexItemDAO(em);
+        IndexItem ii = new IndexItem("index.acl", "//aclId",
+                "true()", SearchPermissionFilter.FIELD_ACL, type,
+                true, "<vaParams/>", false, ig, false, false, true);
+        iiDao.makePersistent(ii);
+        ii = new IndexItem("index.owner", "//owner/id",
+                "true()", SearchPermissionFilter.FIELD_OWNER, type,
+                true, "<vaParams/>", false, ig, false, false, true);
+        iiDao.makePersistent(ii);
     }
 
     public void addRelationResolvers() {
@@ -1,16 +1,25 @@
 package server.extension;
 
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.util.*;
 
 import org.dom4j.Document;
 import org.dom4j.Element;
 import org.dom4j.Node;
+import org.dom4j.io.SAXReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 import server.*;
 import server.dao.*;
+import server.data.DeduplicatingContentStore;
 import server.data.ObjectSystemData;
 import server.exceptions.CinnamonException;
 import server.helpers.ObjectTreeCopier;
@@ -285,18 +294,22 @@ public class Translation extends BaseExtension {
     ObjectSystemData checkRelation(Relation relation, String attribute, String attributeValue) {
         ObjectSystemData osd = relation.getRight();
         ObjectSystemData objectTreeRoot = null;
-        String[] xmlForm = {osd.getMetadata(), osd.getSystemMetadata(), osd.getContent(repository.getName())};
+        // the content is only read if neither metadata nor system metadata match.
+        String[] xmlForm = {osd.getMetadata(), osd.getSystemMetadata(), null};
         for (String xml : xmlForm) {
             log.debug("testing: " + attribute + " value: " + attributeValue);
-            log.debug("against: " + xml);
+            log.debug("against: " + (xml == null ? "content" : xml));
             Document doc;           
             try{
-                doc = ParamParser.parseXmlToDocument(xml, null);
+                doc = xml == null ? readContent(osd) : ParamParser.parseXmlToDocument(xml, null);
             }
             catch (Exception e){
                 log.debug("Failed to parse xml [will ignore non-xml content]: "+e.getMessage());
                 continue;
             }
+            if (doc == null) {
+                continue;
+            }
             
             try {
                 Node node = doc.selectSingleNode(attribute);
@@ -314,6 +327,43 @@ public class Translation extends BaseExtension {
         return objectTreeRoot;
     }
 
+    /**
+     * Parse the content of an object directly from its content file,
+     * without reading it into a String first. Like ParamParser, the reader
+     * rejects a DOCTYPE and does not resolve external entities.
+     *
+     * @param osd the object
+     * @return the parsed content, or null if the object has no content.
+     * @throws Exception if the content is not XML or cannot be read.
+     */
+    Document readContent(ObjectSystemData osd) throws Exception {
+        String contentPath = osd.getContentPath();
+        if (contentPath == null || contentPath.length() == 0) {
+            return null;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(osd.getFullContentPath(repository.getName())));
+        try {
+            return createContentReader().read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    static SAXReader createContentReader() throws SAXException {
+        SAXReader reader = new SAXReader();
+        reader.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        reader.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        reader.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        reader.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        reader.setEntityResolver(new EntityResolver() {
+            @Override
+            public InputSource resolveEntity(String publicId, String systemId) {
+                return new InputSource(new StringReader(""));
+            }
+        });
+        return reader;
+    }
+
     /**
      * Copy a root object and all of its descendants.
      * Creates a relation between the root of the original and the copy.
@@ -429,7 +479,7 @@ public class Translation extends BaseExtension {
      * @param target the recipient of the copied content and metadata.
      */
     void copyContentAndMetadata(ObjectSystemData source, ObjectSystemData target) {
-        source.copyContent(repository.getName(), target);
+        DeduplicatingContentStore.copyContent(repository, source, target);
         target.setMetadata(source.getMetadata());
     }
 
@@ -1,11 +1,15 @@
 package server.extension;
 
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
 
 import org.dom4j.Document;
+import org.dom4j.Element;
 import org.dom4j.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,18 +22,23 @@ import server.dao.ObjectTypeDAO;
 import server.dao.RelationDAO;
 import server.dao.RelationTypeDAO;
 import server.dao.UserDAO;
+import server.data.DeduplicatingContentStore;
 import server.data.ObjectSystemData;
 import server.data.Validator;
 import server.exceptions.CinnamonConfigurationException;
 import server.exceptions.CinnamonException;
 import server.global.Constants;
 import server.global.PermissionName;
+import server.helpers.KeysetPager;
 import server.interfaces.CommandRegistry;
 import server.interfaces.Repository;
 import server.interfaces.Response;
 import server.response.XmlResponse;
 import utils.ParamParser;
 import server.interfaces.Transition;
+import workflow.TransitionPlanCache;
+import workflow.TransitionPlanCache.TransitionPlan;
+import workflow.WorkflowServer;
 
 public class WorkflowApi extends BaseExtension{
 
@@ -54,6 +63,28 @@ public class WorkflowApi extends BaseExtension{
 	}
 	
 	static DAOFactory daoFactory = DAOFactory.instance(DAOFactory.HIBERNATE);
+
+	/**
+	 * Report a new or changed task or workflow to the repository's WorkflowServer, which executes
+	 * automatic transitions and deadlines after the current transaction has been committed.
+	 * @param osd a task or workflow
+	 */
+	void scheduleWorkflowEvent(ObjectSystemData osd){
+		scheduleWorkflowEvent(osd, null);
+	}
+
+	/**
+	 * @param osd a task or workflow
+	 * @param template the template of a new workflow, or null
+	 */
+	void scheduleWorkflowEvent(ObjectSystemData osd, ObjectSystemData template){
+		if(repository instanceof CinnamonRepository){
+			WorkflowServer workflowServer = ((CinnamonRepository) repository).getWorkflowServer();
+			if(workflowServer != null){
+				workflowServer.schedule(osd, template);
+			}
+		}
+	}
 	
 	/**
 	 * Create a new Workflow. User must have CREATE_INSTANCE-Permission.
@@ -116,6 +147,7 @@ public class WorkflowApi extends BaseExtension{
 		workflow.setType(workflowType);
 		workflow.setProcstate(Constants.PROCSTATE_WORKFLOW_STARTED);
 		osdDao.makePersistent(workflow);
+		scheduleWorkflowEvent(workflow, workflowTemplate);
 
 		log.debug("Creating new Start Task from task_definition");
 		RelationTypeDAO rtDao = daoFactory.getRelationTypeDAO(em);
@@ -139,10 +171,9 @@ public class WorkflowApi extends BaseExtension{
 		// possible optimization: add the fooDAOs as fields to the class.
 		FolderDAO fDao = daoFactory.getFolderDAO(em);
 		Folder taskFolder = fDao.findByPath(Constants.WORKFLOW_TASK_PATH);
-		ObjectTypeDAO otDao = daoFactory.getObjectTypeDAO(em);
-		ObjectType taskType = otDao.findByName(Constants.OBJTYPE_TASK);
+		TransitionPlanCache planCache = findTransitionPlanCache();
+		ObjectType taskType = planCache.findObjectType(em, Constants.OBJTYPE_TASK);
 		ObjectSystemDataDAO osdDao = daoFactory.getObjectSystemDataDAO(em);
-		RelationTypeDAO rtDao = daoFactory.getRelationTypeDAO(em);
 		RelationDAO relDao = daoFactory.getRelationDAO(em);
 
 		ObjectSystemData task = taskDef.createClone();
@@ -168,15 +199,16 @@ public class WorkflowApi extends BaseExtension{
 		}
 
 		osdDao.makePersistent(task);
+		scheduleWorkflowEvent(task);
 
 		// copy content of startTask
-		taskDef.copyContent(repository.getName(), task);
+		DeduplicatingContentStore.copyContent(repository, taskDef, task);
 
 		// create relation between workflow and start task
 		/*
 		 * Note: this is a normal relation, not a start_task_relation.
 		 */
-		RelationType taskRelType = rtDao.findByName(Constants.RELATION_TYPE_WORKFLOW_TO_TASK);
+		RelationType taskRelType = planCache.findRelationType(em, Constants.RELATION_TYPE_WORKFLOW_TO_TASK);
 		relDao.findOrCreateRelation(taskRelType, workflow, task, "");
 
 		return task;
@@ -197,12 +229,26 @@ public class WorkflowApi extends BaseExtension{
 	 * <li>command=findopentasks</li>
 	 * <li>[workflow_id]= optional: workflow_id</li>
 	 * <li>[user_id] = optional: only return tasks for this user_id</li>
+	 * <li>[page_size]= optional: return at most this many tasks, sorted by id. The root element then
+	 * has the attributes has-more and next-after-id, which is used as after_id to request the next page.</li>
+	 * <li>[after_id]= optional: id of the last task of the previous page</li>
+	 * <li>[changed_since]= optional: only return tasks which have been modified after this time
+	 * (in milliseconds), whatever their procstate, so the client also learns about tasks which have
+	 * been finished (tasks which have been deleted are not returned). With count_only, only open
+	 * tasks are counted. The root element has the attribute next-changed-since for the next request:
+	 * the server time at the start of this request minus a safety window of one minute for
+	 * transactions which were still running, so a task may be returned by two requests.</li>
+	 * <li>[count_only]= optional: true to return only the number of open tasks per owner:
+	 * {@code <openTasks count="3"><owner id="5" count="2"/><owner id="7" count="1"/></openTasks>}</li>
 	 * <li>ticket=session ticket</li>
 	 * </ul>
 	 *
 	 */
 	@CinnamonMethod
 	public Response findOpenTasks(Map<String,String> cmd){
+		if(cmd.containsKey("page_size") || cmd.containsKey("changed_since") || "true".equals(cmd.get("count_only"))){
+			return findOpenTaskPage(cmd);
+		}
 		ObjectSystemData workflow;
 		ObjectSystemDataDAO oDao = daoFactory.getObjectSystemDataDAO(em);
 		UserDAO uDao = daoFactory.getUserDAO(em);
@@ -261,6 +307,129 @@ public class WorkflowApi extends BaseExtension{
 	    return resp;
 	}
 
+	/**
+	 * findOpenTasks with page_size, changed_since or count_only: the open tasks are selected
+	 * (or counted per owner) by the database instead of loading all of them.
+	 */
+	@SuppressWarnings("unchecked")
+	Response findOpenTaskPage(Map<String,String> cmd){
+		long requestTime = System.currentTimeMillis();
+		TransitionPlanCache planCache = findTransitionPlanCache();
+		Map<String,Object> parameters = new HashMap<String,Object>();
+		parameters.put("type", planCache.findObjectType(em, Constants.OBJTYPE_TASK));
+		StringBuilder condition = new StringBuilder("o.type = :type");
+		boolean countOnly = "true".equals(cmd.get("count_only"));
+		if(countOnly || ! cmd.containsKey("changed_since")){
+			// incremental requests also return tasks which are no longer open.
+			condition.append(" and o.procstate = :procstate");
+			parameters.put("procstate", Constants.PROCSTATE_TASK_TODO);
+		}
+		if(cmd.containsKey("user_id")){
+			User owner = daoFactory.getUserDAO(em).get(cmd.get("user_id"));
+			if(owner == null){
+				throw new CinnamonException("error.user.not_found");
+			}
+			condition.append(" and o.owner = :owner");
+			parameters.put("owner", owner);
+		}
+		if(cmd.containsKey("workflow_id")){
+			ObjectSystemData workflow = daoFactory.getObjectSystemDataDAO(em).get(cmd.get("workflow_id"));
+			if(workflow == null){
+				throw new CinnamonException("error.workflow.not_found");
+			}
+			condition.append(" and o.id in (select r.right.id from Relation r where r.left = :workflow and r.type = :relationType)");
+			parameters.put("workflow", workflow);
+			parameters.put("relationType", planCache.findRelationType(em, Constants.RELATION_TYPE_WORKFLOW_TO_TASK));
+		}
+		if(cmd.containsKey("changed_since")){
+			Long since = ParamParser.parseLong(cmd.get("changed_since"), "error.param.changed_since");
+			condition.append(" and o.modified > :since");
+			parameters.put("since", new Date(since));
+		}
+
+		XmlResponse resp = new XmlResponse(res);
+		if(countOnly){
+			Query query = em.createQuery("select o.owner.id, count(o) from ObjectSystemData o where "
+					+ condition + " group by o.owner.id");
+			for(Map.Entry<String,Object> parameter : parameters.entrySet()){
+				query.setParameter(parameter.getKey(), parameter.getValue());
+			}
+			Element root = resp.getDoc().addElement("openTasks");
+			long total = 0;
+			for(Object[] row : (List<Object[]>) query.getResultList()){
+				Element ownerNode = root.addElement("owner");
+				ownerNode.addAttribute("id", String.valueOf(row[0]));
+				ownerNode.addAttribute("count", String.valueOf(row[1]));
+				total += ((Number) row[1]).longValue();
+			}
+			root.addAttribute("count", String.valueOf(total));
+			addChangedSince(cmd, root, requestTime);
+			return resp;
+		}
+
+		List<ObjectSystemData> tasks;
+		KeysetPager.Page<ObjectSystemData> page = null;
+		if(cmd.containsKey("page_size")){
+			KeysetPager<ObjectSystemData> pager = new KeysetPager<ObjectSystemData>(em, "ObjectSystemData", "o",
+					condition.toString(), taskKey);
+			for(Map.Entry<String,Object> parameter : parameters.entrySet()){
+				pager.setParameter(parameter.getKey(), parameter.getValue());
+			}
+			int pageSize = ParamParser.parseInt(cmd.get("page_size"), "error.param.page_size");
+			Long afterId = null;
+			if(cmd.containsKey("after_id")){
+				afterId = ParamParser.parseLong(cmd.get("after_id"), "error.param.after_id");
+			}
+			page = pager.fetch(pageSize, afterId, null, KeysetPager.SortOrder.ID);
+			tasks = page.getItems();
+		}
+		else{
+			Query query = em.createQuery("select o from ObjectSystemData o where " + condition + " order by o.id");
+			for(Map.Entry<String,Object> parameter : parameters.entrySet()){
+				query.setParameter(parameter.getKey(), parameter.getValue());
+			}
+			tasks = query.getResultList();
+		}
+		Document doc = ObjectSystemData.generateQueryObjectResultDocument(tasks);
+		if(page != null){
+			page.addToElement(doc.getRootElement());
+		}
+		addChangedSince(cmd, doc.getRootElement(), requestTime);
+		resp.setDoc(doc);
+		return resp;
+	}
+
+	/**
+	 * Add the cursor for the next changed_since request. The modification time of a task is set
+	 * before its transaction is committed, so a change which is committed after this request has read
+	 * the tasks may have an earlier time: the cursor lies CHANGED_SINCE_WINDOW before the start of
+	 * this request, and the next request returns such tasks (and possibly some tasks again).
+	 */
+	void addChangedSince(Map<String,String> cmd, Element root, long requestTime){
+		if(cmd.containsKey("changed_since")){
+			root.addAttribute("next-changed-since", String.valueOf(requestTime - CHANGED_SINCE_WINDOW));
+		}
+	}
+
+	/**
+	 * Time in milliseconds for which a transaction may run before its changed tasks could be missed
+	 * by an incremental findOpenTasks request.
+	 */
+	static final long CHANGED_SINCE_WINDOW = 60000L;
+
+	static final KeysetPager.Key<ObjectSystemData> taskKey = new KeysetPager.Key<ObjectSystemData>() {
+		@Override
+		public Long getId(ObjectSystemData item) {
+			return item.getId();
+		}
+
+		@Override
+		public String getName(ObjectSystemData item) {
+			// tasks are always sorted by id.
+			return null;
+		}
+	};
+
 	/**
 	 * Execute a transition from one task to another (or the end point of a workflow).
 	 * The required parameters must be set beforehand in the task.
@@ -289,8 +458,7 @@ public class WorkflowApi extends BaseExtension{
         val.validatePermissions(task, PermissionName.READ_OBJECT_CUSTOM_METADATA, PermissionName.WRITE_OBJECT_CUSTOM_METADATA, PermissionName.WRITE_OBJECT_SYS_METADATA);
         
 		String transitionName = cmd.get("transition_name");
-		String transitionXpath = String.format("/meta/metaset[@type='transition']/transition[name='%s']",transitionName);
-		executeTransition(task, transitionXpath);
+		executeNamedTransition(task, transitionName);
 		
 		XmlResponse resp = new XmlResponse(res);
 		resp.addTextNode("success", "transition.successful");
@@ -299,6 +467,7 @@ public class WorkflowApi extends BaseExtension{
 	
 	/**
 	 * Execute the transition which can be found at the end of the given transitionXpath.
+	 * The XPath is evaluated on the task's metadata.
 	 * @param task the task which holds the transition configuration in its metadata
 	 * @param transitionXpath the optional transitionXpath param defines the xpath statement which returns the
      *                        transition that should be selected. If null, executeTransition uses the default
@@ -306,19 +475,60 @@ public class WorkflowApi extends BaseExtension{
 	 */
 	public void executeTransition(ObjectSystemData task, String transitionXpath){
 		if(transitionXpath == null){
-			transitionXpath = "/meta/metaset[@type='transition']/transition[name=/meta/metaset[@type='transition']/default]";
+			executeNamedTransition(task, null);
+			return;
 		}
-		ObjectSystemDataDAO oDao = daoFactory.getObjectSystemDataDAO(em);
-		String meta = task.getMetadata();
 		log.debug("transitionXPath: "+transitionXpath);
+		TransitionPlanCache planCache = findTransitionPlanCache();
+		Node transitionNode = ParamParser.parseXmlToDocument(task.getMetadata(), null).selectSingleNode(transitionXpath);
+        if(transitionNode == null){
+            throw new RuntimeException("Could not find transition with xpath: "+transitionXpath);
+        }
+		executeTransition(task, transitionNode, planCache);
+	}
+
+	/**
+	 * Execute a transition of a task. The task's metadata is parsed once; the transitions of its
+	 * transition metaset are cached per task definition (see {@link TransitionPlanCache}).
+	 * @param task the task which holds the transition configuration in its metadata
+	 * @param transitionName the name of the transition, or null for the task's default transition.
+	 */
+	public void executeNamedTransition(ObjectSystemData task, String transitionName){
         log.debug("taskId: "+task.getId());
         log.debug("taskName:"+task.getName());
-        log.debug("meta: "+task.getMetadata());
-		Node transitionNode 
-			= ParamParser.parseXmlToDocument(meta, null).selectSingleNode(transitionXpath);
+		TransitionPlanCache planCache = findTransitionPlanCache();
+		Document metadata = ParamParser.parseXmlToDocument(task.getMetadata(), null);
+		Element transitionMetaset = (Element) metadata.selectSingleNode("/meta/metaset[@type='transition']");
+		if(transitionMetaset == null){
+			throw new RuntimeException("Could not find the transition metaset of task #"+task.getId());
+		}
+		TransitionPlan plan = planCache.getPlan(transitionMetaset);
+		if(transitionName == null){
+			transitionName = plan.getDefaultName();
+		}
+		log.debug("transition: "+transitionName);
+		Node transitionNode = transitionName == null ? null : plan.findTransitionNode(transitionMetaset, transitionName);
         if(transitionNode == null){
-            throw new RuntimeException("Could not find transition with xpath: "+transitionXpath);
+            throw new RuntimeException("Could not find transition with name: "+transitionName);
         }
+		executeTransition(task, transitionNode, planCache);
+	}
+
+	/**
+	 * @return the repository's TransitionPlanCache (or a new, empty cache if it has none).
+	 */
+	TransitionPlanCache findTransitionPlanCache(){
+		if(repository instanceof CinnamonRepository){
+			WorkflowServer workflowServer = ((CinnamonRepository) repository).getWorkflowServer();
+			if(workflowServer != null){
+				return workflowServer.getTransitionPlanCache();
+			}
+		}
+		return new TransitionPlanCache(0);
+	}
+
+	void executeTransition(ObjectSystemData task, Node transitionNode, TransitionPlanCache planCache){
+		ObjectSystemDataDAO oDao = daoFactory.getObjectSystemDataDAO(em);
         Node transitionClassNode = transitionNode.selectSingleNode("class");
         if(transitionClassNode == null){
             throw new RuntimeException("Could not find transitionClassNode.");
@@ -326,21 +536,11 @@ public class WorkflowApi extends BaseExtension{
 		String transitionClass = transitionClassNode.getText();
 		log.debug("transitionClass: "+transitionClass);
 
-		List<ObjectSystemData> newTasks;
-		try {
-			Transition transition = (Transition) Class.forName(transitionClass).newInstance();
-			newTasks = transition.execute(task, transitionNode, repository);
-		} catch (IllegalAccessException e) {
-			throw new RuntimeException(e);
-		} catch(InstantiationException e){
-			throw new RuntimeException(e);
-		} catch(ClassNotFoundException e){
-			throw new CinnamonConfigurationException(e);
-		}
+		Transition transition = planCache.createTransition(transitionClass);
+		List<ObjectSystemData> newTasks = transition.execute(task, transitionNode, repository);
 		
 		// create relation between workflow and new tasks
-		RelationTypeDAO rtDao = daoFactory.getRelationTypeDAO(em);
-		RelationType taskRelType = rtDao.findByName(Constants.RELATION_TYPE_WORKFLOW_TO_TASK);
+		RelationType taskRelType = planCache.findRelationType(em, Constants.RELATION_TYPE_WORKFLOW_TO_TASK);
 		RelationDAO relDao = daoFactory.getRelationDAO(em);
 		List<Relation> workflowRelations = relDao.findAllByRightAndType(task, taskRelType);
 		/*
@@ -350,15 +550,16 @@ public class WorkflowApi extends BaseExtension{
 		ObjectSystemData workflow = workflowRelations.get(0).getLeft();
 		for(ObjectSystemData aTask : newTasks){
 			relDao.findOrCreateRelation(taskRelType, workflow, aTask, "");
+			scheduleWorkflowEvent(aTask);
 		}
         task.setProcstate(Constants.PROCSTATE_TASK_DONE);
+		scheduleWorkflowEvent(task);
 		if(newTasks.isEmpty()){
 			/*
 			 *  if there are no new tasks, check if finished.
 			 *  (a workflow is finished if there are no open tasks left)
 			 */
-			ObjectTypeDAO otDao = daoFactory.getObjectTypeDAO(em);
-			ObjectType ot = otDao.findByName(Constants.OBJTYPE_TASK);
+			ObjectType ot = planCache.findObjectType(em, Constants.OBJTYPE_TASK);
 			List<ObjectSystemData> remainingTasks 
 				= oDao.findAllByTypeAndProcstateAndRelationToLeftOsd(ot, 
 					Constants.PROCSTATE_TASK_TODO, workflow);
@@ -366,6 +567,7 @@ public class WorkflowApi extends BaseExtension{
 			if(remainingTasks.isEmpty() || (remainingTasks.size() == 1 && remainingTasks.contains(task))){
 				log.debug(" => workflow is finished");
 				workflow.setProcstate(Constants.PROCSTATE_WORKFLOW_FINISHED);
+				scheduleWorkflowEvent(workflow);
 			}
 		}		
 	}
@@ -78,6 +78,7 @@ public class AclManager extends BaseExtension{
 			
 		GroupDAO groupDAO = daoFactory.getGroupDAO(em);
 		AclEntry ae = groupDAO.addToAcl(aclId, groupId);
+		invalidatePermissionCaches();
 		ae.toXmlElement(root);
 		return resp;
 	}
@@ -129,6 +130,7 @@ public class AclManager extends BaseExtension{
 		log.debug( "Trying to delete ACL " + aclId);
 		AclDAO aclDAO = daoFactory.getAclDAO(em);
 		aclDAO.delete(aclId);
+		invalidatePermissionCaches();
 			
 		log.debug( "Deleted ACL.");
 		XmlResponse resp = new XmlResponse(res);
@@ -186,6 +188,7 @@ public class AclManager extends BaseExtension{
 			
 		GroupDAO groupDAO = daoFactory.getGroupDAO(em);
 		groupDAO.removeFromAcl(aclID, groupID);
+		invalidatePermissionCaches();
 		
 		XmlResponse resp = new XmlResponse(res);
 		resp.addTextNode("success", "group.removed_from_acl");		
@@ -222,6 +225,7 @@ public class AclManager extends BaseExtension{
 		AclEntryPermission aep =  new AclEntryPermission(aclEntry, permission);
 		AclEntryPermissionDAO aepDao = daoFactory.getAclEntryPermissionDAO(em);
 		aepDao.makePersistent(aep);
+		invalidatePermissionCaches();
 		Long aepId = aep.getId();
 		log.debug("aepId: "+aepId);
 
@@ -281,6 +285,7 @@ public class AclManager extends BaseExtension{
 			aclEntry.getAePermissions().remove(aep);
 			permission.getAePermissions().remove(aep);
 			aepDao.delete(aep);
+			invalidatePermissionCaches();
 			resp.addTextNode("success", "success.remove.permission");
 		}
 		else{
@@ -120,6 +120,7 @@ public class GroupManager extends BaseExtension{
         }
 		log.debug("Found the group to delete: "+exists.getName());
 		groupDAO.delete(id);
+		invalidatePermissionCaches();
 
 		root.addElement("result").addElement("value").addText("true");
 
@@ -155,6 +156,7 @@ public class GroupManager extends BaseExtension{
 
 		UserDAO userDAO = daoFactory.getUserDAO(em);
 		userDAO.addToGroup(userId, groupId);
+		invalidatePermissionCaches();
 			
 		root.addElement("addUserToGroup").addAttribute("result", "true");
     	resp.setDoc(result);
@@ -189,6 +191,7 @@ public class GroupManager extends BaseExtension{
 
 		GroupDAO groupDao = daoFactory.getGroupDAO(em);
 		groupDao.removeUserFromGroup(userId, groupId);
+		invalidatePermissionCaches();
 		
 		root.addElement("removeUserFromGroup").addAttribute("result", "true");
     	return resp;
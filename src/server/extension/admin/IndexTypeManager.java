@@ -1,8 +1,11 @@
 package server.extension.admin;
 
+import org.dom4j.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import server.CinnamonMethod;
+import server.CinnamonRepository;
+import server.IndexQueue;
 import server.Format;
 import server.dao.DAOFactory;
 import server.dao.FormatDAO;
@@ -96,4 +99,70 @@ public class IndexTypeManager extends BaseExtension{
 		return  resp;
 	}
 
+	/**
+	 * Report the state of the repository's index queue.<br>
+	 * @param cmd HTTP request parameter map:
+	 * <ul>
+	 * <li>command=getindexqueuestatus</li>
+	 * <li>ticket=session ticket</li>
+	 * </ul>
+	 * @return XML-Response:
+	 * {@code
+	 * 	<indexQueue><enabled>true</enabled><pending>3</pending><lag>120</lag>
+	 * 	<sequence>4711</sequence><processed>4700</processed><failed>0</failed></indexQueue>
+	 * }
+	 * lag is the age of the oldest unprocessed operation in milliseconds.
+	 */
+	@CinnamonMethod
+	public Response getIndexQueueStatus(Map<String,String> cmd) {
+		XmlResponse resp = new XmlResponse(res);
+		addIndexQueueStatus(resp.getDoc().addElement("indexQueue"), findIndexQueue());
+		return resp;
+	}
+
+	/**
+	 * Wait until all index operations which were queued before this request have been processed.<br>
+	 * @param cmd HTTP request parameter map:
+	 * <ul>
+	 * <li>command=flushindexqueue</li>
+	 * <li>[timeout]=maximum time to wait in milliseconds (default: 30000)</li>
+	 * <li>ticket=session ticket</li>
+	 * </ul>
+	 * @return XML-Response: the status of the index queue (see getIndexQueueStatus) with an additional
+	 * element flushed, which is false if the timeout has expired.
+	 */
+	@CinnamonMethod
+	public Response flushIndexQueue(Map<String,String> cmd) {
+		long timeout = 30000L;
+		if(cmd.containsKey("timeout")){
+			timeout = ParamParser.parseLong(cmd.get("timeout"), "error.param.timeout");
+		}
+		IndexQueue indexQueue = findIndexQueue();
+		boolean flushed = indexQueue == null || indexQueue.flush(timeout);
+		XmlResponse resp = new XmlResponse(res);
+		Element root = resp.getDoc().addElement("indexQueue");
+		addIndexQueueStatus(root, indexQueue);
+		root.addElement("flushed").addText(String.valueOf(flushed));
+		return resp;
+	}
+
+	IndexQueue findIndexQueue(){
+		if(repository instanceof CinnamonRepository){
+			return ((CinnamonRepository) repository).getIndexQueue();
+		}
+		return null;
+	}
+
+	void addIndexQueueStatus(Element root, IndexQueue indexQueue){
+		root.addElement("enabled").addText(String.valueOf(indexQueue != null));
+		if(indexQueue == null){
+			return;
+		}
+		root.addElement("pending").addText(String.valueOf(indexQueue.getPendingCount()));
+		root.addElement("lag").addText(String.valueOf(indexQueue.getLag()));
+		root.addElement("sequence").addText(String.valueOf(indexQueue.getSequence()));
+		root.addElement("processed").addText(String.valueOf(indexQueue.getProcessedCount()));
+		root.addElement("failed").addText(String.valueOf(indexQueue.getFailedCount()));
+	}
+
 }
@@ -92,6 +92,7 @@ public class PermissionManager extends BaseExtension{
 			throw new CinnamonException("error.object.not.found");
 		}
 		pDao.makeTransient(permission);
+		invalidatePermissionCaches();
 		
 		String msg = String.format("Permission with id %s was successfully deleted.", id);
 		XmlResponse resp = new XmlResponse(res);
@@ -0,0 +1,220 @@
+package server.helpers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.dom4j.Element;
+
+/**
+ * Loads one page of a sorted query result with keyset pagination: instead of an offset, the client
+ * sends the sort key of the last item of the previous page (after_id and, when sorting by name,
+ * after_name). Rows are fetched in chunks until the page is filled with items which pass the
+ * filter (for example, a permission check), so the cost of a page does not depend on its position
+ * in the result.
+ *
+ * @param <T> the entity class
+ */
+public class KeysetPager<T> {
+
+    public enum SortOrder {
+        ID, NAME
+    }
+
+    /**
+     * Removes the items which may not be returned to the client.
+     */
+    public interface Filter<T> {
+        /**
+         * @param items the items of one chunk, in query order
+         * @return the accepted items, in query order
+         */
+        List<T> filter(List<T> items);
+    }
+
+    /**
+     * Reads the sort key of an item.
+     */
+    public interface Key<T> {
+        Long getId(T item);
+
+        /**
+         * @return the name of the item (only needed for {@link SortOrder#NAME})
+         */
+        String getName(T item);
+    }
+
+    /**
+     * Upper limit for the page_size parameter.
+     */
+    public static final int MAX_PAGE_SIZE = 1000;
+    static final int MIN_CHUNK_SIZE = 50;
+
+    private EntityManager em;
+    private String entity;
+    private String alias;
+    private String condition;
+    private Key<T> key;
+    private Filter<T> filter;
+    private Map<String, Object> parameters = new HashMap<String, Object>();
+
+    /**
+     * @param em        the EntityManager
+     * @param entity    the entity name, for example "ObjectSystemData"
+     * @param alias     the alias of the entity in the condition, for example "o"
+     * @param condition the JPQL where-condition without the keyset part, for example "o.parent.id = :parentId"
+     * @param key       the accessor for the sort key
+     */
+    public KeysetPager(EntityManager em, String entity, String alias, String condition, Key<T> key) {
+        this.em = em;
+        this.entity = entity;
+        this.alias = alias;
+        this.condition = condition;
+        this.key = key;
+    }
+
+    public KeysetPager<T> setParameter(String name, Object value) {
+        parameters.put(name, value);
+        return this;
+    }
+
+    public KeysetPager<T> setFilter(Filter<T> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Fetch the next page.
+     *
+     * @param pageSize  the maximum number of items on the page (1 to {@link #MAX_PAGE_SIZE})
+     * @param afterId   id of the last item of the previous page, or null for the first page
+     * @param afterName name of the last item of the previous page (only used with {@link SortOrder#NAME})
+     * @param sortOrder the order of the items
+     * @return the page
+     */
+    @SuppressWarnings("unchecked")
+    public Page<T> fetch(int pageSize, Long afterId, String afterName, SortOrder sortOrder) {
+        pageSize = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        // over-fetch, because some items may be removed by the filter.
+        int chunkSize = Math.max(pageSize * 2, MIN_CHUNK_SIZE);
+        Page<T> page = new Page<T>(sortOrder);
+        while (true) {
+            Query query = em.createQuery(buildQuery(afterId, afterName, sortOrder));
+            for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+                query.setParameter(parameter.getKey(), parameter.getValue());
+            }
+            if (afterId != null || (sortOrder == SortOrder.NAME && afterName != null)) {
+                query.setParameter("afterId", afterId == null ? Long.MIN_VALUE : afterId);
+            }
+            if (sortOrder == SortOrder.NAME && afterName != null) {
+                query.setParameter("afterName", afterName);
+            }
+            query.setMaxResults(chunkSize);
+            List<T> rows = query.getResultList();
+            List<T> accepted = filter == null ? rows : filter.filter(new ArrayList<T>(rows));
+
+            for (T item : accepted) {
+                if (page.items.size() == pageSize) {
+                    // there is at least one more item.
+                    page.hasMore = true;
+                    break;
+                }
+                page.items.add(item);
+            }
+            if (page.items.size() == pageSize) {
+                // the next chunk may contain more items (or only filtered ones).
+                page.hasMore = page.hasMore || rows.size() == chunkSize;
+                break;
+            }
+            if (rows.size() < chunkSize) {
+                break;
+            }
+            // continue after the last row of this chunk.
+            T last = rows.get(rows.size() - 1);
+            afterId = key.getId(last);
+            afterName = sortOrder == SortOrder.NAME ? key.getName(last) : null;
+        }
+        if (!page.items.isEmpty()) {
+            T last = page.items.get(page.items.size() - 1);
+            page.lastId = key.getId(last);
+            page.lastName = sortOrder == SortOrder.NAME ? key.getName(last) : null;
+        }
+        return page;
+    }
+
+    String buildQuery(Long afterId, String afterName, SortOrder sortOrder) {
+        StringBuilder hql = new StringBuilder();
+        hql.append("select ").append(alias).append(" from ").append(entity).append(' ').append(alias);
+        hql.append(" where (").append(condition).append(')');
+        if (sortOrder == SortOrder.NAME) {
+            if (afterName != null) {
+                hql.append(String.format(" and (%1$s.name > :afterName or (%1$s.name = :afterName and %1$s.id > :afterId))", alias));
+            }
+            else if (afterId != null) {
+                hql.append(String.format(" and %s.id > :afterId", alias));
+            }
+            hql.append(String.format(" order by %1$s.name, %1$s.id", alias));
+        }
+        else {
+            if (afterId != null) {
+                hql.append(String.format(" and %s.id > :afterId", alias));
+            }
+            hql.append(String.format(" order by %s.id", alias));
+        }
+        return hql.toString();
+    }
+
+    /**
+     * One page of items and the cursor for the next page.
+     */
+    public static class Page<T> {
+        final SortOrder sortOrder;
+        final List<T> items = new ArrayList<T>();
+        boolean hasMore = false;
+        Long lastId;
+        String lastName;
+
+        Page(SortOrder sortOrder) {
+            this.sortOrder = sortOrder;
+        }
+
+        public List<T> getItems() {
+            return items;
+        }
+
+        /**
+         * @return true if there may be more items after this page. The next page may still be empty,
+         * if all remaining items are removed by the filter.
+         */
+        public boolean hasMore() {
+            return hasMore;
+        }
+
+        public Long getLastId() {
+            return lastId;
+        }
+
+        public String getLastName() {
+            return lastName;
+        }
+
+        /**
+         * Add the paging attributes has-more, next-after-id and next-after-name (if sorted by name)
+         * to the root element of a response.
+         * @param root the root element
+         */
+        public void addToElement(Element root) {
+            root.addAttribute("has-more", String.valueOf(hasMore));
+            if (lastId != null) {
+                root.addAttribute("next-after-id", String.valueOf(lastId));
+            }
+            if (lastName != null) {
+                root.addAttribute("next-after-name", lastName);
+            }
+        }
+    }
+}
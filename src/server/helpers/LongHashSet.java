@@ -0,0 +1,123 @@
+package server.helpers;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive long values (for example, entity ids) with open addressing, which does not
+ * create a Long object and a map entry for each element like HashSet&lt;Long&gt;.
+ * The value 0 is stored separately, because it marks empty slots.
+ */
+public class LongHashSet {
+
+    private long[] slots;
+    private int size = 0;
+    private boolean containsZero = false;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of elements which can be added before the set is resized
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        slots = new long[capacity];
+    }
+
+    /**
+     * @param value the value to add
+     * @return true if the value was not already in the set.
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int index = indexOf(slots, value);
+        if (slots[index] == value) {
+            return false;
+        }
+        slots[index] = value;
+        size++;
+        if (size > slots.length * 3 / 4) {
+            resize();
+        }
+        return true;
+    }
+
+    public void addAll(LongHashSet other) {
+        if (other.containsZero) {
+            add(0);
+        }
+        for (long value : other.slots) {
+            if (value != 0) {
+                add(value);
+            }
+        }
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) {
+            return containsZero;
+        }
+        return slots[indexOf(slots, value)] == value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the values of this set in ascending order.
+     */
+    public long[] toSortedArray() {
+        long[] values = new long[size];
+        int pos = 0;
+        if (containsZero) {
+            values[pos++] = 0;
+        }
+        for (long value : slots) {
+            if (value != 0) {
+                values[pos++] = value;
+            }
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    void resize() {
+        long[] newSlots = new long[slots.length * 2];
+        for (long value : slots) {
+            if (value != 0) {
+                newSlots[indexOf(newSlots, value)] = value;
+            }
+        }
+        slots = newSlots;
+    }
+
+    /**
+     * @return the slot which contains the value or the empty slot where it belongs.
+     */
+    static int indexOf(long[] slots, long value) {
+        int mask = slots.length - 1;
+        // spread the bits of sequential ids (see HashMap.hash)
+        long hash = value * 0x9E3779B97F4A7C15L;
+        int index = (int) (hash ^ (hash >>> 32)) & mask;
+        while (slots[index] != 0 && slots[index] != value) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+}
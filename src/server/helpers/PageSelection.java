@@ -0,0 +1,51 @@
+package server.helpers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Selects one page of an unsorted result (in natural order) without copying and sorting the
+ * whole result: the first end items are kept in a bounded max-heap, which costs O(n log end)
+ * instead of O(n log n) and only needs memory for the items up to the end of the page.
+ */
+public class PageSelection {
+
+    private PageSelection() {
+    }
+
+    /**
+     * @param items the items, which must implement Comparable
+     * @param start the position of the first item of the page (0-based)
+     * @param end   the position after the last item of the page
+     * @return the items from start (inclusive) to end (exclusive) of the sorted items, in order.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> select(Collection<T> items, int start, int end) {
+        end = Math.min(end, items.size());
+        if (start >= end) {
+            return new ArrayList<T>();
+        }
+        PriorityQueue<T> heap = new PriorityQueue<T>(end, Collections.<T>reverseOrder());
+        for (T item : items) {
+            if (heap.size() < end) {
+                heap.add(item);
+            } else if (((Comparable<? super T>) item).compareTo(heap.peek()) < 0) {
+                heap.poll();
+                heap.add(item);
+            }
+        }
+        // the heap returns the largest item first:
+        Object[] topItems = new Object[heap.size()];
+        for (int x = topItems.length - 1; x >= 0; x--) {
+            topItems[x] = heap.poll();
+        }
+        List<T> page = new ArrayList<T>(end - start);
+        for (int x = start; x < topItems.length; x++) {
+            page.add((T) topItems[x]);
+        }
+        return page;
+    }
+}
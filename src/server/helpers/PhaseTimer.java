@@ -0,0 +1,35 @@
+package server.helpers;
+
+/**
+ * Measures the time spent in the consecutive phases of a request.
+ * Call {@link #mark(String)} at the end of each phase; toString() returns a summary
+ * like "session=2ms command=15ms index=1ms commit=4ms total=22ms".
+ */
+public class PhaseTimer {
+
+    private final long start = System.nanoTime();
+    private long last = start;
+    private final StringBuilder phases = new StringBuilder();
+
+    /**
+     * Record the end of a phase, which started at the end of the previous phase.
+     * @param phase the name of the phase
+     */
+    public void mark(String phase) {
+        long now = System.nanoTime();
+        phases.append(phase).append('=').append((now - last) / 1000000).append("ms ");
+        last = now;
+    }
+
+    /**
+     * @return the number of milliseconds since this timer was created.
+     */
+    public long getTotal() {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return phases.toString() + "total=" + getTotal() + "ms";
+    }
+}
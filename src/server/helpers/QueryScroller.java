@@ -0,0 +1,83 @@
+package server.helpers;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+/**
+ * Iterates over the results of an HQL query with a forward-only database cursor, so
+ * the complete result list is never loaded into memory.
+ * <p>
+ * The handler should detach the entities it has processed (for example, via
+ * {@link #clear()} when a {@link server.response.StreamingXmlResponse.Sink} has been flushed),
+ * otherwise they still accumulate in the persistence context.
+ * </p>
+ */
+public class QueryScroller {
+
+    public static final int DEFAULT_FETCH_SIZE = 100;
+
+    /**
+     * Receives each row of the query result.
+     */
+    public interface RowHandler<T> {
+        /**
+         * @param item   the entity of the current row
+         * @param row    the number of the current row, starting with 0
+         */
+        void handle(T item, int row);
+    }
+
+    private EntityManager em;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+
+    public QueryScroller(EntityManager em) {
+        this.em = em;
+    }
+
+    public QueryScroller(EntityManager em, int fetchSize) {
+        this.em = em;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Execute the query and hand each row to the handler.
+     *
+     * @param hql     an HQL query which selects one entity per row
+     * @param handler the handler
+     * @return the number of rows
+     */
+    @SuppressWarnings("unchecked")
+    public <T> int scroll(String hql, RowHandler<T> handler) {
+        Session session = (Session) em.getDelegate();
+        Query query = session.createQuery(hql);
+        query.setFetchSize(fetchSize);
+        query.setReadOnly(true);
+        query.setCacheMode(CacheMode.IGNORE);
+        ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+        int row = 0;
+        try {
+            while (results.next()) {
+                handler.handle((T) results.get(0), row++);
+            }
+        } finally {
+            results.close();
+        }
+        return row;
+    }
+
+    /**
+     * Detach all entities from the persistence context.
+     */
+    public void clear() {
+        em.clear();
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+}
@@ -1,6 +1,8 @@
 package server.interfaces;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Map;
 
 /**
  * A container for a class and a method, which can be called with a command from a CommandRegistry.  
@@ -18,5 +20,21 @@ public interface MethodContainer {
 	 * @return true if the annotation was found, false otherwise.
 	 */
 	Boolean checkTrigger();
+
+	/**
+	 * Create a new instance of the method's class, which will receive the request's state.
+	 * @return a new ApiProvider
+	 */
+	ApiProvider createProvider();
+
+	/**
+	 * Call the API method on the given provider.
+	 * @param provider an ApiProvider created by {@link #createProvider()}
+	 * @param params the request parameters
+	 * @return the method's response
+	 * @throws InvocationTargetException if the API method throws an exception
+	 */
+	@SuppressWarnings("unchecked")
+	Response invoke(ApiProvider provider, Map params) throws InvocationTargetException;
 	
 }
@@ -0,0 +1,116 @@
+package server.response;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.data.ContentCompression;
+import server.exceptions.CinnamonException;
+
+/**
+ * A FileResponse which sends the gzip compressed copy of a content file (see {@link ContentCompression})
+ * unchanged with Content-Encoding: gzip. It is only used for clients which accept the gzip encoding
+ * ({@link #acceptsGzip(String)}), all other clients receive the content file itself. Byte ranges and
+ * ETags are not supported for compressed content.
+ * <p>
+ * The request headers are not available to API methods, so CmnServer copies the Accept-Encoding
+ * header into the parameter map (see {@link #PARAM_ACCEPT_ENCODING}).
+ * </p>
+ */
+public class CompressedFileResponse extends FileResponse {
+
+    public static final String PARAM_ACCEPT_ENCODING = "accept_encoding";
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private HttpServletResponse res;
+    private File file;
+    private String name;
+
+    /**
+     * @param res  the servlet response
+     * @param file the compressed copy of the content file
+     * @param name the file name which is sent to the client
+     */
+    public CompressedFileResponse(HttpServletResponse res, File file, String name) {
+        super(res, file.getAbsolutePath(), file.length(), name);
+        this.res = res;
+        this.file = file;
+        this.name = name;
+    }
+
+    /**
+     * @param acceptEncoding the value of the Accept-Encoding header, or null
+     * @return true if the header contains gzip (or *) without q=0.
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String candidate : acceptEncoding.split(",")) {
+            String[] parts = candidate.trim().split(";");
+            String coding = parts[0].trim().toLowerCase();
+            if (!coding.equals("gzip") && !coding.equals("x-gzip") && !coding.equals("*")) {
+                continue;
+            }
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].replace(" ", "");
+                if (parameter.matches("q=0(\\.0*)?")) {
+                    refused = true;
+                }
+            }
+            if (!refused) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void write() {
+        res.setContentType("binary/octet-stream");
+        res.setHeader("Content-Disposition", "attachment; filename=\"" + name.replace("\"", "") + "\"");
+        res.setHeader("Vary", "Accept-Encoding");
+        res.setHeader("Content-Encoding", "gzip");
+        long length = file.length();
+        if (length <= Integer.MAX_VALUE) {
+            res.setContentLength((int) length);
+        }
+        else {
+            res.setHeader("Content-Length", String.valueOf(length));
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            OutputStream out = res.getOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // most likely, the client has closed the connection.
+            log.debug("Failed to send " + file.getAbsolutePath(), e);
+            throw new CinnamonException("error.send.content", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.debug("Failed to close " + file.getAbsolutePath(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package server.response;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.exceptions.CinnamonException;
+
+/**
+ * A FileResponse which supports conditional requests (If-None-Match, based on an ETag built
+ * from size and modification time) and single byte ranges, so clients can resume interrupted
+ * downloads. The content is still copied through the servlet output stream.
+ * <p>
+ * The request headers are not available to API methods, so CmnServer copies them
+ * into the parameter map (see {@link #PARAM_RANGE} and {@link #PARAM_IF_NONE_MATCH}).
+ * </p>
+ */
+public class RangeFileResponse extends FileResponse {
+
+    public static final String PARAM_RANGE = "range";
+    public static final String PARAM_IF_NONE_MATCH = "if_none_match";
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private HttpServletResponse res;
+    private File file;
+    private String name;
+    private String range;
+    private String ifNoneMatch;
+
+    /**
+     * @param res         the servlet response
+     * @param file        the file to send
+     * @param name        the file name which is sent to the client
+     * @param range       optional value of the HTTP Range header (may be null)
+     * @param ifNoneMatch optional value of the HTTP If-None-Match header (may be null)
+     */
+    public RangeFileResponse(HttpServletResponse res, File file, String name, String range, String ifNoneMatch) {
+        super(res, file.getAbsolutePath(), file.length(), name);
+        this.res = res;
+        this.file = file;
+        this.name = name;
+        this.range = range;
+        this.ifNoneMatch = ifNoneMatch;
+    }
+
+    /**
+     * @param file a file
+     * @return an ETag (including the quotes) derived from length and modification time of the file.
+     */
+    public static String createETag(File file) {
+        return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    @Override
+    public void write() {
+        long length = file.length();
+        String etag = createETag(file);
+        res.setHeader("ETag", etag);
+        res.setHeader("Accept-Ranges", "bytes");
+        res.setDateHeader("Last-Modified", file.lastModified());
+
+        if (ifNoneMatch != null && matchesETag(ifNoneMatch, etag)) {
+            log.debug("ETag matches - content was not modified.");
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        if (range != null) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                log.debug("Ignoring unsupported range: " + range);
+            }
+            else if (bounds.length == 0) {
+                res.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                res.setHeader("Content-Range", "bytes */" + length);
+                return;
+            }
+            else {
+                start = bounds[0];
+                end = bounds[1];
+                res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                res.setHeader("Content-Range", String.format("bytes %d-%d/%d", start, end, length));
+            }
+        }
+
+        long count = end - start + 1;
+        res.setContentType("binary/octet-stream");
+        res.setHeader("Content-Disposition", "attachment; filename=\"" + name.replace("\"", "") + "\"");
+        if (count <= Integer.MAX_VALUE) {
+            res.setContentLength((int) count);
+        }
+        else {
+            res.setHeader("Content-Length", String.valueOf(count));
+        }
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            in.getChannel().position(start);
+            OutputStream out = res.getOutputStream();
+            copy(in, out, count);
+            out.flush();
+        } catch (IOException e) {
+            // most likely, the client has closed the connection.
+            log.debug("Failed to send " + file.getAbsolutePath(), e);
+            throw new CinnamonException("error.send.content", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.debug("Failed to close " + file.getAbsolutePath(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy count bytes (or less, if the input ends before) from in to out.
+     */
+    static void copy(InputStream in, OutputStream out, long count) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = count;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                // file was truncated while we were sending it.
+                break;
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    static boolean matchesETag(String header, String etag) {
+        for (String candidate : header.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a single byte range.
+     *
+     * @param range  the value of the Range header, for example "bytes=100-" or "bytes=-500"
+     * @param length the length of the file
+     * @return null if the range is unsupported and should be ignored (for example, multiple ranges),
+     *         an empty array if the range cannot be satisfied or {start, end} (inclusive).
+     */
+    static long[] parseRange(String range, long length) {
+        String value = range.trim();
+        if (!value.startsWith("bytes=") || value.contains(",")) {
+            return null;
+        }
+        value = value.substring("bytes=".length()).trim();
+        int dash = value.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = value.substring(0, dash).trim();
+            String last = value.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.length() == 0) {
+                // suffix range: the last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            }
+            else {
+                start = Long.parseLong(first);
+                end = last.length() == 0 ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            }
+            if (start >= length || start > end) {
+                return new long[0];
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
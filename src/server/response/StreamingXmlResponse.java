@@ -0,0 +1,221 @@
+package server.response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.XMLWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import server.exceptions.CinnamonException;
+import server.i18n.LocalMessage;
+
+/**
+ * An XmlResponse whose child elements are written to the servlet output stream while they
+ * are created, so a large result set never exists as one dom4j Document in memory.
+ * <p>
+ * The content is provided by an {@link ElementSource}, which is called when the response is written.
+ * CmdInterpreter writes streaming responses before it closes the EntityManager, so the source
+ * may still load entities (for example, with a {@link server.helpers.QueryScroller}).
+ * If some code asks for the response's Document (for example, a post-command trigger or the
+ * batch command), the source is used to build the complete Document instead.
+ * </p>
+ * <p>
+ * If the source fails before any part of the response has been sent to the client, the buffer is
+ * reset and the exception is passed on, so CmdInterpreter can send its error document instead.
+ * If parts of the response have already been sent, an error element is added as the last child of
+ * the root element and the document is closed, so the client always receives one well-formed document.
+ * </p>
+ */
+public class StreamingXmlResponse extends XmlResponse {
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Creates the child elements of the root element.
+     */
+    public interface ElementSource {
+        /**
+         * Add the child elements to the sink's parent element. Sources which add many elements
+         * should call {@link Sink#flush()} after every few elements.
+         * @param sink the sink which receives the elements
+         */
+        void addElements(Sink sink);
+    }
+
+    /**
+     * Receives the elements of an ElementSource.
+     */
+    public interface Sink {
+        /**
+         * @return the element to which the source adds its elements
+         */
+        Element getParent();
+
+        /**
+         * Write the elements which have been added to the parent so far.
+         * @return true if the elements have been written and removed from the parent - the source
+         * may then release the objects it has serialized (for example, by clearing the EntityManager).
+         * False if the complete Document is being built.
+         */
+        boolean flush();
+    }
+
+    private HttpServletResponse res;
+    private String rootName;
+    private ElementSource source;
+    private Document document;
+    private boolean written = false;
+
+    /**
+     * @param res      the servlet response
+     * @param rootName the name of the root element
+     * @param source   the source of the root element's children
+     */
+    public StreamingXmlResponse(HttpServletResponse res, String rootName, ElementSource source) {
+        super(res);
+        this.res = res;
+        this.rootName = rootName;
+        this.source = source;
+    }
+
+    /**
+     * Build the complete Document. This defeats the purpose of this class and should only be
+     * used by code which needs to inspect or combine responses.
+     * @return the Document of this response
+     */
+    @Override
+    public Document getDoc() {
+        if (source == null) {
+            // called by the constructor of XmlResponse.
+            return super.getDoc();
+        }
+        if (document == null) {
+            document = DocumentHelper.createDocument();
+            final Element root = document.addElement(rootName);
+            source.addElements(new Sink() {
+                @Override
+                public Element getParent() {
+                    return root;
+                }
+
+                @Override
+                public boolean flush() {
+                    return false;
+                }
+            });
+        }
+        return document;
+    }
+
+    @Override
+    public void setDoc(Document doc) {
+        document = doc;
+    }
+
+    /**
+     * Write the response. Calling this method a second time has no effect.
+     */
+    @Override
+    public void write() {
+        if (written) {
+            return;
+        }
+        written = true;
+        try {
+            res.setContentType("application/xml; charset=UTF-8");
+            OutputFormat format = OutputFormat.createCompactFormat();
+            format.setEncoding("UTF-8");
+            final XMLWriter writer = new XMLWriter(res.getOutputStream(), format);
+            if (document != null) {
+                writer.write(document);
+                writer.flush();
+                return;
+            }
+            writer.startDocument();
+            final Element root = DocumentHelper.createElement(rootName);
+            writer.writeOpen(root);
+            Sink sink = new Sink() {
+                @Override
+                public Element getParent() {
+                    return root;
+                }
+
+                @Override
+                public boolean flush() {
+                    writeChildren(writer, root);
+                    return true;
+                }
+            };
+            try {
+                source.addElements(sink);
+                writeChildren(writer, root);
+            } catch (RuntimeException e) {
+                if (!res.isCommitted()) {
+                    // nothing has been sent yet: the caller sends an error document instead.
+                    res.resetBuffer();
+                    throw e;
+                }
+                log.warn("Failed to create the streaming response after parts of it have been sent.", e);
+                root.clearContent();
+                addError(root, e);
+                writeChildren(writer, root);
+            }
+            writer.writeClose(root);
+            writer.endDocument();
+            writer.flush();
+        } catch (IOException e) {
+            log.debug("Failed to write streaming response.", e);
+            throw new CinnamonException("error.send.content", e);
+        } catch (SAXException e) {
+            log.debug("Failed to write streaming response.", e);
+            throw new CinnamonException("error.send.content", e);
+        }
+    }
+
+    /**
+     * Add an error element (like the error document of CmdInterpreter) to the parent.
+     */
+    void addError(Element parent, RuntimeException e) {
+        Element error = parent.addElement("error");
+        if (e instanceof CinnamonException) {
+            if (LocalMessage.wasInitialized()) {
+                ((CinnamonException) e).addToElement(error, LocalMessage.getInstance().get());
+            } else {
+                ((CinnamonException) e).addToElement(error, null);
+            }
+        } else {
+            error.addElement("code").addText(e.toString());
+            error.addElement("message").addText(String.valueOf(e.getLocalizedMessage()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void writeChildren(XMLWriter writer, Element parent) {
+        List<Element> children = new ArrayList<Element>(parent.elements());
+        try {
+            for (Element child : children) {
+                writer.write(child);
+            }
+        } catch (IOException e) {
+            log.debug("Failed to write streaming response.", e);
+            throw new CinnamonException("error.send.content", e);
+        }
+        parent.clearContent();
+    }
+
+    /**
+     * @return true if this response has already been written.
+     */
+    public boolean isWritten() {
+        return written;
+    }
+}
@@ -0,0 +1,151 @@
+package server.tika;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Receives the XHTML SAX events of a Tika parser and streams the text of the document body to a
+ * Writer (for example, a compressed text file), while keeping the first characters in memory for
+ * the tika metaset.
+ * <p>
+ * The handler stops the parser (by throwing a SAXException) when the document contains more than
+ * maxCharacters characters or when it has been stopped with {@link #stop(String)} - for example by
+ * the thread which waits for the parser when the parse takes longer than the timeout. Once stop has
+ * returned, the handler does not write to the Writer anymore.
+ * </p>
+ */
+public class BoundedTextHandler extends DefaultHandler {
+
+    public static final String LIMIT_CHARACTERS = "max_characters";
+    public static final String LIMIT_TIMEOUT = "timeout";
+
+    /**
+     * Thrown to stop the parser when a limit is reached.
+     */
+    public static class LimitReachedException extends SAXException {
+        public LimitReachedException(String limit) {
+            super("Tika extraction limit reached: " + limit);
+        }
+    }
+
+    private final Writer writer;
+    private final long maxCharacters;
+    private final int summaryCharacters;
+    private final StringBuilder summary = new StringBuilder();
+    private long characters = 0;
+    private int bodyDepth = 0;
+    private volatile String limitReached = null;
+
+    /**
+     * @param writer            the Writer which receives the complete text, may be null
+     * @param maxCharacters     the maximum number of characters to extract
+     * @param summaryCharacters the number of characters to keep in memory
+     */
+    public BoundedTextHandler(Writer writer, long maxCharacters, int summaryCharacters) {
+        this.writer = writer;
+        this.maxCharacters = maxCharacters;
+        this.summaryCharacters = summaryCharacters;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        checkStopped();
+        if (bodyDepth > 0 || "body".equals(localName)) {
+            bodyDepth++;
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (bodyDepth > 0) {
+            bodyDepth--;
+            if (isBlock(localName)) {
+                append(new char[]{'\n'}, 0, 1);
+            }
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        checkStopped();
+        if (bodyDepth > 0) {
+            append(ch, start, length);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    synchronized void append(char[] ch, int start, int length) throws SAXException {
+        checkStopped();
+        long remaining = maxCharacters - characters;
+        int count = (int) Math.min(length, remaining);
+        if (count > 0) {
+            if (summary.length() < summaryCharacters) {
+                summary.append(ch, start, Math.min(count, summaryCharacters - summary.length()));
+            }
+            if (writer != null) {
+                try {
+                    writer.write(ch, start, count);
+                } catch (IOException e) {
+                    throw new SAXException("Failed to write extracted text.", e);
+                }
+            }
+            characters += count;
+        }
+        if (count < length) {
+            limitReached = LIMIT_CHARACTERS;
+            throw new LimitReachedException(limitReached);
+        }
+    }
+
+    void checkStopped() throws SAXException {
+        if (limitReached != null) {
+            throw new LimitReachedException(limitReached);
+        }
+    }
+
+    /**
+     * Stop the parser at its next event. When this method returns, the handler does not write
+     * any more text.
+     *
+     * @param limit the limit which has been reached, for example {@link #LIMIT_TIMEOUT}
+     */
+    public synchronized void stop(String limit) {
+        if (limitReached == null) {
+            limitReached = limit;
+        }
+    }
+
+    static boolean isBlock(String name) {
+        return name.equals("p") || name.equals("div") || name.equals("li") || name.equals("tr")
+                || name.equals("br") || (name.length() == 2 && name.charAt(0) == 'h' && Character.isDigit(name.charAt(1)));
+    }
+
+    /**
+     * @return the first summaryCharacters characters of the text.
+     */
+    public synchronized String getSummary() {
+        return summary.toString();
+    }
+
+    /**
+     * @return the number of extracted characters.
+     */
+    public synchronized long getCharacters() {
+        return characters;
+    }
+
+    /**
+     * @return the limit which stopped the parser ({@link #LIMIT_CHARACTERS} or {@link #LIMIT_TIMEOUT}), or null.
+     */
+    public String getLimitReached() {
+        return limitReached;
+    }
+}
@@ -0,0 +1,325 @@
+package server.tika;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.hibernate.LockMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.CinnamonRepository;
+import server.ConfigEntryCache;
+import server.IndexQueue;
+import server.LocalRepository;
+import server.data.ObjectSystemData;
+import server.index.IndexAction;
+import server.index.Indexable;
+import server.interfaces.Repository;
+import utils.HibernateSession;
+
+/**
+ * Extracts the content of new objects with Tika in background threads, so create, setContent and
+ * version return as soon as the content has been stored.
+ * <p>
+ * Commands call {@link #schedule(ObjectSystemData)}; CmdInterpreter submits the scheduled objects
+ * with {@link #submitDeferred()} after the request has been committed (or drops them with
+ * {@link #discardDeferred()} on failure). A worker parses the content file without holding a
+ * database transaction, then locks the object, replaces its tika metaset and updates the index.
+ * If the object's content has been replaced or the object has been deleted in the meantime, the
+ * result is discarded.
+ * </p>
+ * <p>
+ * The work queue is bounded: if it is full, the request thread extracts the content itself.
+ * </p>
+ */
+public class TikaExtractionService {
+
+    private transient Logger log = LoggerFactory.getLogger(this.getClass());
+
+    public enum State {
+        QUEUED, RUNNING
+    }
+
+    /**
+     * The extraction job of one object. A new job for the same object replaces the old one.
+     */
+    public static class Job {
+        final Long osdId;
+        final String contentPath;
+        final long submitted = System.currentTimeMillis();
+        volatile State state = State.QUEUED;
+
+        Job(Long osdId, String contentPath) {
+            this.osdId = osdId;
+            this.contentPath = contentPath;
+        }
+
+        public Long getOsdId() {
+            return osdId;
+        }
+
+        public String getContentPath() {
+            return contentPath;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public State getState() {
+            return state;
+        }
+    }
+
+    class ExtractionTask implements Runnable {
+        final Job job;
+
+        ExtractionTask(Job job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            extract(job, true);
+        }
+    }
+
+    private final Repository repository;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<Long, Job> jobs = new ConcurrentHashMap<Long, Job>();
+    private final ThreadLocal<List<ObjectSystemData>> deferred = new ThreadLocal<List<ObjectSystemData>>();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param repository the repository
+     * @param workers    the number of worker threads
+     * @param queueSize  the maximum number of waiting jobs
+     */
+    public TikaExtractionService(final Repository repository, int workers, int queueSize) {
+        this.repository = repository;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TikaExtraction-" + repository.getName() + "-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        };
+        RejectedExecutionHandler callerRuns = new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    log.warn("Tika extraction service has been stopped - job is discarded.");
+                    return;
+                }
+                log.debug("Tika extraction queue is full - extracting in the request thread.");
+                extract(((ExtractionTask) runnable).job, false);
+            }
+        };
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), threadFactory, callerRuns);
+    }
+
+    /**
+     * Extract the content of an object after the current request has been committed.
+     *
+     * @param osd an object whose content has been set or replaced
+     */
+    public void schedule(ObjectSystemData osd) {
+        List<ObjectSystemData> objects = deferred.get();
+        if (objects == null) {
+            objects = new ArrayList<ObjectSystemData>();
+            deferred.set(objects);
+        }
+        objects.add(osd);
+    }
+
+    /**
+     * Submit the objects which have been scheduled by the current thread.
+     * Must be called after the request's transaction has been committed.
+     */
+    public void submitDeferred() {
+        List<ObjectSystemData> objects = deferred.get();
+        deferred.remove();
+        if (objects == null) {
+            return;
+        }
+        for (ObjectSystemData osd : objects) {
+            if (osd.getId() == null || osd.getContentPath() == null) {
+                continue;
+            }
+            Job job = new Job(osd.getId(), osd.getContentPath());
+            jobs.put(job.osdId, job);
+            executor.execute(new ExtractionTask(job));
+        }
+    }
+
+    /**
+     * Forget the objects which have been scheduled by the current thread (for example, because
+     * the request failed).
+     */
+    public void discardDeferred() {
+        deferred.remove();
+    }
+
+    void extract(Job job, boolean workerThread) {
+        if (jobs.get(job.osdId) != job) {
+            log.debug("extraction job for object #" + job.osdId + " has been replaced.");
+            return;
+        }
+        job.state = State.RUNNING;
+        EntityManager previousEm = workerThread ? null : HibernateSession.getLocalEntityManager();
+        EntityManager em = repository.getEntityManager();
+        HibernateSession.setLocalEntityManager(em);
+        if (workerThread) {
+            LocalRepository.setRepository(repository);
+        }
+        EntityTransaction et = em.getTransaction();
+        try {
+            TikaParser parser = new TikaParser(findConfigEntryCache());
+            File content;
+            et.begin();
+            ObjectSystemData osd = findCurrentObject(em, job, false);
+            if (osd == null || !parser.isSuitable(osd)) {
+                et.rollback();
+                return;
+            }
+            content = new File(osd.getFullContentPath(repository.getName()));
+            et.rollback();
+            em.clear();
+
+            // parse without holding a transaction:
+            TikaParser.Extraction result = null;
+            Exception error = null;
+            try {
+                result = parser.extract(content, repository.getName(), job.contentPath);
+            } catch (Exception e) {
+                log.warn("Failed to extract data with tika from object #" + job.osdId, e);
+                error = e;
+            }
+
+            et.begin();
+            // lock the object, so a concurrent change of the metadata is not overwritten:
+            osd = findCurrentObject(em, job, true);
+            if (osd == null) {
+                et.rollback();
+                return;
+            }
+            if (error == null) {
+                parser.setTikaMetaset(osd, result);
+            } else {
+                parser.setTikaError(osd, error);
+            }
+            IndexQueue indexQueue = findIndexQueue();
+            if (indexQueue == null) {
+                TikaIndexText.updateInIndex(repository.getLuceneBridge(), osd, repository.getName());
+            }
+            et.commit();
+            if (indexQueue != null) {
+                Map<Indexable, IndexAction> update = Collections.<Indexable, IndexAction>singletonMap(osd, IndexAction.UPDATE);
+                indexQueue.enqueue(update);
+            }
+            if (error == null) {
+                completedCount.incrementAndGet();
+            } else {
+                failedCount.incrementAndGet();
+            }
+        } catch (Exception e) {
+            log.warn("Failed to store the tika metadata of object #" + job.osdId, e);
+            failedCount.incrementAndGet();
+            if (et.isActive()) {
+                et.rollback();
+            }
+        } finally {
+            jobs.remove(job.osdId, job);
+            if (em.isOpen()) {
+                em.close();
+            }
+            if (workerThread) {
+                LocalRepository.cleanUp();
+            } else {
+                HibernateSession.setLocalEntityManager(previousEm);
+            }
+        }
+    }
+
+    /**
+     * @param lock if true, the object is locked (select for update) before its content path is checked
+     * @return the object of the job, or null if it has been deleted or its content has been replaced.
+     */
+    ObjectSystemData findCurrentObject(EntityManager em, Job job, boolean lock) {
+        ObjectSystemData osd = em.find(ObjectSystemData.class, job.osdId);
+        if (osd == null) {
+            log.debug("object #" + job.osdId + " has been deleted before its content could be extracted.");
+            return null;
+        }
+        if (lock) {
+            // reload the object with the lock, so the content path is checked against its locked state.
+            ((org.hibernate.Session) em.getDelegate()).refresh(osd, LockMode.UPGRADE);
+        }
+        if (!job.contentPath.equals(osd.getContentPath()) || jobs.get(job.osdId) != job) {
+            log.debug("content of object #" + job.osdId + " has been replaced - extraction result is discarded.");
+            return null;
+        }
+        return osd;
+    }
+
+    ConfigEntryCache findConfigEntryCache() {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getConfigEntryCache();
+        }
+        return null;
+    }
+
+    IndexQueue findIndexQueue() {
+        if (repository instanceof CinnamonRepository) {
+            return ((CinnamonRepository) repository).getIndexQueue();
+        }
+        return null;
+    }
+
+    /**
+     * @param osdId the id of an object
+     * @return the object's waiting or running job, or null.
+     */
+    public Job getJob(Long osdId) {
+        return jobs.get(osdId);
+    }
+
+    public int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Stop the worker threads. Waiting jobs are discarded.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,138 @@
+package server.tika;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.data.ObjectSystemData;
+import server.index.Indexable;
+import server.index.LuceneBridge;
+import utils.ParamParser;
+
+/**
+ * Indexes objects with the complete text which Tika has extracted from their content.
+ * <p>
+ * The tika metaset only contains a summary of the text, the complete text is kept in the
+ * {@link TikaTextStore}. LuceneBridge indexes the metadata of an object, so for the duration of
+ * the index operation the summary in the object's tika metaset is replaced with the text from the
+ * store, and the stored metadata is restored afterwards (so the change is never written to the
+ * database).
+ * </p>
+ */
+public class TikaIndexText {
+
+    private static final Logger log = LoggerFactory.getLogger(TikaIndexText.class);
+
+    private TikaIndexText() {
+    }
+
+    public static void addToIndex(LuceneBridge luceneBridge, Indexable indexable, String repositoryName) {
+        String storedMetadata = expand(indexable, repositoryName);
+        try {
+            luceneBridge.addObjectToIndex(indexable, false);
+        } finally {
+            restore(indexable, storedMetadata);
+        }
+    }
+
+    public static void updateInIndex(LuceneBridge luceneBridge, Indexable indexable, String repositoryName) {
+        String storedMetadata = expand(indexable, repositoryName);
+        try {
+            luceneBridge.updateObjectInIndex(indexable);
+        } finally {
+            restore(indexable, storedMetadata);
+        }
+    }
+
+    /**
+     * Replace the summary in the tika metaset of an object with the complete text from the text store.
+     *
+     * @param indexable      the object which is indexed
+     * @param repositoryName the name of the repository
+     * @return the stored metadata of the object, or null if the metadata has not been changed
+     * (because the object has no stored text or the summary contains the whole text).
+     */
+    static String expand(Indexable indexable, String repositoryName) {
+        if (!(indexable instanceof ObjectSystemData)) {
+            return null;
+        }
+        ObjectSystemData osd = (ObjectSystemData) indexable;
+        String metadata = osd.getMetadata();
+        // avoid parsing the metadata of objects without stored text:
+        if (metadata == null || !metadata.contains("text-store=\"true\"")) {
+            return null;
+        }
+        try {
+            String expanded = expandMetadata(metadata, new TikaTextStore(repositoryName), osd.getContentPath());
+            if (expanded == null) {
+                return null;
+            }
+            osd.setMetadata(expanded);
+            return metadata;
+        } catch (Exception e) {
+            log.warn("Could not read the extracted text of object #" + osd.getId() + " - only its summary is indexed.", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param metadata    the metadata of an object
+     * @param textStore   the text store of the repository
+     * @param contentPath the content path of the object
+     * @return the metadata with the complete text in the body of the tika metaset, or null if the
+     * summary is already complete or no text has been stored.
+     * @throws IOException if the text cannot be read
+     */
+    static String expandMetadata(String metadata, TikaTextStore textStore, String contentPath) throws IOException {
+        Document meta = ParamParser.parseXmlToDocument(metadata);
+        Element extraction = (Element) meta.selectSingleNode("/meta/metaset[@type='tika']/extraction[@text-store='true']");
+        Element body = (Element) meta.selectSingleNode("/meta/metaset[@type='tika']/html/body");
+        if (extraction == null || body == null || contentPath == null) {
+            return null;
+        }
+        String summary = extraction.attributeValue("summary");
+        String characters = extraction.attributeValue("characters");
+        if (summary != null && summary.equals(characters)) {
+            return null;
+        }
+        String text = readText(textStore, contentPath);
+        if (text == null) {
+            return null;
+        }
+        body.clearContent();
+        body.addElement("p").addText(text);
+        return meta.asXML();
+    }
+
+    static String readText(TikaTextStore textStore, String contentPath) throws IOException {
+        Reader reader = textStore.openReader(contentPath);
+        if (reader == null) {
+            return null;
+        }
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param indexable      the object which has been indexed
+     * @param storedMetadata the result of {@link #expand(Indexable, String)}
+     */
+    static void restore(Indexable indexable, String storedMetadata) {
+        if (storedMetadata != null) {
+            ((ObjectSystemData) indexable).setMetadata(storedMetadata);
+        }
+    }
+}
@@ -1,104 +1,509 @@
 package server.tika;
 
 import org.apache.tika.config.TikaConfig;
+import org.apache.tika.exception.TikaException;
 import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.Parser;
+import org.apache.tika.parser.ParserDecorator;
 import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
 import server.ConfigEntry;
+import server.ConfigEntryCache;
 import server.dao.ConfigEntryDAO;
 import server.dao.DAOFactory;
 import server.data.ObjectSystemData;
+import server.global.ConfThreadLocal;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
 import utils.HibernateSession;
 import utils.ParamParser;
 
 import javax.persistence.EntityManager;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.sax.SAXTransformerFactory;
-import javax.xml.transform.sax.TransformerHandler;
-import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.StringWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Parse incoming content with Apache Tika and store the result in the object's metadata.
+ * <p>
+ * The text is streamed from the parser to a compressed file in the {@link TikaTextStore}; the tika
+ * metaset contains the document metadata and a summary: the first summaryCharacters characters of
+ * the text. The index receives the complete text from the text store (see {@link TikaIndexText}).
+ * The extraction is limited by the settings in cinnamon_config/tikaExtraction (maxCharacters,
+ * maxEmbedded, timeout and summaryCharacters).
+ * </p>
  */
 public class TikaParser {
 
     Logger log = LoggerFactory.getLogger(this.getClass());
 
+    /**
+     * AutoDetectParser is thread safe, so all threads share one instance instead of
+     * loading the TikaConfig and the parsers for every document.
+     */
+    private static volatile Parser sharedParser;
+
+    static Parser getSharedParser() {
+        if (sharedParser == null) {
+            synchronized (TikaParser.class) {
+                if (sharedParser == null) {
+                    sharedParser = new AutoDetectParser(TikaConfig.getDefaultConfig());
+                }
+            }
+        }
+        return sharedParser;
+    }
+
+    /**
+     * Parses run in these threads, so the thread which waits for the result can give up after the
+     * timeout. The pool has as many threads as there are extraction workers (tikaExtraction/workers)
+     * and a queue of tikaExtraction/queueSize parses; further parses are rejected. A parser which
+     * ignores the interrupt after its timeout keeps its thread, so parsers which hang reduce the
+     * number of available threads instead of creating new ones. While all threads are blocked by
+     * such parsers, all parses are rejected.
+     */
+    private static volatile ThreadPoolExecutor parserThreads;
+
+    /**
+     * The number of parser threads which are still running after their timeout.
+     */
+    private static final AtomicInteger stuckParsers = new AtomicInteger();
+
+    static ThreadPoolExecutor getParserThreads() {
+        if (parserThreads == null) {
+            synchronized (TikaParser.class) {
+                if (parserThreads == null) {
+                    ConfThreadLocal conf = ConfThreadLocal.getConf();
+                    int workers = Math.max(1, Integer.parseInt(conf.getField("cinnamon_config/tikaExtraction/workers", "2")));
+                    int queueSize = Math.max(1, Integer.parseInt(conf.getField("cinnamon_config/tikaExtraction/queueSize", "100")));
+                    final AtomicInteger threadNumber = new AtomicInteger();
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "TikaParser-" + threadNumber.getAndIncrement());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.AbortPolicy());
+                    executor.allowCoreThreadTimeOut(true);
+                    parserThreads = executor;
+                }
+            }
+        }
+        return parserThreads;
+    }
+
+    /**
+     * @return the number of parser threads which did not stop at their timeout and are still running.
+     */
+    public static int getStuckParserCount() {
+        return stuckParsers.get();
+    }
+
+    /**
+     * The number of characters which are stored in the tika metaset.
+     */
+    private final int summaryCharacters;
+    /**
+     * The maximum number of characters which are extracted from one document.
+     */
+    private final long maxCharacters;
+    /**
+     * The maximum number of embedded documents (for example, attachments) which are parsed, 0: none.
+     */
+    private final int maxEmbedded;
+    /**
+     * The maximum time in milliseconds for the extraction of one document, 0: no limit.
+     */
+    private final long timeout;
+
+    /**
+     * The cache of the repository's ConfigEntry settings, may be null.
+     */
+    private final ConfigEntryCache configEntryCache;
+
+    public TikaParser() {
+        this(null);
+    }
+
+    /**
+     * @param configEntryCache the repository's cache of ConfigEntry settings, or null to read the
+     *                         tika.blacklist from the database on each call.
+     */
+    public TikaParser(ConfigEntryCache configEntryCache) {
+        this.configEntryCache = configEntryCache;
+        ConfThreadLocal conf = ConfThreadLocal.getConf();
+        maxCharacters = Long.parseLong(conf.getField("cinnamon_config/tikaExtraction/maxCharacters", "10000000"));
+        maxEmbedded = Integer.parseInt(conf.getField("cinnamon_config/tikaExtraction/maxEmbedded", "0"));
+        timeout = Long.parseLong(conf.getField("cinnamon_config/tikaExtraction/timeout", "120000"));
+        summaryCharacters = Integer.parseInt(conf.getField("cinnamon_config/tikaExtraction/summaryCharacters", "4096"));
+    }
+
+    /**
+     * The result of an extraction: the document metadata and the summary (the first
+     * summaryCharacters characters of the text). The complete text is stored in the {@link TikaTextStore}.
+     */
+    public static class Extraction {
+        final Metadata metadata;
+        final String text;
+        final long characters;
+        final String limitReached;
+        final int embedded;
+        final boolean textStored;
+
+        Extraction(Metadata metadata, String text, long characters, String limitReached, int embedded, boolean textStored) {
+            this.metadata = metadata;
+            this.text = text;
+            this.characters = characters;
+            this.limitReached = limitReached;
+            this.embedded = embedded;
+            this.textStored = textStored;
+        }
+
+        /**
+         * @return the summary which is stored in the tika metaset.
+         */
+        public String getText() {
+            return text;
+        }
+
+        public long getCharacters() {
+            return characters;
+        }
+
+        /**
+         * @return the limit which stopped the extraction, or null if the whole document has been extracted.
+         */
+        public String getLimitReached() {
+            return limitReached;
+        }
+
+        public int getEmbedded() {
+            return embedded;
+        }
+
+        /**
+         * @return the metaset content: the document metadata in the head and the summary in the
+         * body of an html element, followed by an extraction element with the statistics.
+         */
+        List<Element> toElements() {
+            Element html = DocumentHelper.createElement("html");
+            Element head = html.addElement("head");
+            String[] names = metadata.names();
+            Arrays.sort(names);
+            for (String name : names) {
+                for (String value : metadata.getValues(name)) {
+                    head.addElement("meta").addAttribute("name", name).addAttribute("content", value);
+                }
+            }
+            html.addElement("body").addElement("p").addText(text);
+
+            Element extraction = DocumentHelper.createElement("extraction");
+            extraction.addAttribute("characters", String.valueOf(characters));
+            extraction.addAttribute("truncated", String.valueOf(limitReached != null));
+            if (limitReached != null) {
+                extraction.addAttribute("limit", limitReached);
+            }
+            extraction.addAttribute("summary", String.valueOf(text.length()));
+            extraction.addAttribute("embedded", String.valueOf(embedded));
+            extraction.addAttribute("text-store", String.valueOf(textStored));
+            return Arrays.asList(html, extraction);
+        }
+    }
+
+    /**
+     * Parses embedded documents until maxEmbedded documents have been parsed, and skips the rest.
+     */
+    @SuppressWarnings("serial")
+    static class EmbeddedDocumentLimiter extends ParserDecorator {
+        final int maxEmbedded;
+        int count = 0;
+
+        EmbeddedDocumentLimiter(Parser parser, int maxEmbedded) {
+            super(parser);
+            this.maxEmbedded = maxEmbedded;
+        }
+
+        @Override
+        public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+                throws IOException, SAXException, TikaException {
+            if (count >= maxEmbedded) {
+                return;
+            }
+            count++;
+            super.parse(stream, handler, metadata, context);
+        }
+    }
+
+    /**
+     * Runs one parse in a parser thread and keeps track of a parse which is still running after
+     * its timeout.
+     */
+    class ParseTask implements Callable<Void> {
+        final Parser parser;
+        final InputStream input;
+        final ContentHandler handler;
+        final Metadata metadata;
+        final ParseContext context;
+        final String name;
+        private boolean started = false;
+        private boolean finished = false;
+        private long abandoned = 0;
+
+        ParseTask(Parser parser, InputStream input, ContentHandler handler, Metadata metadata, ParseContext context, String name) {
+            this.parser = parser;
+            this.input = input;
+            this.handler = handler;
+            this.metadata = metadata;
+            this.context = context;
+            this.name = name;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            synchronized (this) {
+                started = true;
+            }
+            try {
+                parser.parse(input, handler, metadata, context);
+                return null;
+            } finally {
+                finish();
+            }
+        }
+
+        /**
+         * Called by the waiting thread after the timeout (once the parser has been cancelled).
+         * @return true if the parser is still running.
+         */
+        synchronized boolean abandon() {
+            if (!started || finished) {
+                // a parse which has not started yet will not run after the cancel.
+                return false;
+            }
+            abandoned = System.currentTimeMillis();
+            stuckParsers.incrementAndGet();
+            return true;
+        }
+
+        synchronized void finish() {
+            finished = true;
+            if (abandoned > 0) {
+                int stuck = stuckParsers.decrementAndGet();
+                log.info("Tika parser of " + name + " stopped " + (System.currentTimeMillis() - abandoned)
+                        + " ms after its timeout, " + stuck + " parser threads are still running after their timeout.");
+            }
+        }
+    }
+
     public void parse(ObjectSystemData osd, String repository){
+        if(! isSuitable(osd)){
+            return;
+        }
+        try {
+            File content = new File(osd.getFullContentPath(repository));
+            setTikaMetaset(osd, extract(content, repository, osd.getContentPath()));
+        }
+        catch (Exception e) {
+            log.warn("Failed to extract data with tika.", e);
+            setTikaError(osd, e);
+        }
+    }
+
+    /**
+     * @param osd an object with content
+     * @return true if the object's format is not on the tika blacklist.
+     */
+    public boolean isSuitable(ObjectSystemData osd){
         if(osd == null){
             log.debug("received null osd.");
-            return;
+            return false;
         }
         if(osd.getFormat() == null || osd.getFormat().getExtension() == null){
             log.debug("object #"+osd.getId()+" has no defined format - will be ignored.");
-            return;
+            return false;
         }
-        String tikaBlacklist = getTikaBlacklist();
         String extension = osd.getFormat().getExtension().toLowerCase();
-        if (extension.matches(tikaBlacklist)){
+        if (getTikaBlacklist().matcher(extension).matches()){
             log.debug("Object format "+extension+" is not suitable for tika - will be ignored.");
-            return;
+            return false;
         }
+        return true;
+    }
+
+    /**
+     * Parse a file and write its text to the repository's text store. This method does not need
+     * a database connection, so it can run outside of a transaction.
+     * <p>
+     * If the document is larger than maxCharacters or the parser takes longer than the timeout,
+     * the extraction stops and the result is marked as truncated.
+     * </p>
+     * @param content the file
+     * @param repository the name of the repository
+     * @param contentPath the content path of the file, which is the key of the text store
+     * @return the metadata and the summary of the document
+     * @throws Exception if the file cannot be parsed.
+     */
+    public Extraction extract(File content, String repository, String contentPath) throws Exception {
+        TikaTextStore textStore = new TikaTextStore(repository);
+        TikaTextStore.TextWriter writer = null;
         try {
-            File content = new File(osd.getFullContentPath(repository));
-            TikaConfig tikaConfig = new TikaConfig();
-            Metadata tikaMeta = new Metadata();
-
-            String xhtml = parseFile(content, tikaConfig, tikaMeta);
-            xhtml = xhtml.replaceAll("xmlns=\"http://www\\.w3\\.org/1999/xhtml\"", "");
-            Node resultNode = ParamParser.parseXml(xhtml, "Failed to parse tika-generated xml");
-            Document meta = ParamParser.parseXmlToDocument(osd.getMetadata());
-            Node oldTikaXml = meta.selectSingleNode("/meta/metaset[@type='tika']");
-            if(oldTikaXml != null){
-                oldTikaXml.detach();
-            }
-            Element tikaMetaset = meta.getRootElement().addElement("metaset");
-            tikaMetaset.addAttribute("type","tika");
-            tikaMetaset.add(resultNode);
-            osd.setMetadata(meta.asXML());
-            log.debug("set osd.metadata to:\n"+osd.getMetadata());
+            writer = textStore.openWriter(contentPath);
+        } catch (IOException e) {
+            log.warn("Cannot write to the tika text store - only the summary will be stored and indexed.", e);
         }
-        catch (Exception e) {
-            log.warn("Failed to extract data with tika.", e);
-            Document meta = ParamParser.parseXmlToDocument(osd.getMetadata());
-            Node oldTikaXml = meta.selectSingleNode("/meta/metaset[@type='tika']");
-            if(oldTikaXml != null){
-                oldTikaXml.detach();
+        try {
+            Metadata metadata = new Metadata();
+            BoundedTextHandler handler = new BoundedTextHandler(writer, maxCharacters, summaryCharacters);
+            int embedded = parseFile(content, metadata, handler);
+            if (writer != null) {
+                writer.commit();
+            }
+            return new Extraction(metadata, handler.getSummary(), handler.getCharacters(),
+                    handler.getLimitReached(), embedded, writer != null);
+        } finally {
+            if (writer != null) {
+                writer.close();
             }
-            Element tikaMetaset = meta.getRootElement().addElement("metaset");
-            tikaMetaset.addAttribute("type","tika");
-            tikaMetaset.addElement("error").addText(e.getLocalizedMessage());
-            osd.setMetadata(meta.asXML());
-            log.debug("set osd.metadata to:\n"+osd.getMetadata());
         }
     }
 
-    public String parseFile(File file, TikaConfig tikaConfig, Metadata metadata) throws Exception {
-        SAXTransformerFactory factory = (SAXTransformerFactory) SAXTransformerFactory.newInstance();
-        TransformerHandler handler = factory.newTransformerHandler();
-        handler.getTransformer().setOutputProperty(OutputKeys.METHOD, "xml");
-        handler.getTransformer().setOutputProperty(OutputKeys.INDENT, "yes");
+    /**
+     * Replace the tika metaset of an object with the extracted data.
+     * @param osd the object
+     * @param extraction the result of {@link #extract(java.io.File, String, String)}
+     */
+    public void setTikaMetaset(ObjectSystemData osd, Extraction extraction){
+        Element tikaMetaset = replaceTikaMetaset(osd);
+        for (Element element : extraction.toElements()) {
+            tikaMetaset.add(element);
+        }
+        osd.setMetadata(tikaMetaset.getDocument().asXML());
+        log.debug("set osd.metadata to:\n"+osd.getMetadata());
+    }
+
+    /**
+     * Replace the tika metaset of an object with an error message.
+     * @param osd the object
+     * @param e the exception which occurred during the extraction
+     */
+    public void setTikaError(ObjectSystemData osd, Exception e){
+        Element tikaMetaset = replaceTikaMetaset(osd);
+        tikaMetaset.addElement("error").addText(String.valueOf(e.getLocalizedMessage()));
+        osd.setMetadata(tikaMetaset.getDocument().asXML());
+        log.debug("set osd.metadata to:\n"+osd.getMetadata());
+    }
 
-        StringWriter sw = new StringWriter();
-        handler.setResult(new StreamResult(sw));
+    Element replaceTikaMetaset(ObjectSystemData osd){
+        Document meta = ParamParser.parseXmlToDocument(osd.getMetadata());
+        Node oldTikaXml = meta.selectSingleNode("/meta/metaset[@type='tika']");
+        if(oldTikaXml != null){
+            oldTikaXml.detach();
+        }
+        Element tikaMetaset = meta.getRootElement().addElement("metaset");
+        tikaMetaset.addAttribute("type","tika");
+        return tikaMetaset;
+    }
 
-        Parser parser = new AutoDetectParser(tikaConfig);
-        ParseContext pc = new ParseContext();
+    /**
+     * Parse a file and send its SAX events to the handler. The parser runs in a separate thread;
+     * if it takes longer than the timeout (which includes the time it waits for a free parser
+     * thread), it is interrupted and the handler is stopped, so a parser which hangs without
+     * producing output cannot block the caller. A parser which is still running after the
+     * interrupt is counted (see {@link #getStuckParserCount()}) and keeps its thread until it stops.
+     * @param file the file
+     * @param metadata receives the metadata of the document
+     * @param handler the handler; if it stops the parser because a limit has been reached,
+     *                this method returns normally.
+     * @return the number of parsed embedded documents
+     * @throws Exception if the file cannot be parsed, or RejectedExecutionException if all parser
+     * threads are busy and the queue is full.
+     */
+    int parseFile(File file, final Metadata metadata, final BoundedTextHandler handler) throws Exception {
+        final ParseContext pc = new ParseContext();
+        final Parser parser = getSharedParser();
+        EmbeddedDocumentLimiter limiter = null;
+        if (maxEmbedded > 0) {
+            limiter = new EmbeddedDocumentLimiter(parser, maxEmbedded);
+            pc.set(Parser.class, limiter);
+        }
+        ThreadPoolExecutor executor = getParserThreads();
+        if (stuckParsers.get() >= executor.getMaximumPoolSize()) {
+            // queued parses would only wait for their timeout.
+            log.warn("Rejected the extraction of " + file.getName() + ": all Tika parser threads are still running after their timeout.");
+            throw new RejectedExecutionException("Tika extraction rejected: all parser threads are blocked.");
+        }
+        final InputStream input = new BufferedInputStream(new FileInputStream(file));
+        ParseTask task = new ParseTask(parser, input, handler, metadata, pc, file.getName());
+        Future<?> parse;
         try {
-            parser.parse(new FileInputStream(file), handler, metadata, pc);
-            return sw.toString();
-        } catch (Exception e) {
-            log.debug("Failed to parse file.", e);
-            throw new RuntimeException(e);
+            parse = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            input.close();
+            log.warn("Rejected the extraction of " + file.getName() + ": all Tika parser threads are busy ("
+                    + stuckParsers.get() + " of them are still running after their timeout).");
+            throw new RejectedExecutionException("Tika extraction rejected: all parser threads are busy.", e);
+        }
+        try {
+            if (timeout > 0) {
+                parse.get(timeout, TimeUnit.MILLISECONDS);
+            } else {
+                parse.get();
+            }
+        } catch (TimeoutException e) {
+            handler.stop(BoundedTextHandler.LIMIT_TIMEOUT);
+            parse.cancel(true);
+            abandon(task);
+            log.debug("Stopped extraction of " + file.getName() + ": " + handler.getLimitReached()
+                    + " reached after " + handler.getCharacters() + " characters.");
+        } catch (ExecutionException e) {
+            // parsers may wrap the handler's exception, so check the handler itself:
+            if (handler.getLimitReached() == null) {
+                log.debug("Failed to parse file.", e.getCause());
+                throw new RuntimeException(e.getCause());
+            }
+            log.debug("Stopped extraction of " + file.getName() + ": " + handler.getLimitReached()
+                    + " reached after " + handler.getCharacters() + " characters.");
+        } catch (InterruptedException e) {
+            handler.stop(BoundedTextHandler.LIMIT_TIMEOUT);
+            parse.cancel(true);
+            abandon(task);
+            Thread.currentThread().interrupt();
+            throw e;
+        } finally {
+            // also unblocks a parser which waits for input after a timeout.
+            input.close();
+        }
+        return limiter == null ? 0 : limiter.count;
+    }
+
+    void abandon(ParseTask task) {
+        if (task.abandon()) {
+            log.warn("Tika parser of " + task.name + " is still running after its timeout - "
+                    + stuckParsers.get() + " parser threads are still running after their timeout.");
         }
     }
 
@@ -107,26 +512,47 @@ public class TikaParser {
      * For example, DITA files are already XML, so you can index / handle them without any
      * further Tika-parsing. (And adding them to the metadata may cause problems due to xml-namespaces)
      * The default blacklist is: "xml|dita|ditamap"
-     * @return a String that may be used as a regex to filter for invalid format extensions<br/>
-     * Example: may return "dita|xml|foo"
+     * <p>
+     * The compiled pattern is cached in the repository's {@link ConfigEntryCache}, if available.
+     * </p>
+     * @return a Pattern that matches invalid format extensions<br/>
+     * Example: may be compiled from "dita|xml|foo"
      */
-    String getTikaBlacklist(){
-        DAOFactory daoFactory = DAOFactory.instance(DAOFactory.HIBERNATE);
+    Pattern getTikaBlacklist(){
         EntityManager em = HibernateSession.getLocalEntityManager();
-        ConfigEntryDAO ceDao = daoFactory.getConfigEntryDAO(em);
-        ConfigEntry blacklist = ceDao.findByName("tika.blacklist");
-        if(blacklist == null){
-            log.debug("Did not find tika.blacklist config entry, returning defaultBlacklist.");
-            return defaultBlacklist;
+        if(configEntryCache != null){
+            return configEntryCache.get("tika.blacklist", BLACKLIST_SETTING, em);
         }
-        Node blackNode = ParamParser.parseXmlToDocument(blacklist.getConfig()).selectSingleNode("//blacklist");
-        if(blackNode == null){
-            log.debug("Did not find blacklist node in tika.blacklist config entry, returning defaultBlacklist.");
-            return defaultBlacklist;
-        }
-        log.debug("Found blacklist: "+blackNode.getText());
-        return blackNode.getText();
+        DAOFactory daoFactory = DAOFactory.instance(DAOFactory.HIBERNATE);
+        ConfigEntryDAO ceDao = daoFactory.getConfigEntryDAO(em);
+        return BLACKLIST_SETTING.parse(ceDao.findByName("tika.blacklist"));
     }
 
-    public final String defaultBlacklist = "xml|dita|ditamap";
+    public static final String defaultBlacklist = "xml|dita|ditamap";
+
+    static final Pattern defaultBlacklistPattern = Pattern.compile(defaultBlacklist);
+
+    static final ConfigEntryCache.Setting<Pattern> BLACKLIST_SETTING = new ConfigEntryCache.Setting<Pattern>() {
+        @Override
+        public Pattern parse(ConfigEntry blacklist) {
+            Logger log = LoggerFactory.getLogger(TikaParser.class);
+            if(blacklist == null){
+                log.debug("Did not find tika.blacklist config entry, returning defaultBlacklist.");
+                return defaultBlacklistPattern;
+            }
+            Node blackNode = ParamParser.parseXmlToDocument(blacklist.getConfig()).selectSingleNode("//blacklist");
+            if(blackNode == null){
+                log.debug("Did not find blacklist node in tika.blacklist config entry, returning defaultBlacklist.");
+                return defaultBlacklistPattern;
+            }
+            log.debug("Found blacklist: "+blackNode.getText());
+            try{
+                return Pattern.compile(blackNode.getText());
+            }
+            catch (PatternSyntaxException e){
+                log.warn("Invalid regex in tika.blacklist config entry, returning defaultBlacklist.", e);
+                return defaultBlacklistPattern;
+            }
+        }
+    };
 }
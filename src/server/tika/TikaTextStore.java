@@ -0,0 +1,143 @@
+package server.tika;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import server.global.ConfThreadLocal;
+
+/**
+ * Stores the complete text extracted by Tika as a gzip compressed file per content file, in the
+ * folder tika-text of the repository's data folder. The tika metaset of an object only contains a
+ * summary of the text; the index receives the complete text from this store (see {@link TikaIndexText}).
+ * <p>
+ * The text file of a content file has the path of the content file with the suffix .txt.gz, so
+ * objects which share a content file share its text, and new content always gets a new text file.
+ * Text files of deleted content files are removed by the repository's
+ * {@link server.data.DerivedFileCleanup}.
+ * </p>
+ */
+public class TikaTextStore {
+
+    static final String FOLDER = "tika-text";
+    public static final String SUFFIX = ".txt.gz";
+
+    private final File root;
+
+    public TikaTextStore(String repositoryName) {
+        root = new File(ConfThreadLocal.getConf().getDataRoot() + repositoryName + File.separator + FOLDER);
+    }
+
+    /**
+     * @return the folder of the text files, which mirrors the content folder of the repository.
+     */
+    public File getFolder() {
+        return root;
+    }
+
+    /**
+     * @param contentPath the content path of an object (relative to the repository's data folder)
+     * @return the text file of this content (which may not exist).
+     */
+    public File getTextFile(String contentPath) {
+        return new File(root, contentPath + SUFFIX);
+    }
+
+    /**
+     * Open a Writer for the text of a content file. The text becomes visible when the Writer is
+     * committed with {@link TextWriter#commit()}; a Writer which is closed without a commit is discarded.
+     *
+     * @param contentPath the content path
+     * @return a Writer which compresses the text
+     * @throws IOException if the file cannot be created
+     */
+    public TextWriter openWriter(String contentPath) throws IOException {
+        File target = getTextFile(contentPath);
+        File folder = target.getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Could not create folder " + folder.getAbsolutePath());
+        }
+        File temp = new File(folder, target.getName() + ".tmp");
+        return new TextWriter(temp, target);
+    }
+
+    /**
+     * @param contentPath the content path
+     * @return a Reader for the text of the content, or null if no text has been stored.
+     * @throws IOException if the file cannot be read
+     */
+    public Reader openReader(String contentPath) throws IOException {
+        File textFile = getTextFile(contentPath);
+        if (!textFile.isFile()) {
+            return null;
+        }
+        return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(textFile)), "UTF-8"));
+    }
+
+    /**
+     * Writes the text to a temporary file which is renamed on commit.
+     */
+    public static class TextWriter extends Writer {
+        private final File temp;
+        private final File target;
+        private final Writer out;
+        private boolean closed = false;
+
+        TextWriter(File temp, File target) throws IOException {
+            this.temp = temp;
+            this.target = target;
+            this.out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temp)), "UTF-8"));
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            out.write(chars, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /**
+         * Close the file and move it to its final name.
+         * @throws IOException if the file cannot be written or renamed.
+         */
+        public void commit() throws IOException {
+            closeStream();
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Could not replace " + target.getAbsolutePath());
+            }
+            if (!temp.renameTo(target)) {
+                throw new IOException("Could not rename " + temp.getAbsolutePath());
+            }
+        }
+
+        /**
+         * Close the Writer. Unless it has been committed, the text is discarded.
+         */
+        @Override
+        public void close() throws IOException {
+            closeStream();
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+
+        void closeStream() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        }
+    }
+}
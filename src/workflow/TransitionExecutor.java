@@ -0,0 +1,246 @@
+package workflow;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.LocalRepository;
+import server.data.ObjectSystemData;
+import server.extension.WorkflowApi;
+import server.global.Constants;
+import server.i18n.LocalMessage;
+import server.interfaces.Repository;
+import utils.HibernateSession;
+
+/**
+ * Executes the transitions and deadlines which the WorkflowServer dispatches, each one in its own
+ * transaction, so a failing or slow transition does not roll back or delay the others.
+ * <p>
+ * The work is sharded by workflow id over a fixed number of single-threaded workers
+ * (repository[name]/workflowServer/workers, default: 1): the transitions of one workflow are
+ * executed one after another in the order of submission, transitions of different workflows
+ * may run in parallel.
+ * </p>
+ */
+public class TransitionExecutor {
+
+	private Logger log = LoggerFactory.getLogger(this.getClass());
+
+	public enum Kind {
+		/**
+		 * execute the default transition of a task with procstate transition_ready
+		 */
+		TRANSITION,
+		/**
+		 * execute the deadline transition of an open task
+		 */
+		TASK_DEADLINE,
+		/**
+		 * create the deadline task of a started workflow
+		 */
+		WORKFLOW_DEADLINE
+	}
+
+	/**
+	 * A task or workflow which has to be processed by a worker.
+	 */
+	public static class Job {
+		final Long osdId;
+		final Long workflowId;
+		final Kind kind;
+		/**
+		 * the number of previous failed attempts (only counted for WORKFLOW_DEADLINE jobs, which are retried)
+		 */
+		final int attempts;
+
+		public Job(Long osdId, Long workflowId, Kind kind) {
+			this(osdId, workflowId, kind, 0);
+		}
+
+		public Job(Long osdId, Long workflowId, Kind kind, int attempts) {
+			this.osdId = osdId;
+			this.workflowId = workflowId;
+			this.kind = kind;
+			this.attempts = attempts;
+		}
+
+		public Long getOsdId() {
+			return osdId;
+		}
+
+		public Long getWorkflowId() {
+			return workflowId;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+	}
+
+	private final WorkflowServer server;
+	private final Repository repository;
+	private final ExecutorService[] shards;
+	private final AtomicLong submittedCount = new AtomicLong();
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	/**
+	 * @param server     the WorkflowServer, which checks the jobs and receives the tasks created by them
+	 * @param repository the repository
+	 * @param workers    the number of worker threads
+	 */
+	public TransitionExecutor(WorkflowServer server, final Repository repository, int workers) {
+		this.server = server;
+		this.repository = repository;
+		shards = new ExecutorService[Math.max(1, workers)];
+		for (int i = 0; i < shards.length; i++) {
+			final String threadName = "WorkflowTransition-" + repository.getName() + "-" + i;
+			shards[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, threadName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queue a job on the worker of its workflow.
+	 * @param job the job
+	 */
+	public void submit(final Job job) {
+		Long key = job.workflowId != null ? job.workflowId : job.osdId;
+		int shard = (int) (Math.abs(key % shards.length));
+		submittedCount.incrementAndGet();
+		shards[shard].execute(new Runnable() {
+			@Override
+			public void run() {
+				execute(job);
+			}
+		});
+	}
+
+	void execute(Job job) {
+		EntityManager em = repository.getEntityManager();
+		HibernateSession.setLocalEntityManager(em);
+		LocalRepository.setRepository(repository);
+		EntityTransaction et = em.getTransaction();
+		try {
+			et.begin();
+			if (!LocalMessage.wasInitialized()) {
+				// transitions may create localized messages.
+				server.initializeLocalMessage(em);
+			}
+			ObjectSystemData osd = server.findOpenItem(em, job);
+			if (osd == null) {
+				// commit the removal of an obsolete deadline row
+				et.commit();
+				skippedCount.incrementAndGet();
+				return;
+			}
+			WorkflowApi wfApi = new WorkflowApi(repository, em);
+			switch (job.kind) {
+				case TRANSITION: wfApi.executeNamedTransition(osd, null); break;
+				case TASK_DEADLINE: wfApi.executeNamedTransition(osd, WorkflowServer.DEADLINE_TRANSITION); break;
+				case WORKFLOW_DEADLINE: server.createDeadlineTask(em, wfApi, osd); break;
+			}
+			et.commit();
+			server.submitDeferred();
+			completedCount.incrementAndGet();
+		} catch (Exception e) {
+			log.error("Failed to execute " + job.kind + " of object #" + job.osdId, e);
+			failedCount.incrementAndGet();
+			server.discardDeferred();
+			if (et.isActive()) {
+				et.rollback();
+			}
+			if (job.kind == Kind.WORKFLOW_DEADLINE) {
+				// the workflow has no task which could show the failure, so the deadline is retried.
+				server.retryDeadline(job);
+			} else {
+				publishFailure(job, e);
+			}
+		} finally {
+			if (em.isOpen()) {
+				em.close();
+			}
+			LocalRepository.cleanUp();
+		}
+	}
+
+	/**
+	 * Record the exception in the log metaset of the task and set its procstate to transition_failed,
+	 * in a new transaction.
+	 */
+	void publishFailure(Job job, Exception cause) {
+		EntityManager em = repository.getEntityManager();
+		HibernateSession.setLocalEntityManager(em);
+		EntityTransaction et = em.getTransaction();
+		try {
+			et.begin();
+			ObjectSystemData task = em.find(ObjectSystemData.class, job.osdId);
+			if (task != null) {
+				server.publishStacktrace(task, cause, Constants.METASET_LOG, Constants.PROCSTATE_TRANSITION_FAILED);
+			}
+			et.commit();
+		} catch (Exception e) {
+			log.error("Failed to store the transition error of task #" + job.osdId, e);
+			if (et.isActive()) {
+				et.rollback();
+			}
+		} finally {
+			if (em.isOpen()) {
+				em.close();
+			}
+		}
+	}
+
+	public int getWorkerCount() {
+		return shards.length;
+	}
+
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	/**
+	 * @return the number of jobs whose task or workflow was no longer open when the job was executed.
+	 */
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the number of jobs which are waiting or running.
+	 */
+	public long getPendingCount() {
+		return submittedCount.get() - completedCount.get() - skippedCount.get() - failedCount.get();
+	}
+
+	/**
+	 * Stop the workers. Waiting jobs are discarded.
+	 */
+	public void shutdown() {
+		for (ExecutorService shard : shards) {
+			shard.shutdownNow();
+		}
+	}
+}
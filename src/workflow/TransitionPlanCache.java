@@ -0,0 +1,203 @@
+package workflow;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.EntityManager;
+
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.ObjectType;
+import server.RelationType;
+import server.dao.DAOFactory;
+import server.exceptions.CinnamonConfigurationException;
+import server.interfaces.Transition;
+
+/**
+ * Per-repository cache of the parsed transition metasets of workflow tasks.
+ * <p>
+ * A task is a copy of its task definition and carries the definition's transition metaset unchanged,
+ * so the content of this metaset identifies the transitions of all tasks of one definition. The cache
+ * keeps the position of each transition and the name of the default transition
+ * for each distinct content (LRU, repository[name]/workflowServer/transitionPlanCacheSize, default: 1000),
+ * and the loaded Transition classes. A changed task definition simply produces a new key.
+ * </p>
+ * <p>
+ * Transition instances are not cached, because BaseTransition binds the EntityManager of the
+ * current thread when it is created.
+ * </p>
+ * <p>
+ * The cache also holds the ids of the ObjectTypes and RelationTypes which WorkflowApi needs for
+ * every transition, so they are looked up by name only once.
+ * </p>
+ */
+public class TransitionPlanCache {
+
+	private Logger log = LoggerFactory.getLogger(this.getClass());
+	static DAOFactory daoFactory = DAOFactory.instance(DAOFactory.HIBERNATE);
+
+	/**
+	 * The transitions of one transition metaset.
+	 */
+	public static class TransitionPlan {
+		final String defaultName;
+		final Map<String, Integer> positions;
+
+		TransitionPlan(String defaultName, Map<String, Integer> positions) {
+			this.defaultName = defaultName;
+			this.positions = positions;
+		}
+
+		/**
+		 * @return the name of the default transition, or null.
+		 */
+		public String getDefaultName() {
+			return defaultName;
+		}
+
+		/**
+		 * Find the node which is handed to a Transition in the parsed metadata of its task,
+		 * so the transition may evaluate XPath expressions on the other metasets of the task.
+		 * @param metaset the transition metaset in the parsed metadata of a task with this plan
+		 * @param name the name of the transition
+		 * @return the transition element, or null if the metaset does not contain it.
+		 */
+		@SuppressWarnings("unchecked")
+		public Element findTransitionNode(Element metaset, String name) {
+			Integer position = positions.get(name);
+			if (position == null) {
+				return null;
+			}
+			List<Element> transitions = metaset.elements("transition");
+			return position < transitions.size() ? transitions.get(position) : null;
+		}
+	}
+
+	private final Map<String, TransitionPlan> plans;
+	private final ConcurrentMap<String, Class<? extends Transition>> transitionClasses =
+			new ConcurrentHashMap<String, Class<? extends Transition>>();
+	private final ConcurrentMap<String, Long> objectTypeIds = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, Long> relationTypeIds = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * @param maxSize the maximum number of cached transition metasets
+	 */
+	@SuppressWarnings("serial")
+	public TransitionPlanCache(final int maxSize) {
+		plans = new LinkedHashMap<String, TransitionPlan>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, TransitionPlan> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param transitionMetaset the transition metaset in the parsed metadata of a task
+	 * @return the transitions of the metaset
+	 */
+	public TransitionPlan getPlan(Element transitionMetaset) {
+		String key = transitionMetaset.asXML();
+		synchronized (plans) {
+			TransitionPlan plan = plans.get(key);
+			if (plan != null) {
+				return plan;
+			}
+		}
+		TransitionPlan plan = createPlan(transitionMetaset);
+		synchronized (plans) {
+			plans.put(key, plan);
+		}
+		return plan;
+	}
+
+	@SuppressWarnings("unchecked")
+	TransitionPlan createPlan(Element metaset) {
+		log.debug("reading the transitions of a transition metaset");
+		Map<String, Integer> positions = new HashMap<String, Integer>();
+		List<Element> transitions = metaset.elements("transition");
+		for (int i = 0; i < transitions.size(); i++) {
+			String name = transitions.get(i).elementText("name");
+			if (name != null && !positions.containsKey(name)) {
+				positions.put(name, i);
+			}
+		}
+		Node defaultNode = metaset.selectSingleNode("default");
+		String defaultName = defaultNode == null ? null : defaultNode.getText();
+		return new TransitionPlan(defaultName, positions);
+	}
+
+	/**
+	 * @param className the name of a class which implements Transition
+	 * @return a new instance of the class
+	 */
+	public Transition createTransition(String className) {
+		Class<? extends Transition> transitionClass = transitionClasses.get(className);
+		try {
+			if (transitionClass == null) {
+				transitionClass = Class.forName(className).asSubclass(Transition.class);
+				transitionClasses.put(className, transitionClass);
+			}
+			return transitionClass.newInstance();
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (InstantiationException e) {
+			throw new RuntimeException(e);
+		} catch (ClassNotFoundException e) {
+			throw new CinnamonConfigurationException(e);
+		}
+	}
+
+	/**
+	 * @param em   the EntityManager
+	 * @param name the name of an ObjectType
+	 * @return the ObjectType, or null if it does not exist
+	 */
+	public ObjectType findObjectType(EntityManager em, String name) {
+		Long id = objectTypeIds.get(name);
+		if (id != null) {
+			ObjectType type = em.find(ObjectType.class, id);
+			if (type != null) {
+				return type;
+			}
+		}
+		ObjectType type = daoFactory.getObjectTypeDAO(em).findByName(name);
+		if (type != null) {
+			objectTypeIds.put(name, type.getId());
+		}
+		return type;
+	}
+
+	/**
+	 * @param em   the EntityManager
+	 * @param name the name of a RelationType
+	 * @return the RelationType, or null if it does not exist
+	 */
+	public RelationType findRelationType(EntityManager em, String name) {
+		Long id = relationTypeIds.get(name);
+		if (id != null) {
+			RelationType type = em.find(RelationType.class, id);
+			if (type != null) {
+				return type;
+			}
+		}
+		RelationType type = daoFactory.getRelationTypeDAO(em).findByName(name);
+		if (type != null) {
+			relationTypeIds.put(name, type.getId());
+		}
+		return type;
+	}
+
+	public int getCachedCount() {
+		synchronized (plans) {
+			return plans.size();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package workflow;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * The pending deadline of an open task or a started workflow (table workflow_deadlines).
+ * <p>
+ * The WorkflowServer keeps these rows in sync with the deadline element of the task_definition or
+ * workflow_template metaset whenever a task or workflow is reported to it, in the same transaction.
+ * At startup, the DelayQueue of the server is loaded from this table instead of parsing the metadata
+ * of all open tasks and workflows. A row is removed when its deadline has been handled or when the
+ * task or workflow is no longer open.
+ * </p>
+ */
+@Entity
+@Table(name = "workflow_deadlines")
+public class WorkflowDeadline {
+
+	/**
+	 * The id of the task or workflow.
+	 */
+	@Id
+	@Column(name = "osd_id")
+	private Long osdId;
+
+	/**
+	 * The time of the deadline in milliseconds.
+	 */
+	@Column(name = "due_time", nullable = false)
+	private long dueTime;
+
+	@Column(name = "workflow", nullable = false)
+	private boolean workflow;
+
+	/**
+	 * For workflows: the id of the task definition which is instantiated when the deadline is reached.
+	 */
+	@Column(name = "deadline_task_def_id")
+	private Long deadlineTaskDefId;
+
+	public WorkflowDeadline() {
+	}
+
+	public WorkflowDeadline(Long osdId, long dueTime, boolean workflow) {
+		this.osdId = osdId;
+		this.dueTime = dueTime;
+		this.workflow = workflow;
+	}
+
+	public Long getOsdId() {
+		return osdId;
+	}
+
+	public long getDueTime() {
+		return dueTime;
+	}
+
+	public void setDueTime(long dueTime) {
+		this.dueTime = dueTime;
+	}
+
+	public boolean isWorkflow() {
+		return workflow;
+	}
+
+	public Long getDeadlineTaskDefId() {
+		return deadlineTaskDefId;
+	}
+
+	public void setDeadlineTaskDefId(Long deadlineTaskDefId) {
+		this.deadlineTaskDefId = deadlineTaskDefId;
+	}
+}
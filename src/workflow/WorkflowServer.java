@@ -1,17 +1,30 @@
 package workflow;
 
-import java.text.DecimalFormat;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+import javax.xml.bind.DatatypeConverter;
 
 import org.dom4j.Document;
 import org.dom4j.Element;
+import org.dom4j.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import server.ConfigEntry;
 import server.Metaset;
 import server.ObjectType;
 import server.Relation;
@@ -24,46 +37,146 @@ import server.global.ConfThreadLocal;
 import server.global.Constants;
 import server.i18n.LocalMessage;
 import server.i18n.UiLanguage;
-import server.index.LuceneBridge;
-import server.index.ResultCollector;
 import server.interfaces.Repository;
 import utils.HibernateSession;
 import utils.ParamParser;
 
+/**
+ * Executes the automatic transitions and the deadlines of the workflows of one repository.
+ * <p>
+ * The server does not poll the database: WorkflowApi and CmdInterpreter report new and changed
+ * tasks and workflows with {@link #schedule(ObjectSystemData)}. Tasks with procstate
+ * transition_ready are executed as soon as the request which changed them has been committed;
+ * deadlines of open tasks and started workflows are kept in a DelayQueue, which is loaded from the
+ * deadline table ({@link WorkflowDeadline}) when the server starts. As a safety net for changes which are made outside of the
+ * server, the transition_ready tasks are also loaded every rescanInterval milliseconds
+ * (repository[name]/workflowServer/rescanInterval, default: 300000).
+ * </p>
+ * <p>
+ * The server thread only dispatches the work: each transition or deadline is executed by the
+ * {@link TransitionExecutor} in its own transaction, on the worker of its workflow.
+ * </p>
+ */
 public class WorkflowServer implements Runnable {
 
 	private Logger log = LoggerFactory.getLogger(this.getClass());
 	
+	/**
+	 * The deadline of a task or workflow, stored in the deadline element of its
+	 * task_definition or workflow_template metaset.
+	 */
+	static final String DEADLINE_XPATH = "/meta/metaset[@type='task_definition' or @type='workflow_template']/deadline";
+	/**
+	 * Maximum number of ids in one "in" clause.
+	 */
+	static final int MAX_IDS_PER_QUERY = 500;
+	static final String DEADLINE_TRANSITION = "deadline_transition";
+	/**
+	 * Delay in milliseconds before the first retry of a failed workflow deadline; it doubles with
+	 * each further attempt, up to MAX_DEADLINE_RETRY_DELAY.
+	 */
+	static final long DEADLINE_RETRY_DELAY = 60000L;
+	static final long MAX_DEADLINE_RETRY_DELAY = 3600000L;
+	/**
+	 * Name of the ConfigEntry which records that the deadline table has been filled from the metadata
+	 * of the open tasks and workflows. Delete it to fill the table again on the next start.
+	 */
+	static final String DEADLINE_BACKFILL_MARKER = "workflow.deadlines.backfilled";
+
+	/**
+	 * A pending deadline of a task or workflow.
+	 */
+	static class Deadline implements Delayed {
+		final Long osdId;
+		final long dueTime;
+		final boolean workflow;
+		/**
+		 * the number of failed attempts to process this deadline
+		 */
+		final int attempts;
+
+		Deadline(Long osdId, long dueTime, boolean workflow) {
+			this(osdId, dueTime, workflow, 0);
+		}
+
+		Deadline(Long osdId, long dueTime, boolean workflow, int attempts) {
+			this.osdId = osdId;
+			this.dueTime = dueTime;
+			this.workflow = workflow;
+			this.attempts = attempts;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(dueTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			long diff = dueTime - ((Deadline) other).dueTime;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+
+	/**
+	 * A change to a task or workflow, which is submitted after the transaction has been committed.
+	 */
+	static class PendingChange {
+		final ObjectSystemData osd;
+		final boolean transitionReady;
+		final Long dueTime;
+		final boolean workflow;
+
+		PendingChange(ObjectSystemData osd, boolean transitionReady, Long dueTime, boolean workflow) {
+			this.osd = osd;
+			this.transitionReady = transitionReady;
+			this.dueTime = dueTime;
+			this.workflow = workflow;
+		}
+	}
+
 	EntityManager em;
 	static DAOFactory daoFactory = DAOFactory.instance(DAOFactory.HIBERNATE);
-	Long sleep;
-	Integer itemsPerRun;
+	Long rescanInterval;
 	Repository repository;
 	ObjectType taskObjectType = null;
 	ObjectType workflowObjectType;
 	ObjectType workflowTemplateType;
-	String queryDeadline;
-	String queryWorkflowDeadline;
+	RelationType workflowToTaskType;
 	ObjectSystemDataDAO oDao;
 	ObjectTypeDAO otDao;
-	
-	final String deadlineQueryFormatString = "<FilteredQuery>" +
-	"<Filter>" +
-	"<RangeFilter fieldName='workflow_deadline' lowerTerm='00000000000000000000' upperTerm='%s'></RangeFilter>" +
-	"</Filter>" +
-	"<Query><BooleanQuery>"+
-	"<Clause occurs='must'><TermQuery fieldName='objecttype'>%s</TermQuery></Clause>" +
-	"<Clause occurs='must'><TermQuery fieldName='procstate'>%s</TermQuery></Clause>" +
-	"</BooleanQuery></Query>" +
-	"</FilteredQuery>";
+	TransitionExecutor transitionExecutor;
+	TransitionPlanCache transitionPlanCache;
+
+	volatile boolean started = false;
+	volatile boolean stopped = false;
+	long nextRescan = 0;
+	boolean deadlinesLoaded = false;
+	final Object signal = new Object();
+	final LinkedBlockingQueue<Long> readyTasks = new LinkedBlockingQueue<Long>();
+	final Set<Long> queuedTasks = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	final DelayQueue<Deadline> deadlines = new DelayQueue<Deadline>();
+	/**
+	 * The current deadline of each object; entries of the DelayQueue which are not in this map have been replaced.
+	 */
+	final ConcurrentMap<Long, Deadline> currentDeadlines = new ConcurrentHashMap<Long, Deadline>();
+	final ThreadLocal<List<PendingChange>> deferred = new ThreadLocal<List<PendingChange>>();
 	
 	public WorkflowServer(Repository repository){
 		this.repository = repository;
 		ConfThreadLocal conf = ConfThreadLocal.getConf();
-		String sleepTime 
-			= conf.getField(String.format("repository[name='%s']/workflowServer/sleepBetweenRuns", 
-					repository.getName()), "5000");
-		this.sleep = Long.parseLong(sleepTime);
+		String rescanTime 
+			= conf.getField(String.format("repository[name='%s']/workflowServer/rescanInterval", 
+					repository.getName()), "300000");
+		this.rescanInterval = Long.parseLong(rescanTime);
+		String workers 
+			= conf.getField(String.format("repository[name='%s']/workflowServer/workers", 
+					repository.getName()), "1");
+		this.transitionExecutor = new TransitionExecutor(this, repository, Integer.parseInt(workers));
+		String planCacheSize 
+			= conf.getField(String.format("repository[name='%s']/workflowServer/transitionPlanCacheSize", 
+					repository.getName()), "1000");
+		this.transitionPlanCache = new TransitionPlanCache(Integer.parseInt(planCacheSize));
 	}
 	
 	void initializeDaos(){		
@@ -71,7 +184,6 @@ public class WorkflowServer implements Runnable {
         if(taskObjectType == null){
             log.error("Could not find the essential ObjectType "+Constants.OBJTYPE_TASK);
         }
-		queryDeadline = buildDeadlineQuery(taskObjectType, Constants.PROCSTATE_TASK_TODO);
 		
 		workflowObjectType = otDao.findByName(Constants.OBJTYPE_WORKFLOW);
         if(workflowObjectType == null){
@@ -82,20 +194,21 @@ public class WorkflowServer implements Runnable {
         if(workflowTemplateType == null){
             log.error("Could not find the essential ObjectType "+Constants.OBJTYPE_WORKFLOW_TEMPLATE);
         }
-		queryWorkflowDeadline = buildDeadlineQuery(workflowObjectType, Constants.PROCSTATE_WORKFLOW_STARTED);
+		workflowToTaskType = daoFactory.getRelationTypeDAO(em).findByName(Constants.RELATION_TYPE_WORKFLOW_TO_TASK);
 		oDao = daoFactory.getObjectSystemDataDAO(em);
 	}
 	
 	@Override
 	/**
-	 * Run every $sleep seconds
+	 * Wait for ready tasks and deadlines and dispatch them to the TransitionExecutor.
 	 */
 	public void run() {
 		// initialize LocalMessage:
 		// this is necessary if a task needs to create localized messages.
 		// TODO: this will not work with an uninitialized database.
 		log.debug("WorkflowServerThread: started");
-		while(true){
+		started = true;
+		while(! stopped){
 			try{
 				if(em == null || ! em.isOpen()){
 					log.debug("EntityManager is null or not open - fetching a new one.");
@@ -111,9 +224,6 @@ public class WorkflowServer implements Runnable {
 					 */
 					log.debug("taskObjectType seems uninitialized.");				
 					taskObjectType = otDao.findByName(Constants.OBJTYPE_TASK);
-//                    Query q = em.createQuery("select o from ObjectType o where o.name=:name");
-//                    q.setParameter("name", Constants.OBJTYPE_TASK);
-//                    taskObjectType = (ObjectType) q.getSingleResult();
 					if(taskObjectType == null){
 						log.debug("Workflow system is not initialized. Sleep for 10 seconds.");
 						doSleep(10000L);
@@ -125,8 +235,10 @@ public class WorkflowServer implements Runnable {
 						initializeLocalMessage();
 					}
 				}
-				log.debug("going to sleep");
-				doSleep(sleep);			
+				waitForWork();
+				if(stopped){
+					break;
+				}
 				EntityTransaction et = null;
 				try{
 					log.debug("WorkflowServerThread awakened");
@@ -140,29 +252,26 @@ public class WorkflowServer implements Runnable {
                         log.debug("oDao is null - trying to initialize Daos again.");
                         initializeDaos();
                     }
+                    if(! deadlinesLoaded){
+                    	loadDeadlines();
+                    	deadlinesLoaded = true;
+                    }
 
-					// find tasks with procstate transition_ready.
-					List<ObjectSystemData> transitionList
-					= oDao.findAllByTypeAndProcstate(taskObjectType, Constants.PROCSTATE_TRANSITION_READY);
-					log.debug("TransitionReady tasks found: "+transitionList.size());
-					WorkflowApi wfApi = new WorkflowApi(repository, em);
-					tryAndExecuteTransitions(wfApi, transitionList, null);
-
-					// find all tasks with passed deadline:
-					// build query
-
-					LuceneBridge lucene = repository.getLuceneBridge();
-					ResultCollector results = lucene.search(queryDeadline);
-					Collection<ObjectSystemData> deadlinedTasks = results.getSearchResultsAsOSDs();
-					log.debug("tasks with deadline: "+deadlinedTasks.size());
-					tryAndExecuteTransitions(wfApi, deadlinedTasks,
-					"/meta/metaset[@type='transition']/transition[name='deadline_transition']");
-
-					// find all workflows with passed deadline:
-					checkWorkflowDeadlines(wfApi);
+					if(System.currentTimeMillis() >= nextRescan){
+						// find tasks with procstate transition_ready which have not been reported.
+						List<ObjectSystemData> transitionList
+						= oDao.findAllByTypeAndProcstate(taskObjectType, Constants.PROCSTATE_TRANSITION_READY);
+						log.debug("TransitionReady tasks found: "+transitionList.size());
+						for(ObjectSystemData task : transitionList){
+							enqueueReadyTask(task.getId());
+						}
+						nextRescan = System.currentTimeMillis() + rescanInterval;
+					}
+					dispatch();
 
 					// end transaction
 					et.commit();
+					em.clear();
 					log.debug("WorkflowServerThread returns to sleep.");
 				}
 				catch (Exception e) {
@@ -178,14 +287,25 @@ public class WorkflowServer implements Runnable {
 					} catch (Exception re) {
 						log.error("Failed to rollback; "+re.getMessage());
 					}
-					// TODO: handle exception
+					// do not retry a failing item in a tight loop:
+					doSleep(1000L);
 				}
 			}
 			catch (Exception e) {
 				log.debug("",e);
 			}
 		}
-			
+		log.debug("WorkflowServerThread: stopped");
+	}
+
+	/**
+	 * Stop the WorkflowServer thread and the TransitionExecutor. Waiting jobs are discarded;
+	 * their tasks are found again by the rescan after the next start.
+	 */
+	public void shutdown(){
+		stopped = true;
+		wakeUp();
+		transitionExecutor.shutdown();
 	}
 	
 	void doSleep(Long s){
@@ -195,18 +315,373 @@ public class WorkflowServer implements Runnable {
 			log.debug("Sleep of WorkflowServer was interrupted.");
 		}
 	}
-	
-	void tryAndExecuteTransitions(WorkflowApi wfApi, Collection<ObjectSystemData> tasks, String transitionXpath){
-		for(ObjectSystemData task : tasks){
+
+	/**
+	 * Wait until a task is ready, a deadline is due or the next rescan is necessary.
+	 */
+	void waitForWork(){
+		synchronized (signal){
+			long now = System.currentTimeMillis();
+			long wait = nextRescan - now;
+			Deadline next = deadlines.peek();
+			if(next != null){
+				wait = Math.min(wait, next.dueTime - now);
+			}
+			if(stopped || wait <= 0 || ! readyTasks.isEmpty()){
+				return;
+			}
 			try{
-				wfApi.executeTransition(task, transitionXpath);
+				signal.wait(wait);
 			}
-			catch (Exception e) {                
-				log.error("Failed to execute Transition",e);
-                publishStacktrace(task, e, Constants.METASET_LOG, Constants.PROCSTATE_TRANSITION_FAILED);
+			catch (InterruptedException e) {
+				log.debug("Wait of WorkflowServer was interrupted.");
 			}
 		}
 	}
+
+	void wakeUp(){
+		synchronized (signal){
+			signal.notifyAll();
+		}
+	}
+
+	/**
+	 * Report a new or changed task or workflow. If the current thread's transaction is committed,
+	 * the server executes the task if its procstate is transition_ready or schedules its deadline.
+	 * Objects of other types are ignored.
+	 * <p>
+	 * Must be followed by {@link #submitDeferred()} after the commit or by {@link #discardDeferred()}
+	 * if the transaction is rolled back.
+	 * </p>
+	 * @param osd a task or workflow
+	 */
+	public void schedule(ObjectSystemData osd){
+		schedule(osd, null);
+	}
+
+	/**
+	 * Report a new or changed task or workflow (see {@link #schedule(ObjectSystemData)}). The object's
+	 * row in the deadline table is updated in the current transaction.
+	 * @param osd a task or workflow
+	 * @param template the template of a new workflow, or null (the template of a workflow is then
+	 * looked up by name if the workflow needs a new deadline row).
+	 */
+	public void schedule(ObjectSystemData osd, ObjectSystemData template){
+		if(osd == null || osd.getType() == null || osd.getId() == null){
+			return;
+		}
+		String typeName = osd.getType().getName();
+		boolean task = Constants.OBJTYPE_TASK.equals(typeName);
+		boolean workflow = Constants.OBJTYPE_WORKFLOW.equals(typeName);
+		if(! task && ! workflow){
+			return;
+		}
+		String procstate = osd.getProcstate();
+		boolean open = task ? Constants.PROCSTATE_TASK_TODO.equals(procstate) 
+				: Constants.PROCSTATE_WORKFLOW_STARTED.equals(procstate);
+		Long dueTime = open ? findDeadline(osd) : null;
+		updateDeadline(HibernateSession.getLocalEntityManager(), osd, dueTime, workflow, template);
+		if(! started){
+			return;
+		}
+		PendingChange change;
+		if(task && Constants.PROCSTATE_TRANSITION_READY.equals(procstate)){
+			change = new PendingChange(osd, true, null, false);
+		}
+		else if(dueTime != null){
+			change = new PendingChange(osd, false, dueTime, workflow);
+		}
+		else{
+			return;
+		}
+		List<PendingChange> changes = deferred.get();
+		if(changes == null){
+			changes = new ArrayList<PendingChange>();
+			deferred.set(changes);
+		}
+		changes.add(change);
+	}
+
+	/**
+	 * Submit the changes which have been reported by the current thread.
+	 * Must be called after the transaction has been committed.
+	 */
+	public void submitDeferred(){
+		List<PendingChange> changes = deferred.get();
+		deferred.remove();
+		if(changes == null){
+			return;
+		}
+		for(PendingChange change : changes){
+			Long id = change.osd.getId();
+			if(id == null){
+				continue;
+			}
+			if(change.transitionReady){
+				enqueueReadyTask(id);
+			}
+			else{
+				scheduleDeadline(new Deadline(id, change.dueTime, change.workflow));
+			}
+		}
+		wakeUp();
+	}
+
+	/**
+	 * Forget the changes which have been reported by the current thread (because its transaction
+	 * has been rolled back).
+	 */
+	public void discardDeferred(){
+		deferred.remove();
+	}
+
+	void enqueueReadyTask(Long taskId){
+		if(queuedTasks.add(taskId)){
+			readyTasks.offer(taskId);
+		}
+	}
+
+	void scheduleDeadline(Deadline deadline){
+		currentDeadlines.put(deadline.osdId, deadline);
+		deadlines.offer(deadline);
+	}
+
+	/**
+	 * Schedule a failed workflow deadline again. The delay doubles with each failed attempt. If the
+	 * workflow has got a new deadline in the meantime, the failed one is not retried.
+	 * @param job the failed WORKFLOW_DEADLINE job
+	 */
+	void retryDeadline(TransitionExecutor.Job job){
+		int attempts = job.attempts + 1;
+		long delay = Math.min(MAX_DEADLINE_RETRY_DELAY, DEADLINE_RETRY_DELAY << Math.min(attempts - 1, 16));
+		Deadline retry = new Deadline(job.osdId, System.currentTimeMillis() + delay, true, attempts);
+		if(currentDeadlines.putIfAbsent(job.osdId, retry) == null){
+			deadlines.offer(retry);
+			log.warn("Deadline of workflow #"+job.osdId+" failed "+attempts+" times, retrying in "+delay+" ms.");
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Submit the queued ready tasks and the due deadlines to the TransitionExecutor.
+	 */
+	void dispatch(){
+		List<TransitionExecutor.Job> jobs = new ArrayList<TransitionExecutor.Job>();
+		List<Long> taskIds = new ArrayList<Long>();
+		readyTasks.drainTo(taskIds);
+		for(Long id : taskIds){
+			queuedTasks.remove(id);
+			jobs.add(new TransitionExecutor.Job(id, null, TransitionExecutor.Kind.TRANSITION));
+		}
+		Deadline deadline;
+		while((deadline = deadlines.poll()) != null){
+			if(! currentDeadlines.remove(deadline.osdId, deadline)){
+				// replaced by a newer deadline
+				continue;
+			}
+			if(deadline.workflow){
+				jobs.add(new TransitionExecutor.Job(deadline.osdId, deadline.osdId, TransitionExecutor.Kind.WORKFLOW_DEADLINE, deadline.attempts));
+			}
+			else{
+				taskIds.add(deadline.osdId);
+				jobs.add(new TransitionExecutor.Job(deadline.osdId, null, TransitionExecutor.Kind.TASK_DEADLINE));
+			}
+		}
+		if(jobs.isEmpty()){
+			return;
+		}
+		Map<Long, Long> workflowIds = findWorkflowIds(taskIds);
+		for(TransitionExecutor.Job job : jobs){
+			if(job.workflowId == null){
+				job = new TransitionExecutor.Job(job.osdId, workflowIds.get(job.osdId), job.kind);
+			}
+			transitionExecutor.submit(job);
+		}
+		log.debug("dispatched "+jobs.size()+" transitions and deadlines.");
+	}
+
+	/**
+	 * @param taskIds ids of tasks
+	 * @return a map of task id to the id of the task's workflow
+	 */
+	@SuppressWarnings("unchecked")
+	Map<Long, Long> findWorkflowIds(List<Long> taskIds){
+		Map<Long, Long> workflowIds = new HashMap<Long, Long>();
+		for(int start = 0; start < taskIds.size(); start += MAX_IDS_PER_QUERY){
+			Query query = em.createQuery("select r.right.id, r.left.id from Relation r where r.type = :type and r.right.id in (:ids)");
+			query.setParameter("type", workflowToTaskType);
+			query.setParameter("ids", taskIds.subList(start, Math.min(taskIds.size(), start + MAX_IDS_PER_QUERY)));
+			for(Object[] row : (List<Object[]>) query.getResultList()){
+				workflowIds.put((Long) row[0], (Long) row[1]);
+			}
+		}
+		return workflowIds;
+	}
+
+	/**
+	 * Load the task or workflow of a job and check if the job still has to be executed. This method is
+	 * called by the TransitionExecutor inside of the job's transaction.
+	 * @param em the job's EntityManager
+	 * @param job the job
+	 * @return the task or workflow, or null if it has been deleted, is no longer open or its deadline
+	 * has been changed (in which case the new deadline is scheduled). The deadline row of an object
+	 * which is no longer open is removed.
+	 */
+	ObjectSystemData findOpenItem(EntityManager em, TransitionExecutor.Job job){
+		ObjectSystemData osd = em.find(ObjectSystemData.class, job.osdId);
+		WorkflowDeadline row = null;
+		if(job.kind != TransitionExecutor.Kind.TRANSITION){
+			row = em.find(WorkflowDeadline.class, job.osdId);
+		}
+		boolean open = false;
+		if(osd != null){
+			switch(job.kind){
+				case TRANSITION:
+					return isTask(osd) && Constants.PROCSTATE_TRANSITION_READY.equals(osd.getProcstate()) ? osd : null;
+				case TASK_DEADLINE:
+					open = isTask(osd) && Constants.PROCSTATE_TASK_TODO.equals(osd.getProcstate());
+					break;
+				case WORKFLOW_DEADLINE:
+					open = isWorkflow(osd) && Constants.PROCSTATE_WORKFLOW_STARTED.equals(osd.getProcstate());
+					break;
+			}
+		}
+		if(row == null){
+			// the deadline has been removed.
+			return null;
+		}
+		if(! open){
+			em.remove(row);
+			return null;
+		}
+		if(row.getDueTime() > System.currentTimeMillis()){
+			// the deadline has been moved.
+			scheduleDeadline(new Deadline(osd.getId(), row.getDueTime(), row.isWorkflow()));
+			wakeUp();
+			return null;
+		}
+		return osd;
+	}
+
+	/**
+	 * Load the deadlines of all open tasks and started workflows from the deadline table. If the
+	 * table has not been filled yet (there is no ConfigEntry {@link #DEADLINE_BACKFILL_MARKER}),
+	 * it is filled first, in the same transaction as the marker.
+	 */
+	@SuppressWarnings("unchecked")
+	void loadDeadlines(){
+		ConfigEntryDAO ceDao = daoFactory.getConfigEntryDAO(em);
+		if(ceDao.findByName(DEADLINE_BACKFILL_MARKER) == null){
+			createDeadlineRows();
+			ConfigEntry marker = new ConfigEntry();
+			marker.setName(DEADLINE_BACKFILL_MARKER);
+			marker.setConfig("<config><backfilled>"+System.currentTimeMillis()+"</backfilled></config>");
+			ceDao.makePersistent(marker);
+		}
+		List<WorkflowDeadline> rows = em.createQuery("select d from WorkflowDeadline d").getResultList();
+		for(WorkflowDeadline row : rows){
+			scheduleDeadline(new Deadline(row.getOsdId(), row.getDueTime(), row.isWorkflow()));
+		}
+		log.debug("loaded "+rows.size()+" deadlines.");
+	}
+
+	/**
+	 * Fill the deadline table from the metadata of all open tasks and started workflows
+	 * (for repositories which have been created before the table existed). Existing rows are updated.
+	 * @return the new or updated rows
+	 */
+	List<WorkflowDeadline> createDeadlineRows(){
+		List<WorkflowDeadline> rows = new ArrayList<WorkflowDeadline>();
+		for(ObjectSystemData task : oDao.findAllByTypeAndProcstate(taskObjectType, Constants.PROCSTATE_TASK_TODO)){
+			Long dueTime = findDeadline(task);
+			if(dueTime != null){
+				rows.add(updateDeadline(em, task, dueTime, false, null));
+			}
+		}
+		for(ObjectSystemData workflow : oDao.findAllByTypeAndProcstate(workflowObjectType, Constants.PROCSTATE_WORKFLOW_STARTED)){
+			Long dueTime = findDeadline(workflow);
+			if(dueTime != null){
+				rows.add(updateDeadline(em, workflow, dueTime, true, null));
+			}
+		}
+		log.debug("created "+rows.size()+" rows in the deadline table.");
+		return rows;
+	}
+
+	/**
+	 * Insert, update or remove the deadline row of a task or workflow. A new row of a workflow
+	 * stores the id of the workflow's deadline task definition.
+	 * @param em the EntityManager of the current transaction
+	 * @param osd a task or workflow
+	 * @param dueTime the time of the deadline in milliseconds, or null to remove the row
+	 * @param workflow true if osd is a workflow
+	 * @param template the workflow's template, or null
+	 * @return the row, or null if it has been removed
+	 */
+	WorkflowDeadline updateDeadline(EntityManager em, ObjectSystemData osd, Long dueTime, 
+			boolean workflow, ObjectSystemData template){
+		WorkflowDeadline row = em.find(WorkflowDeadline.class, osd.getId());
+		if(dueTime == null){
+			if(row != null){
+				em.remove(row);
+			}
+			return null;
+		}
+		if(row != null){
+			row.setDueTime(dueTime);
+			return row;
+		}
+		row = new WorkflowDeadline(osd.getId(), dueTime, workflow);
+		if(workflow){
+			try{
+				row.setDeadlineTaskDefId(findDeadlineTaskDef(em, osd, template).getId());
+			}
+			catch (CinnamonException e) {
+				// createDeadlineTask will try again (and report the error) when the deadline is reached.
+				log.warn("Could not find the deadline task of workflow #"+osd.getId()+": "+e.getMessage());
+			}
+		}
+		em.persist(row);
+		return row;
+	}
+
+	boolean isTask(ObjectSystemData osd){
+		return osd.getType() != null && osd.getType().getId().equals(taskObjectType.getId());
+	}
+
+	boolean isWorkflow(ObjectSystemData osd){
+		return osd.getType() != null && workflowObjectType != null 
+				&& osd.getType().getId().equals(workflowObjectType.getId());
+	}
+
+	/**
+	 * @param osd a task or workflow
+	 * @return the time of the object's deadline in milliseconds, or null if it has no (valid) deadline.
+	 */
+	Long findDeadline(ObjectSystemData osd){
+		Node deadlineNode = ParamParser.parseXmlToDocument(osd.getMetadata(), null).selectSingleNode(DEADLINE_XPATH);
+		if(deadlineNode == null || deadlineNode.getText().trim().length() == 0){
+			return null;
+		}
+		try{
+			return parseDeadline(deadlineNode.getText().trim());
+		}
+		catch (IllegalArgumentException e) {
+			log.warn("Invalid deadline in object #"+osd.getId()+": "+deadlineNode.getText());
+			return null;
+		}
+	}
+
+	/**
+	 * @param deadline a time in milliseconds or an xsd:dateTime (for example, 2012-03-01T12:00:00)
+	 * @return the time in milliseconds
+	 */
+	static Long parseDeadline(String deadline){
+		if(deadline.matches("\\d+")){
+			return Long.parseLong(deadline);
+		}
+		return DatatypeConverter.parseDateTime(deadline).getTimeInMillis();
+	}
 	
     void publishStacktrace(ObjectSystemData task, Exception e, String metasetName, String procstate){
         StringBuilder trace = new StringBuilder();
@@ -231,67 +706,90 @@ public class WorkflowServer implements Runnable {
         task.setProcstate(procstate);
     }
     
-	void checkWorkflowDeadlines(WorkflowApi wfApi){
-		/* 
-		 * search for workflows that have reached their deadline
-		 * get workflow-template
-		 * get deadline-taskdef for each
-		 * create deadline-task for workflow
-		 * set deadline-task to transition_ready if it's an automatic task
-		 * 	(last is done by wfApi.createTask)
-		 * The new deadline-Task should transition automatically to its default transition.
-		 */
-		LuceneBridge lucene = repository.getLuceneBridge();
-		ResultCollector results = lucene.search(queryWorkflowDeadline);
-		Collection<ObjectSystemData> deadlinedWorkflows = results.getSearchResultsAsOSDs();
-//        log.debug("deadlinedWorkflows: "+deadlinedWorkflows.size());
-		RelationTypeDAO rtDao = daoFactory.getRelationTypeDAO(em);
-		RelationType deadlineRelationType = rtDao.findByName(Constants.RELATION_TYPE_WORKFLOW_TO_DEADLINE_TASK);
-		RelationDAO relDao = daoFactory.getRelationDAO(em);
-		for(ObjectSystemData workflow : deadlinedWorkflows){
-			// possible optimization-1: preload the templates.
-			// possible optimization-2: put the id of the deadline-taskdef into the workflow instance.
-//            log.debug("WorkflowTemplateType: "+workflowTemplateType.getId());
-			List<ObjectSystemData> templates = oDao.findAllByNameAndType(workflow.getName(), workflowTemplateType);
+	/**
+	 * Create the deadline task of a workflow which has reached its deadline.
+	 * If it is an automatic task, it is set to transition_ready by wfApi.createTask, so it 
+	 * will transition automatically to its default transition. 
+	 * @param em the EntityManager of the current transaction
+	 * @param wfApi the WorkflowApi
+	 * @param workflow the workflow
+	 */
+	void createDeadlineTask(EntityManager em, WorkflowApi wfApi, ObjectSystemData workflow){
+		WorkflowDeadline row = em.find(WorkflowDeadline.class, workflow.getId());
+		ObjectSystemData deadlineTaskDef = null;
+		if(row != null && row.getDeadlineTaskDefId() != null){
+			deadlineTaskDef = em.find(ObjectSystemData.class, row.getDeadlineTaskDefId());
+		}
+		if(deadlineTaskDef == null){
+			deadlineTaskDef = findDeadlineTaskDef(em, workflow, null);
+		}
+		wfApi.createTask(deadlineTaskDef, workflow);
+		if(row != null){
+			em.remove(row);
+		}
+	}
+
+	/**
+	 * @param em the EntityManager of the current transaction
+	 * @param workflow the workflow
+	 * @param template the workflow's template, or null to look it up by the workflow's name
+	 * @return the task definition which is instantiated when the workflow reaches its deadline
+	 */
+	ObjectSystemData findDeadlineTaskDef(EntityManager em, ObjectSystemData workflow, ObjectSystemData template){
+		if(template == null){
+			ObjectType templateType = transitionPlanCache.findObjectType(em, Constants.OBJTYPE_WORKFLOW_TEMPLATE);
+			ObjectSystemDataDAO osdDao = daoFactory.getObjectSystemDataDAO(em);
+			List<ObjectSystemData> templates = osdDao.findAllByNameAndType(workflow.getName(), templateType);
 			if(templates.size() != 1){
-                String message = String.format("Found %d deadline templates - expected: one (with name '%s')!",
+				String message = String.format("Found %d deadline templates - expected: one (with name '%s')!",
 						templates.size(), workflow.getName());
 				throw new CinnamonException(message);
-			}			
-			List<Relation> relations = relDao.findAllByLeftAndType(templates.get(0), deadlineRelationType);
-			if(relations.size() != 1){
-                String message = String.format("Found %d deadline relations - there can be only one!",
-						relations.size());
-				throw new CinnamonException(message);
 			}
-			ObjectSystemData deadlineTaskDef = relations.get(0).getRight();
-			wfApi.createTask(deadlineTaskDef, workflow);
+			template = templates.get(0);
 		}
-		
+		RelationType deadlineRelationType = 
+			transitionPlanCache.findRelationType(em, Constants.RELATION_TYPE_WORKFLOW_TO_DEADLINE_TASK);
+		RelationDAO relDao = daoFactory.getRelationDAO(em);
+		List<Relation> relations = relDao.findAllByLeftAndType(template, deadlineRelationType);
+		if(relations.size() != 1){
+			String message = String.format("Found %d deadline relations - there can be only one!",
+					relations.size());
+			throw new CinnamonException(message);
+		}
+		return relations.get(0).getRight();
 	}
-	
+
 	/**
-	 * Build a query for 'workflow_deadline' index depending on objecttype and procstate.
-	 * For example, a deadline on a task object is irrelevant, if the procstate is "done".
-	 * @param ot the objecttype of the items to find
-	 * @param procstate the forbidden procstate
-	 * @return an XML query string for use with LuceneBridge.search()
+	 * @return the cache of parsed transition metasets and workflow types.
 	 */
-	String buildDeadlineQuery(ObjectType ot, String procstate){
-        log.debug("buidlDeadlineQuery: objectType="+ot+" procstate="+procstate);
-		String deadline = pad(new Date().getTime());
-		return String.format(deadlineQueryFormatString, deadline, pad(ot.getId()), procstate);
+	public TransitionPlanCache getTransitionPlanCache(){
+		return transitionPlanCache;
+	}
+
+	/**
+	 * @return the executor which runs the transitions (and its counters).
+	 */
+	public TransitionExecutor getTransitionExecutor(){
+		return transitionExecutor;
 	}
-	
-	// TODO: centralize the DecimalForamt & pad-routines.
-	private static final DecimalFormat formatter =		
-	    new DecimalFormat("00000000000000000000");
 
-	public static String pad(Long n) {
-	  return formatter.format(n);
+	public int getReadyTaskCount(){
+		return readyTasks.size();
+	}
+
+	public int getDeadlineCount(){
+		return currentDeadlines.size();
 	}
 	
 	void initializeLocalMessage(){
+		initializeLocalMessage(em);
+	}
+
+	/**
+	 * Initialize the LocalMessage of the current thread with the messages of the undetermined language.
+	 * @param em the EntityManager of the current thread
+	 */
+	void initializeLocalMessage(EntityManager em){
 		log.debug("Initialize LocalMessage");
 		try{
 			MessageDAO messageDao = daoFactory.getMessageDAO(em);
@@ -0,0 +1,211 @@
+package server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FolderPathCacheTest {
+
+    /**
+     * A detached folder with a fixed id.
+     */
+    static class TestFolder extends Folder {
+        final Long testId;
+        String testName;
+        Folder testParent;
+
+        TestFolder(long id, String name, Folder parent) {
+            this.testId = id;
+            this.testName = name;
+            this.testParent = parent;
+        }
+
+        @Override
+        public Long getId() {
+            return testId;
+        }
+
+        @Override
+        public String getName() {
+            return testName;
+        }
+
+        @Override
+        public Folder getParent() {
+            return testParent;
+        }
+    }
+
+    TestFolder root;
+    TestFolder system;
+    TestFolder config;
+    Map<Long, Folder> database;
+
+    @BeforeMethod
+    public void createFolders() {
+        root = new TestFolder(1, "root", null);
+        system = new TestFolder(2, "system", root);
+        config = new TestFolder(3, "config", system);
+        database = new HashMap<Long, Folder>();
+        for (TestFolder folder : Arrays.asList(root, system, config)) {
+            database.put(folder.getId(), folder);
+        }
+    }
+
+    List<Folder> path() {
+        return Arrays.<Folder>asList(root, system, config);
+    }
+
+    @Test
+    public void normalize() {
+        assertEquals(FolderPathCache.normalize("/system/config"), "/system/config");
+        assertEquals(FolderPathCache.normalize("system//config/"), "/system/config");
+        assertEquals(FolderPathCache.normalize(""), "/");
+        assertEquals(FolderPathCache.normalize("/"), "/");
+    }
+
+    @Test
+    public void matchesPath() {
+        FolderPathCache cache = new FolderPathCache(10);
+        assertTrue(cache.matches("/system/config", path()));
+        // the path may start below the first folder (the root folder).
+        assertTrue(cache.matches("/config", Arrays.<Folder>asList(system, config)));
+    }
+
+    @Test
+    public void renamedFolderDoesNotMatch() {
+        FolderPathCache cache = new FolderPathCache(10);
+        system.testName = "sys";
+        assertFalse(cache.matches("/system/config", path()));
+    }
+
+    @Test
+    public void movedFolderDoesNotMatch() {
+        FolderPathCache cache = new FolderPathCache(10);
+        config.testParent = root;
+        assertFalse(cache.matches("/system/config", path()));
+    }
+
+    @Test
+    public void shorterFolderListDoesNotMatch() {
+        FolderPathCache cache = new FolderPathCache(10);
+        assertFalse(cache.matches("/root/system/config/more", path()));
+    }
+
+    @Test
+    public void cachedPathIsReturned() {
+        FolderPathCache cache = new FolderPathCache(10);
+        EntityManager em = createEntityManager();
+        assertNull(cache.get("/system/config", em));
+        cache.put("/system/config", path(), cache.getGeneration());
+        assertEquals(cache.get("system/config/", em), path());
+        assertEquals(cache.getHits(), 1);
+        assertEquals(cache.getMisses(), 1);
+    }
+
+    @Test
+    public void staleEntryIsAMiss() {
+        FolderPathCache cache = new FolderPathCache(10);
+        EntityManager em = createEntityManager();
+        cache.put("/system/config", path(), cache.getGeneration());
+        system.testName = "renamed";
+        assertNull(cache.get("/system/config", em));
+        system.testName = "system";
+        // the invalid entry has been removed.
+        assertNull(cache.get("/system/config", em));
+    }
+
+    @Test
+    public void deletedFolderIsAMiss() {
+        FolderPathCache cache = new FolderPathCache(10);
+        cache.put("/system/config", path(), cache.getGeneration());
+        database.remove(config.getId());
+        assertNull(cache.get("/system/config", createEntityManager()));
+    }
+
+    @Test
+    public void invalidateRemovesPathsWithTheFolder() {
+        FolderPathCache cache = new FolderPathCache(10);
+        EntityManager em = createEntityManager();
+        cache.put("/system/config", path(), cache.getGeneration());
+        cache.put("/system", Arrays.<Folder>asList(root, system), cache.getGeneration());
+        cache.invalidate(config.getId());
+        assertNull(cache.get("/system/config", em));
+        assertEquals(cache.get("/system", em), Arrays.<Folder>asList(root, system));
+    }
+
+    @Test
+    public void resultOfAnOlderGenerationIsNotCached() {
+        FolderPathCache cache = new FolderPathCache(10);
+        long generation = cache.getGeneration();
+        cache.invalidate(config.getId());
+        cache.put("/system/config", path(), generation);
+        assertNull(cache.get("/system/config", createEntityManager()));
+    }
+
+    @Test
+    public void leastRecentlyUsedPathIsEvicted() {
+        FolderPathCache cache = new FolderPathCache(1);
+        EntityManager em = createEntityManager();
+        cache.put("/system", Arrays.<Folder>asList(root, system), cache.getGeneration());
+        cache.put("/system/config", path(), cache.getGeneration());
+        assertNull(cache.get("/system", em));
+        assertEquals(cache.get("/system/config", em), path());
+    }
+
+    /**
+     * @return an EntityManager whose queries return the folders of {@link #database} with the given ids.
+     */
+    EntityManager createEntityManager() {
+        return (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{EntityManager.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("createQuery")) {
+                            return createQuery();
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    Query createQuery() {
+        final List<Folder> result = new ArrayList<Folder>();
+        return (Query) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{Query.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("setParameter")) {
+                            for (Object id : (Collection<?>) args[1]) {
+                                Folder folder = database.get(id);
+                                if (folder != null) {
+                                    result.add(folder);
+                                }
+                            }
+                            return proxy;
+                        }
+                        if (method.getName().equals("getResultList")) {
+                            return result;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,196 @@
+package server.helpers;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.testng.annotations.Test;
+
+import server.helpers.KeysetPager.SortOrder;
+
+public class KeysetPagerTest {
+
+    static final KeysetPager.Key<Long> ID_KEY = new KeysetPager.Key<Long>() {
+        @Override
+        public Long getId(Long item) {
+            return item;
+        }
+
+        @Override
+        public String getName(Long item) {
+            return "name-" + item;
+        }
+    };
+
+    KeysetPager<Long> createPager(EntityManager em) {
+        return new KeysetPager<Long>(em, "ObjectSystemData", "o", "o.parent.id = :parentId", ID_KEY);
+    }
+
+    @Test
+    public void firstPageById() {
+        assertEquals(createPager(null).buildQuery(null, null, SortOrder.ID),
+                "select o from ObjectSystemData o where (o.parent.id = :parentId) order by o.id");
+    }
+
+    @Test
+    public void nextPageById() {
+        assertEquals(createPager(null).buildQuery(42L, null, SortOrder.ID),
+                "select o from ObjectSystemData o where (o.parent.id = :parentId) and o.id > :afterId order by o.id");
+    }
+
+    @Test
+    public void nameIsIgnoredWhenSortingById() {
+        assertEquals(createPager(null).buildQuery(42L, "x", SortOrder.ID),
+                createPager(null).buildQuery(42L, null, SortOrder.ID));
+    }
+
+    @Test
+    public void firstPageByName() {
+        assertEquals(createPager(null).buildQuery(null, null, SortOrder.NAME),
+                "select o from ObjectSystemData o where (o.parent.id = :parentId) order by o.name, o.id");
+    }
+
+    @Test
+    public void nextPageByName() {
+        assertEquals(createPager(null).buildQuery(42L, "foo", SortOrder.NAME),
+                "select o from ObjectSystemData o where (o.parent.id = :parentId)"
+                        + " and (o.name > :afterName or (o.name = :afterName and o.id > :afterId))"
+                        + " order by o.name, o.id");
+    }
+
+    @Test
+    public void nextPageByNameWithoutName() {
+        assertEquals(createPager(null).buildQuery(42L, null, SortOrder.NAME),
+                "select o from ObjectSystemData o where (o.parent.id = :parentId) and o.id > :afterId order by o.name, o.id");
+    }
+
+    @Test
+    public void pagesFollowEachOther() {
+        FakeDatabase db = new FakeDatabase(range(1, 7));
+        KeysetPager<Long> pager = createPager(db.createEntityManager()).setParameter("parentId", 1L);
+
+        KeysetPager.Page<Long> page = pager.fetch(3, null, null, SortOrder.ID);
+        assertEquals(page.getItems(), Arrays.asList(1L, 2L, 3L));
+        assertEquals(page.getLastId(), Long.valueOf(3));
+        assertNull(page.getLastName());
+        assertEquals(db.parameters.get("parentId"), 1L);
+
+        page = pager.fetch(3, page.getLastId(), null, SortOrder.ID);
+        assertEquals(page.getItems(), Arrays.asList(4L, 5L, 6L));
+        assertEquals(db.parameters.get("afterId"), 3L);
+
+        page = pager.fetch(3, page.getLastId(), null, SortOrder.ID);
+        assertEquals(page.getItems(), Arrays.asList(7L));
+        assertFalse(page.hasMore());
+    }
+
+    @Test
+    public void filteredChunksAreSkipped() {
+        // only every 10th item is accepted, so the pager has to read several chunks.
+        FakeDatabase db = new FakeDatabase(range(1, 500));
+        KeysetPager<Long> pager = createPager(db.createEntityManager()).setFilter(new KeysetPager.Filter<Long>() {
+            @Override
+            public List<Long> filter(List<Long> items) {
+                List<Long> accepted = new ArrayList<Long>();
+                for (Long item : items) {
+                    if (item % 10 == 0) {
+                        accepted.add(item);
+                    }
+                }
+                return accepted;
+            }
+        });
+
+        KeysetPager.Page<Long> page = pager.fetch(10, null, null, SortOrder.ID);
+        assertEquals(page.getItems(), Arrays.asList(10L, 20L, 30L, 40L, 50L, 60L, 70L, 80L, 90L, 100L));
+        assertTrue(page.hasMore());
+        assertTrue(db.queries > 1);
+        assertEquals(page.getLastId(), Long.valueOf(100));
+    }
+
+    @Test
+    public void pageSizeIsLimited() {
+        FakeDatabase db = new FakeDatabase(range(1, 3000));
+        KeysetPager.Page<Long> page = createPager(db.createEntityManager()).fetch(5000, null, null, SortOrder.ID);
+        assertEquals(page.getItems().size(), KeysetPager.MAX_PAGE_SIZE);
+        assertTrue(page.hasMore());
+    }
+
+    static List<Long> range(long from, long to) {
+        List<Long> ids = new ArrayList<Long>();
+        for (long id = from; id <= to; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    /**
+     * An EntityManager whose queries return the ids greater than the parameter afterId, in order.
+     */
+    static class FakeDatabase {
+        final List<Long> ids;
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        int queries = 0;
+
+        FakeDatabase(List<Long> ids) {
+            this.ids = ids;
+        }
+
+        EntityManager createEntityManager() {
+            return (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{EntityManager.class}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().equals("createQuery")) {
+                                queries++;
+                                parameters.clear();
+                                return createQuery();
+                            }
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        Query createQuery() {
+            final int[] maxResults = {Integer.MAX_VALUE};
+            return (Query) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{Query.class}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().equals("setParameter")) {
+                                parameters.put((String) args[0], args[1]);
+                                return proxy;
+                            }
+                            if (method.getName().equals("setMaxResults")) {
+                                maxResults[0] = (Integer) args[0];
+                                return proxy;
+                            }
+                            if (method.getName().equals("getResultList")) {
+                                Long afterId = (Long) parameters.get("afterId");
+                                List<Long> rows = new ArrayList<Long>();
+                                for (Long id : ids) {
+                                    if ((afterId == null || id > afterId) && rows.size() < maxResults[0]) {
+                                        rows.add(id);
+                                    }
+                                }
+                                return rows;
+                            }
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+}
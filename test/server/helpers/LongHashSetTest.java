@@ -0,0 +1,107 @@
+package server.helpers;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class LongHashSetTest {
+
+    @Test
+    public void addAndContains() {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertTrue(set.contains(42));
+        assertFalse(set.contains(43));
+        assertEquals(set.size(), 1);
+        assertFalse(set.isEmpty());
+    }
+
+    @Test
+    public void zeroAndNegativeValues() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(-1));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(-1));
+        assertTrue(set.contains(Long.MIN_VALUE));
+        assertEquals(set.size(), 3);
+        assertTrue(Arrays.equals(set.toSortedArray(), new long[]{Long.MIN_VALUE, -1, 0}));
+    }
+
+    @Test
+    public void resize() {
+        LongHashSet set = new LongHashSet(4);
+        for (long id = 1; id <= 10000; id++) {
+            assertTrue(set.add(id));
+        }
+        assertEquals(set.size(), 10000);
+        for (long id = 1; id <= 10000; id++) {
+            assertTrue(set.contains(id), "missing " + id);
+        }
+        assertFalse(set.contains(10001));
+        long[] values = set.toSortedArray();
+        assertEquals(values.length, 10000);
+        assertEquals(values[0], 1);
+        assertEquals(values[9999], 10000);
+    }
+
+    @Test
+    public void collisions() {
+        // values which differ only above the bits used for the slot index of a small table.
+        LongHashSet set = new LongHashSet();
+        long[] values = new long[12];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i + 1L) << 40;
+        }
+        for (long value : values) {
+            assertTrue(set.add(value));
+        }
+        for (long value : values) {
+            assertTrue(set.contains(value));
+            assertFalse(set.add(value));
+        }
+        assertFalse(set.contains(13L << 40));
+        assertEquals(set.size(), values.length);
+    }
+
+    @Test
+    public void behavesLikeHashSet() {
+        Random random = new Random(17);
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < 20000; i++) {
+            // a small range, so many values are added twice.
+            long value = random.nextInt(5000) - 100;
+            assertEquals(set.add(value), expected.add(value));
+        }
+        assertEquals(set.size(), expected.size());
+        for (long value = -200; value < 5100; value++) {
+            assertEquals(set.contains(value), expected.contains(value));
+        }
+    }
+
+    @Test
+    public void addAll() {
+        LongHashSet first = new LongHashSet();
+        first.add(1);
+        first.add(2);
+        LongHashSet second = new LongHashSet();
+        second.add(0);
+        second.add(2);
+        second.add(3);
+        first.addAll(second);
+        assertTrue(Arrays.equals(first.toSortedArray(), new long[]{0, 1, 2, 3}));
+    }
+}
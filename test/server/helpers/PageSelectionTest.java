@@ -0,0 +1,55 @@
+package server.helpers;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class PageSelectionTest {
+
+    List<Long> shuffledIds(int count) {
+        List<Long> ids = new ArrayList<Long>();
+        for (long id = 1; id <= count; id++) {
+            ids.add(id);
+        }
+        Collections.shuffle(ids, new Random(5));
+        return ids;
+    }
+
+    @Test
+    public void firstPage() {
+        assertEquals(PageSelection.select(shuffledIds(100), 0, 3), Arrays.asList(1L, 2L, 3L));
+    }
+
+    @Test
+    public void laterPage() {
+        assertEquals(PageSelection.select(shuffledIds(100), 40, 43), Arrays.asList(41L, 42L, 43L));
+    }
+
+    @Test
+    public void lastPageIsShorter() {
+        assertEquals(PageSelection.select(shuffledIds(100), 98, 110), Arrays.asList(99L, 100L));
+    }
+
+    @Test
+    public void pageAfterTheEndIsEmpty() {
+        assertTrue(PageSelection.select(shuffledIds(100), 100, 110).isEmpty());
+        assertTrue(PageSelection.select(new ArrayList<Long>(), 0, 10).isEmpty());
+    }
+
+    @Test
+    public void matchesFullSort() {
+        List<Long> ids = shuffledIds(1000);
+        List<Long> sorted = new ArrayList<Long>(ids);
+        Collections.sort(sorted);
+        for (int start = 0; start < 1000; start += 70) {
+            assertEquals(PageSelection.select(ids, start, start + 70), sorted.subList(start, Math.min(start + 70, 1000)));
+        }
+    }
+}
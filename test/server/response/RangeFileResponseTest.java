@@ -0,0 +1,68 @@
+package server.response;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class RangeFileResponseTest {
+
+    @Test
+    public void closedRange() {
+        assertRange(RangeFileResponse.parseRange("bytes=100-199", 1000), 100, 199);
+        assertRange(RangeFileResponse.parseRange(" bytes= 0 - 0 ", 1000), 0, 0);
+    }
+
+    @Test
+    public void endIsLimitedToLength() {
+        assertRange(RangeFileResponse.parseRange("bytes=900-2000", 1000), 900, 999);
+    }
+
+    @Test
+    public void openEndedRange() {
+        assertRange(RangeFileResponse.parseRange("bytes=100-", 1000), 100, 999);
+        assertRange(RangeFileResponse.parseRange("bytes=999-", 1000), 999, 999);
+    }
+
+    @Test
+    public void suffixRange() {
+        assertRange(RangeFileResponse.parseRange("bytes=-500", 1000), 500, 999);
+        // a suffix which is longer than the file selects the whole file.
+        assertRange(RangeFileResponse.parseRange("bytes=-5000", 1000), 0, 999);
+    }
+
+    @Test
+    public void unsatisfiableRange() {
+        assertEquals(RangeFileResponse.parseRange("bytes=1000-", 1000).length, 0);
+        assertEquals(RangeFileResponse.parseRange("bytes=200-100", 1000).length, 0);
+        assertEquals(RangeFileResponse.parseRange("bytes=-0", 1000).length, 0);
+        assertEquals(RangeFileResponse.parseRange("bytes=0-", 0).length, 0);
+    }
+
+    @Test
+    public void unsupportedRangeIsIgnored() {
+        assertNull(RangeFileResponse.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(RangeFileResponse.parseRange("items=0-1", 1000));
+        assertNull(RangeFileResponse.parseRange("bytes=100", 1000));
+        assertNull(RangeFileResponse.parseRange("bytes=a-b", 1000));
+        assertNull(RangeFileResponse.parseRange("bytes=-", 1000));
+    }
+
+    @Test
+    public void matchesETag() {
+        String etag = "\"3e8-abc\"";
+        assertTrue(RangeFileResponse.matchesETag(etag, etag));
+        assertTrue(RangeFileResponse.matchesETag("\"other\", " + etag, etag));
+        assertTrue(RangeFileResponse.matchesETag("W/" + etag, etag));
+        assertTrue(RangeFileResponse.matchesETag("*", etag));
+        assertFalse(RangeFileResponse.matchesETag("\"other\"", etag));
+    }
+
+    void assertRange(long[] bounds, long start, long end) {
+        assertEquals(bounds.length, 2);
+        assertEquals(bounds[0], start);
+        assertEquals(bounds[1], end);
+    }
+}